@@ -140,6 +140,11 @@ public final class BytesRefList {
 		for (int i = 0; i < orderedEntries.length; i++) {
 			orderedEntries[i] = i;
 		}
+		if (comp == BytesRef.getUTF8SortedAsUnicodeComparator()) {
+			// plain (unsigned) byte order, no need to call the comparator
+			new ByteOrderSorter(orderedEntries).sort(0, orderedEntries.length, 0);
+			return orderedEntries;
+		}
 		new SorterTemplate() {
 			@Override
 			protected void swap(int i, int j) {
@@ -172,6 +177,112 @@ public final class BytesRefList {
 		return orderedEntries;
 	}
 
+	/** The length of the <i>n'th</i> element. */
+	private int length(int ord) {
+		return (ord == lastElement - 1 ? currentOffset : offsets[ord + 1])
+				- offsets[ord];
+	}
+
+	/**
+	 * Sorts ordinals in unsigned byte order of their elements, 8 bytes at a
+	 * time: the ordinals are sorted by the next 8 bytes of their elements,
+	 * cached as <code>long</code>s, and each group of elements sharing these
+	 * bytes and longer than them is then sorted by the following 8 bytes. The
+	 * bytes are read straight from the pool, and most comparisons only compare
+	 * the cached <code>long</code>s.
+	 */
+	private final class ByteOrderSorter extends SorterTemplate {
+		private final int[] ords;
+		/** The cached bytes, flipped so that signed comparison is unsigned. */
+		private final long[] prefixes;
+		private int depth;
+		private long pivotPrefix;
+		private int pivotTail;
+
+		ByteOrderSorter(int[] ords) {
+			this.ords = ords;
+			this.prefixes = new long[ords.length];
+		}
+
+		/** Sorts the ordinals from <code>lo</code> (inclusive) to <code>hi</code> (exclusive), whose elements share <code>depth</code> bytes. */
+		void sort(int lo, int hi, int depth) {
+			for (int i = lo; i < hi; i++) {
+				prefixes[i] = prefix(ords[i], depth);
+			}
+			this.depth = depth;
+			quickSort(lo, hi - 1);
+
+			// elements with the same 8 bytes, and more, are sorted by the next ones
+			for (int i = lo; i < hi;) {
+				int j = i + 1;
+				if (tail(ords[i], depth) > 8) {
+					while (j < hi && prefixes[j] == prefixes[i]) {
+						j++;
+					}
+					if (j - i > 1) {
+						sort(i, j, depth + 8);
+					}
+				}
+				i = j;
+			}
+		}
+
+		private long prefix(int ord, int depth) {
+			final int start = offsets[ord] + depth;
+			final int end = Math.min(start + 8, offsets[ord] + length(ord));
+			long prefix = 0;
+			int shift = 56;
+			for (int o = start; o < end; o++, shift -= 8) {
+				prefix |= (long) (pool.buffers[o >> ByteBlockPool.BYTE_BLOCK_SHIFT][o
+						& ByteBlockPool.BYTE_BLOCK_MASK] & 0xff) << shift;
+			}
+			return prefix ^ Long.MIN_VALUE;
+		}
+
+		/**
+		 * The number of bytes after <code>depth</code>, capped to 9: of two
+		 * elements with the same next 8 bytes, the shorter comes first, and
+		 * those longer than 8 are told apart by the next bytes.
+		 */
+		private int tail(int ord, int depth) {
+			return Math.min(length(ord) - depth, 9);
+		}
+
+		@Override
+		protected void swap(int i, int j) {
+			final int o = ords[i];
+			ords[i] = ords[j];
+			ords[j] = o;
+			final long p = prefixes[i];
+			prefixes[i] = prefixes[j];
+			prefixes[j] = p;
+		}
+
+		@Override
+		protected int compare(int i, int j) {
+			final long p1 = prefixes[i], p2 = prefixes[j];
+			if (p1 != p2) {
+				return p1 < p2 ? -1 : 1;
+			}
+			return tail(ords[i], depth) - tail(ords[j], depth);
+		}
+
+		@Override
+		protected void setPivot(int i) {
+			pivotPrefix = prefixes[i];
+			pivotTail = tail(ords[i], depth);
+		}
+
+		@Override
+		protected int comparePivot(int j) {
+			final long p = prefixes[j];
+			if (pivotPrefix != p) {
+				return pivotPrefix < p ? -1 : 1;
+			}
+			return pivotTail - tail(ords[j], depth);
+		}
+	}
+
 	/**
 	 * sugar for {@link #iterator(Comparator)} with a <code>null</code>
 	 * comparator
@@ -0,0 +1,294 @@
+package org.apache.lucene.search.suggest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.spell.TermFreqIterator;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * A {@link Lookup} caching the results of another one.
+ *
+ * <p>Results are cached per (key, onlyMorePopular, num). The cache is split into
+ * a number of independently locked segments, each evicting its least recently
+ * used entries once its share of the memory budget is exceeded. Memory usage is
+ * estimated from the length of the keys and of the results.
+ *
+ * <p>The cache is invalidated when {@link #build(TermFreqIterator)} or
+ * {@link #load(InputStream)} installs new data; results of lookups running
+ * concurrently with an invalidation are not cached. If the delegate is modified
+ * directly (for example with <code>TSTLookup.add</code>), call
+ * {@link #invalidate()}.
+ *
+ * <p>Every lookup returns a new list; cached results are never exposed.
+ *
+ * @lucene.experimental
+ */
+public class CachingLookup extends Lookup {
+  /** Default memory budget of the cache: 16 MB. */
+  public static final long DEFAULT_MAX_RAM_BYTES = 16 * 1024 * 1024;
+
+  /** The number of segments (lock stripes), a power of two. */
+  private static final int SEGMENTS = 16;
+
+  /** Estimated size of an entry, excluding its key's and results' characters. */
+  private static final long ENTRY_OVERHEAD =
+      2 * RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 4 * RamUsageEstimator.NUM_BYTES_OBJECT_REF
+      + RamUsageEstimator.NUM_BYTES_INT + RamUsageEstimator.NUM_BYTES_LONG;
+
+  /** Estimated size of a single cached result, excluding its characters. */
+  private static final long RESULT_OVERHEAD =
+      2 * RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 2 * RamUsageEstimator.NUM_BYTES_OBJECT_REF
+      + RamUsageEstimator.NUM_BYTES_LONG + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER;
+
+  private final Lookup delegate;
+  private final Segment[] segments;
+
+  /** Incremented whenever the cache is invalidated. */
+  private volatile long generation;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Caches the results of <code>delegate</code> using up to
+   * {@link #DEFAULT_MAX_RAM_BYTES}.
+   */
+  public CachingLookup(Lookup delegate) {
+    this(delegate, DEFAULT_MAX_RAM_BYTES);
+  }
+
+  /**
+   * Caches the results of <code>delegate</code> using up to (approximately)
+   * <code>maxRamBytes</code>.
+   */
+  public CachingLookup(Lookup delegate, long maxRamBytes) {
+    if (delegate == null) {
+      throw new IllegalArgumentException("delegate must not be null");
+    }
+    if (maxRamBytes < 0) {
+      throw new IllegalArgumentException("maxRamBytes must be >= 0: " + maxRamBytes);
+    }
+    this.delegate = delegate;
+    this.segments = new Segment[SEGMENTS];
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment(maxRamBytes / SEGMENTS);
+    }
+  }
+
+  /** Cache key. */
+  private static final class Key {
+    final String key;
+    final boolean onlyMorePopular;
+    final int num;
+    final int hash;
+
+    Key(String key, boolean onlyMorePopular, int num) {
+      this.key = key;
+      this.onlyMorePopular = onlyMorePopular;
+      this.num = num;
+      this.hash = 31 * (31 * key.hashCode() + (onlyMorePopular ? 1 : 0)) + num;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return num == other.num && onlyMorePopular == other.onlyMorePopular && key.equals(other.key);
+    }
+  }
+
+  /** Cached results and their estimated size. */
+  private static final class Entry {
+    final LookupResult[] results;
+    final long ramBytes;
+
+    Entry(LookupResult[] results, long ramBytes) {
+      this.results = results;
+      this.ramBytes = ramBytes;
+    }
+  }
+
+  /** An LRU map guarded by its own lock. */
+  private final class Segment {
+    final long maxRamBytes;
+    final LinkedHashMap<Key,Entry> map = new LinkedHashMap<Key,Entry>(16, 0.75f, true);
+    long ramBytes;
+
+    Segment(long maxRamBytes) {
+      this.maxRamBytes = maxRamBytes;
+    }
+
+    synchronized Entry get(Key key) {
+      return map.get(key);
+    }
+
+    synchronized void put(Key key, Entry entry, long expectedGeneration) {
+      if (entry.ramBytes > maxRamBytes || generation != expectedGeneration) {
+        return;
+      }
+      final Entry previous = map.put(key, entry);
+      if (previous != null) {
+        ramBytes -= previous.ramBytes;
+      }
+      ramBytes += entry.ramBytes;
+
+      // Evict the least recently used entries.
+      final Iterator<Map.Entry<Key,Entry>> i = map.entrySet().iterator();
+      while (ramBytes > maxRamBytes) {
+        ramBytes -= i.next().getValue().ramBytes;
+        i.remove();
+        evictions.incrementAndGet();
+      }
+    }
+
+    synchronized void clear() {
+      map.clear();
+      ramBytes = 0;
+    }
+  }
+
+  private Segment segment(Key key) {
+    // Spread the bits so that similar keys end up in different segments.
+    int h = key.hash;
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[h & (SEGMENTS - 1)];
+  }
+
+  @Override
+  public List<LookupResult> lookup(CharSequence key, boolean onlyMorePopular, int num) {
+    final Key cacheKey = new Key(key.toString(), onlyMorePopular, num);
+    final Segment segment = segment(cacheKey);
+    Entry entry = segment.get(cacheKey);
+    if (entry != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      final long expectedGeneration = generation;
+      final List<LookupResult> results = delegate.lookup(key, onlyMorePopular, num);
+
+      // Keep immutable copies of the results.
+      final LookupResult[] copy = new LookupResult[results.size()];
+      long ramBytes = ENTRY_OVERHEAD + 2 * cacheKey.key.length()
+          + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + copy.length * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+      for (int i = 0; i < copy.length; i++) {
+        final LookupResult result = results.get(i);
+        copy[i] = new LookupResult(result.key.toString(), result.value);
+        ramBytes += RESULT_OVERHEAD + 2 * result.key.length();
+      }
+      entry = new Entry(copy, ramBytes);
+      segment.put(cacheKey, entry, expectedGeneration);
+    }
+
+    final ArrayList<LookupResult> res = new ArrayList<LookupResult>(entry.results.length);
+    for (LookupResult result : entry.results) {
+      res.add(result);
+    }
+    return res;
+  }
+
+  /**
+   * Builds the delegate and invalidates the cache.
+   */
+  @Override
+  public void build(TermFreqIterator tfit) throws IOException {
+    try {
+      delegate.build(tfit);
+    } finally {
+      invalidate();
+    }
+  }
+
+  /**
+   * Loads the delegate and invalidates the cache.
+   */
+  @Override
+  public boolean load(InputStream input) throws IOException {
+    try {
+      return delegate.load(input);
+    } finally {
+      invalidate();
+    }
+  }
+
+  @Override
+  public boolean store(OutputStream output) throws IOException {
+    return delegate.store(output);
+  }
+
+  /**
+   * Discards all cached results.
+   */
+  public void invalidate() {
+    synchronized (segments) {
+      generation++;
+    }
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  /** Returns the wrapped lookup. */
+  public Lookup getDelegate() {
+    return delegate;
+  }
+
+  /** Returns the number of lookups answered from the cache. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Returns the number of lookups passed on to the delegate. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** Returns the number of entries evicted to stay within the memory budget. */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /** Returns the estimated memory used by cached results, in bytes. */
+  public long ramBytesUsed() {
+    long ramBytes = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        ramBytes += segment.ramBytes;
+      }
+    }
+    return ramBytes;
+  }
+}
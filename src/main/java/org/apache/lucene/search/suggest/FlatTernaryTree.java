@@ -0,0 +1,388 @@
+package org.apache.lucene.search.suggest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+
+/**
+ * A read-only ternary search tree in a flat binary format, searched in place:
+ * opening a file only maps it in memory, whatever its size, and processes
+ * mapping the same file share its pages.
+ *
+ * <p>The format is a sequence of big-endian, fixed size records of
+ * {@value #RECORD_SIZE} bytes. Record <code>0</code> is the header: the magic
+ * number {@value #MAGIC}, the format version and flags. Record <code>i</code>
+ * (starting at <code>1</code>, the root) is node <code>i</code>:
+ * <ul>
+ *   <li>the weight of the key ending at the node (<code>long</code>), or
+ *       <code>Long.MIN_VALUE</code> if none,</li>
+ *   <li>the max weight of the subtree rooted at the node, lo and hi kids
+ *       included (<code>long</code>),</li>
+ *   <li>the indexes of its lo, eq and hi kids (<code>int</code>), <code>0</code>
+ *       meaning none,</li>
+ *   <li>its split char (<code>char</code>) and two bytes of padding.</li>
+ * </ul>
+ * Nodes are written breadth-first by {@link Writer}, so the format is
+ * streamed out without recursion nor knowing the tree size up front. Keys are
+ * not stored but rebuilt along the search path.
+ *
+ * <p>Searches give the same results as the trees that were written:
+ * {@link #prefixCompletion} in the order of <code>TSTLookup</code>,
+ * {@link #sortedMatchPrefix}, {@link #topMatchPrefix} and
+ * {@link #fuzzyMatchPrefix} as <code>JaspellTernarySearchTrie</code>. Instances
+ * are immutable and thread-safe. Mapped files are unmapped when the instance
+ * is garbage collected.
+ *
+ * @lucene.experimental
+ */
+public final class FlatTernaryTree {
+
+  /** Magic number at the start of the header. */
+  public static final int MAGIC = 0x3fd76c17;
+  /** The first version of the format. */
+  public static final int VERSION_START = 0;
+  /** The current version of the format. */
+  public static final int VERSION_CURRENT = VERSION_START;
+
+  /** Header flag: split chars are compared in lower case. */
+  public static final int FLAG_CASE_INSENSITIVE = 0x01;
+
+  /** The size of the header and of each node. */
+  public static final int RECORD_SIZE = 32;
+  private static final int RECORD_SHIFT = 5;
+
+  /** The weight of nodes without a key. */
+  public static final long NO_DATA = Long.MIN_VALUE;
+
+  // field offsets in a node record
+  private static final int WEIGHT = 0;
+  private static final int MAX_WEIGHT = 8;
+  private static final int LO = 16;
+  private static final int EQ = 20;
+  private static final int HI = 24;
+  private static final int SPLITCHAR = 28;
+
+  // field offsets in the header
+  private static final int HEADER_VERSION = 4;
+  private static final int HEADER_FLAGS = 8;
+
+  /** Files are mapped in chunks of 1GB, a multiple of the record size. */
+  private static final int DEFAULT_CHUNK_POWER = 30;
+
+  /**
+   * Writes the flat format. Nodes are added in index order, the root first;
+   * the caller numbers kids as it queues them.
+   */
+  public static final class Writer {
+    private final DataOutputStream out;
+    private int count;
+
+    /** Writes the header to <code>output</code>. */
+    public Writer(OutputStream output, boolean caseInsensitive) throws IOException {
+      out = new DataOutputStream(output);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION_CURRENT);
+      out.writeInt(caseInsensitive ? FLAG_CASE_INSENSITIVE : 0);
+      out.write(new byte[RECORD_SIZE - 12]);
+    }
+
+    /** Writes the next node, whose index is the number of nodes added so far plus one. */
+    public void add(char splitchar, long weight, long maxWeight, int lo, int eq, int hi)
+        throws IOException {
+      out.writeLong(weight);
+      out.writeLong(maxWeight);
+      out.writeInt(lo);
+      out.writeInt(eq);
+      out.writeInt(hi);
+      out.writeChar(splitchar);
+      out.writeShort(0);
+      count++;
+    }
+
+    /** Returns the number of nodes added. */
+    public int getNodeCount() {
+      return count;
+    }
+
+    /** Flushes the underlying stream. */
+    public void finish() throws IOException {
+      out.flush();
+    }
+  }
+
+  private final ByteBuffer[] chunks;
+  private final int chunkPower;
+  private final long chunkMask;
+  /** The number of records, header included. */
+  private final int size;
+  private final boolean caseInsensitive;
+  private final Nodes nodes = new Nodes();
+
+  private FlatTernaryTree(ByteBuffer[] chunks, int chunkPower, long length) throws IOException {
+    if (length < RECORD_SIZE || length % RECORD_SIZE != 0
+        || (length >>> RECORD_SHIFT) > Integer.MAX_VALUE) {
+      throw new CorruptIndexException("invalid flat ternary tree length: " + length);
+    }
+    this.chunks = chunks;
+    this.chunkPower = chunkPower;
+    this.chunkMask = (1L << chunkPower) - 1;
+    this.size = (int) (length >>> RECORD_SHIFT);
+    final ByteBuffer header = chunks[0];
+    if (header.getInt(0) != MAGIC) {
+      throw new CorruptIndexException("not a flat ternary tree: magic=" + header.getInt(0));
+    }
+    final int version = header.getInt(HEADER_VERSION);
+    if (version < VERSION_START || version > VERSION_CURRENT) {
+      throw new CorruptIndexException("unsupported flat ternary tree version: " + version
+          + " (needs to be between " + VERSION_START + " and " + VERSION_CURRENT + ")");
+    }
+    this.caseInsensitive = (header.getInt(HEADER_FLAGS) & FLAG_CASE_INSENSITIVE) != 0;
+  }
+
+  /** Maps a file written by a {@link Writer}, read-only. */
+  public static FlatTernaryTree open(File file) throws IOException {
+    return open(file, DEFAULT_CHUNK_POWER);
+  }
+
+  static FlatTernaryTree open(File file, int chunkPower) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = raf.getChannel();
+      final long length = channel.size();
+      final long chunkSize = 1L << chunkPower;
+      final ByteBuffer[] chunks = new ByteBuffer[(int) Math.max(1, (length + chunkSize - 1) >>> chunkPower)];
+      for (int i = 0; i < chunks.length; i++) {
+        final long position = (long) i << chunkPower;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+            Math.min(chunkSize, length - position));
+      }
+      return new FlatTernaryTree(chunks, chunkPower, length);
+    } finally {
+      // the mapping stays valid
+      raf.close();
+    }
+  }
+
+  /**
+   * Wraps the remaining bytes of a buffer holding the flat format, for
+   * instance a buffer mapped by the caller. The buffer must not be modified
+   * afterwards.
+   */
+  public static FlatTernaryTree wrap(ByteBuffer buffer) throws IOException {
+    final ByteBuffer slice = buffer.slice();
+    return new FlatTernaryTree(new ByteBuffer[] {slice}, 31, slice.remaining());
+  }
+
+  /** Returns whether split chars are compared in lower case. */
+  public boolean isCaseInsensitive() {
+    return caseInsensitive;
+  }
+
+  /** Returns the number of nodes. */
+  public int getNodeCount() {
+    return size - 1;
+  }
+
+  /** Returns the size of the flat format, in bytes. */
+  public long sizeInBytes() {
+    return (long) size << RECORD_SHIFT;
+  }
+
+  /** Copies the flat format to <code>output</code>, which is not closed. */
+  public void copyTo(OutputStream output) throws IOException {
+    final byte[] buffer = new byte[8192];
+    for (ByteBuffer chunk : chunks) {
+      final ByteBuffer bytes = chunk.duplicate();
+      bytes.position(0);
+      while (bytes.hasRemaining()) {
+        final int length = Math.min(buffer.length, bytes.remaining());
+        bytes.get(buffer, 0, length);
+        output.write(buffer, 0, length);
+      }
+    }
+  }
+
+  private long getLong(int node, int field) {
+    final long address = ((long) node << RECORD_SHIFT) + field;
+    return chunks[(int) (address >>> chunkPower)].getLong((int) (address & chunkMask));
+  }
+
+  private int getInt(int node, int field) {
+    final long address = ((long) node << RECORD_SHIFT) + field;
+    return chunks[(int) (address >>> chunkPower)].getInt((int) (address & chunkMask));
+  }
+
+  private char splitchar(int node) {
+    final long address = ((long) node << RECORD_SHIFT) + SPLITCHAR;
+    return chunks[(int) (address >>> chunkPower)].getChar((int) (address & chunkMask));
+  }
+
+  private int compare(char c, char splitchar) {
+    return caseInsensitive
+        ? Character.toLowerCase(c) - Character.toLowerCase(splitchar)
+        : c - splitchar;
+  }
+
+  /**
+   * Returns the node at the end of <code>key</code>, or <code>0</code>,
+   * appending the split chars along the way (the key as stored) to
+   * <code>path</code> if not <code>null</code>.
+   */
+  private int getNode(CharSequence key, StringBuilder path) {
+    if (key == null || key.length() == 0 || size == 1) {
+      return 0;
+    }
+    int node = 1;
+    int charIndex = 0;
+    while (node != 0) {
+      final char splitchar = splitchar(node);
+      final int cmp = compare(key.charAt(charIndex), splitchar);
+      if (cmp == 0) {
+        if (path != null) {
+          path.append(splitchar);
+        }
+        if (++charIndex == key.length()) {
+          return node;
+        }
+        node = getInt(node, EQ);
+      } else if (cmp < 0) {
+        node = getInt(node, LO);
+      } else {
+        node = getInt(node, HI);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the weight of <code>key</code>, or <code>null</code> if the key
+   * does not exist.
+   */
+  public Long get(CharSequence key) {
+    final int node = getNode(key, null);
+    if (node == 0) {
+      return null;
+    }
+    final long weight = getLong(node, WEIGHT);
+    return weight == NO_DATA ? null : Long.valueOf(weight);
+  }
+
+  /**
+   * Returns the first <code>num</code> keys beginning with
+   * <code>prefix</code>, with their weights, in the order of
+   * <code>TSTAutocomplete.prefixCompletion</code>: depth-first, each node
+   * before its hi, lo and eq subtrees, in that order.
+   */
+  public List<LookupResult> prefixCompletion(CharSequence prefix, final int num) {
+    final List<LookupResult> result = new ArrayList<LookupResult>();
+    final StringBuilder start = new StringBuilder();
+    final int startNode = getNode(prefix, start);
+    if (startNode == 0 || num <= 0) {
+      return result;
+    }
+    nodes.prefixCompletion(startNode, start, new TernaryTreeSearch.KeyCollector() {
+      @Override
+      public boolean collect(char[] key, int length, long weight) {
+        result.add(new LookupResult(new String(key, 0, length), weight));
+        return result.size() == num;
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Returns, in alphabetical order (in-order of the tree), the first
+   * <code>num</code> keys beginning with <code>prefix</code>, with their
+   * weights.
+   */
+  public List<LookupResult> sortedMatchPrefix(CharSequence prefix, int num) {
+    final StringBuilder start = new StringBuilder();
+    final int startNode = getNode(prefix, start);
+    if (startNode == 0) {
+      return new ArrayList<LookupResult>();
+    }
+    return nodes.sortedMatchPrefix(startNode, start, num);
+  }
+
+  /**
+   * Returns the <code>num</code> keys beginning with <code>prefix</code> that
+   * have the highest weights, in descending weight order.
+   */
+  public List<LookupResult> topMatchPrefix(CharSequence prefix, int num) {
+    final StringBuilder start = new StringBuilder();
+    final int startNode = getNode(prefix, start);
+    if (startNode == 0) {
+      return new ArrayList<LookupResult>();
+    }
+    return nodes.topMatchPrefix(startNode, start.toString(), num);
+  }
+
+  /**
+   * Returns the <code>num</code> keys with the highest weights that begin with
+   * a prefix within <code>maxEdits</code> edits (of code points, including
+   * transpositions) of <code>key</code>, in descending weight order. Case
+   * insensitive trees compare in lower case.
+   */
+  public List<LookupResult> fuzzyMatchPrefix(CharSequence key, int maxEdits, int num) {
+    return nodes.fuzzyMatchPrefix(size == 1 ? 0 : 1, key, maxEdits, caseInsensitive, num);
+  }
+
+  /** The records, as seen by the searches. */
+  private final class Nodes extends TernaryTreeSearch {
+    @Override
+    protected char splitchar(int node) {
+      return FlatTernaryTree.this.splitchar(node);
+    }
+
+    @Override
+    protected int lo(int node) {
+      return getInt(node, LO);
+    }
+
+    @Override
+    protected int eq(int node) {
+      return getInt(node, EQ);
+    }
+
+    @Override
+    protected int hi(int node) {
+      return getInt(node, HI);
+    }
+
+    @Override
+    protected long weight(int node) {
+      return getLong(node, WEIGHT);
+    }
+
+    @Override
+    protected long maxWeight(int node) {
+      return getLong(node, MAX_WEIGHT);
+    }
+  }
+}
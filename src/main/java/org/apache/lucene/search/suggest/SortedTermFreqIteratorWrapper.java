@@ -146,6 +146,7 @@ public class SortedTermFreqIteratorWrapper implements TermFreqIterator {
     }
   }
   
+  /** Not thread-safe: only used by the single-threaded {@link Sort} in {@link #sort}. */
   private final static class BytesOnlyComparator implements Comparator<BytesRef> {
 
     final Comparator<BytesRef> other;
@@ -0,0 +1,257 @@
+package org.apache.lucene.search.suggest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.search.spell.TermFreqIterator;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * A {@link Lookup} that can be rebuilt or reloaded under concurrent lookups.
+ *
+ * <p>{@link #build(TermFreqIterator)} and {@link #load(InputStream)} never touch
+ * the {@link Lookup} that is serving requests: a fresh instance is obtained from
+ * a {@link Factory}, built (or loaded) completely in the calling thread and then
+ * published atomically. Lookups are never blocked and always see either the old
+ * or the new instance, never a partially built one. Every lookup holds a
+ * reference to the instance it uses; after a swap the old instance is drained,
+ * that is the swapping thread waits until no lookup uses it anymore, and then
+ * closed if it implements {@link Closeable}.
+ *
+ * <p>Builds and loads are serialized; call them from a background thread to
+ * refresh the suggestions of a live application.
+ *
+ * @lucene.experimental
+ */
+public class SwappableLookup extends Lookup implements Closeable {
+  /**
+   * Creates the (empty) {@link Lookup} instances built or loaded by a
+   * {@link SwappableLookup}.
+   */
+  public static interface Factory {
+    /** Returns a new, empty {@link Lookup}. */
+    Lookup create() throws IOException;
+  }
+
+  /**
+   * A published {@link Lookup}, reference counted. One reference is held while
+   * the instance is current.
+   */
+  private static final class Generation {
+    final Lookup lookup;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    Generation(Lookup lookup) {
+      this.lookup = lookup;
+    }
+
+    boolean tryIncRef() {
+      int count;
+      while ((count = refCount.get()) > 0) {
+        if (refCount.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    void decRef() {
+      if (refCount.decrementAndGet() == 0) {
+        synchronized (this) {
+          notifyAll();
+        }
+      }
+    }
+
+    /** Waits until all references are released. */
+    synchronized void awaitDrained() {
+      try {
+        while (refCount.get() > 0) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        throw new ThreadInterruptedException(e);
+      }
+    }
+  }
+
+  private final Factory factory;
+  private volatile Generation current;
+
+  /** Serializes builds, loads and closing. */
+  private final Object swapLock = new Object();
+
+  /** Set once closed, guarded by {@link #swapLock}. */
+  private boolean closed;
+
+  /**
+   * Creates a new swappable lookup; the initial instance is empty.
+   */
+  public SwappableLookup(Factory factory) throws IOException {
+    this.factory = factory;
+    this.current = new Generation(factory.create());
+  }
+
+  /**
+   * Builds a new instance from <code>tfit</code> and swaps it in. Lookups are
+   * served by the previous instance until the build completes.
+   * 
+   * @throws IllegalStateException if this lookup is closed.
+   */
+  @Override
+  public void build(TermFreqIterator tfit) throws IOException {
+    synchronized (swapLock) {
+      ensureOpen();
+      final Lookup lookup = factory.create();
+      boolean success = false;
+      try {
+        lookup.build(tfit);
+        success = true;
+      } finally {
+        if (!success) {
+          closeWhileHandlingException(lookup);
+        }
+      }
+      swap(lookup);
+    }
+  }
+
+  /**
+   * Loads a new instance from <code>input</code> and swaps it in, if loading
+   * was successful. Lookups are served by the previous instance until then.
+   * 
+   * @throws IllegalStateException if this lookup is closed.
+   */
+  @Override
+  public boolean load(InputStream input) throws IOException {
+    synchronized (swapLock) {
+      ensureOpen();
+      final Lookup lookup = factory.create();
+      boolean loaded = false;
+      try {
+        loaded = lookup.load(input);
+      } finally {
+        if (!loaded) {
+          closeWhileHandlingException(lookup);
+        }
+      }
+      if (!loaded) {
+        return false;
+      }
+      swap(lookup);
+      return true;
+    }
+  }
+
+  private void ensureOpen() {
+    assert Thread.holdsLock(swapLock);
+    if (closed) {
+      throw new IllegalStateException("this lookup is closed");
+    }
+  }
+
+  /** Closes a lookup that failed to build or load, if it is {@link Closeable}. */
+  private static void closeWhileHandlingException(Lookup lookup) {
+    if (lookup instanceof Closeable) {
+      IOUtils.closeWhileHandlingException((Closeable) lookup);
+    }
+  }
+
+  /**
+   * Publishes <code>lookup</code>, then drains and closes the previous instance.
+   */
+  private void swap(Lookup lookup) throws IOException {
+    final Generation previous = current;
+    current = new Generation(lookup);
+    previous.decRef();
+    previous.awaitDrained();
+    if (previous.lookup instanceof Closeable) {
+      ((Closeable) previous.lookup).close();
+    }
+  }
+
+  @Override
+  public List<LookupResult> lookup(CharSequence key, boolean onlyMorePopular, int num) {
+    final Generation generation = acquire();
+    try {
+      return generation.lookup.lookup(key, onlyMorePopular, num);
+    } finally {
+      generation.decRef();
+    }
+  }
+
+  @Override
+  public boolean store(OutputStream output) throws IOException {
+    final Generation generation = acquire();
+    try {
+      return generation.lookup.store(output);
+    } finally {
+      generation.decRef();
+    }
+  }
+
+  /**
+   * Returns the current instance. It may be swapped out at any time; it
+   * should not be retained.
+   */
+  public Lookup getCurrent() {
+    return current.lookup;
+  }
+
+  /**
+   * Returns a referenced current generation. This only retries (without
+   * blocking) if a swap happened in between.
+   */
+  private Generation acquire() {
+    while (true) {
+      final Generation generation = current;
+      if (generation.tryIncRef()) {
+        return generation;
+      }
+      if (generation == current) {
+        throw new IllegalStateException("this lookup is closed");
+      }
+    }
+  }
+
+  /**
+   * Drains and closes the current instance (if it implements {@link Closeable}).
+   * Subsequent lookups throw {@link IllegalStateException}.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (swapLock) {
+      if (!closed) {
+        closed = true;
+        final Generation generation = current;
+        generation.decRef();
+        generation.awaitDrained();
+        if (generation.lookup instanceof Closeable) {
+          ((Closeable) generation.lookup).close();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package org.apache.lucene.search.suggest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Builds a balanced ternary search tree bottom-up, in a single pass over keys
+ * sorted in the order of {@link #compare}, for the trees of this module. Nodes
+ * are <code>int</code> handles, <code>0</code> meaning none; subclasses create
+ * and link them.
+ *
+ * <p>The nodes for the character at position <code>d</code> of keys sharing
+ * the same <code>d</code> first characters are siblings: they are collected
+ * (in sorted order) while that prefix is the current one, and linked into a
+ * balanced binary search tree, the eq kid of their parent, as soon as the input
+ * moves past it. Only the siblings along the path of the current key are held,
+ * there is no recursion per character and every key is visited once. Siblings
+ * are linked bottom-up: when a node is linked, its eq subtree already is.
+ *
+ * @lucene.internal
+ */
+public abstract class TernaryTreeBuilder {
+  /** Siblings of the open levels, indexed by character position. */
+  private int[][] levels = new int[8][];
+  private int[] counts = new int[8];
+  private char[] previous = new char[8];
+  private int previousLength;
+
+  /**
+   * Compares two characters in the order of the tree; UTF-16 order unless
+   * overridden.
+   */
+  protected int compare(char c1, char c2) {
+    return c1 - c2;
+  }
+
+  /** Creates an unlinked node with the given split char; returns its handle. */
+  protected abstract int newNode(char splitchar);
+
+  /**
+   * Links <code>node</code> below <code>parent</code> (<code>0</code> for the
+   * root of the tree), with the given lo and hi kids. Called bottom-up: the
+   * kids, and the eq subtree of the node, are already linked.
+   */
+  protected abstract void link(int node, int parent, int lo, int hi);
+
+  /** Makes <code>root</code> the eq kid of <code>parent</code>. */
+  protected abstract void linkEq(int parent, int root);
+
+  /**
+   * Adds a key; keys must be added in sorted order. Returns the node the key
+   * ends at, for the caller to set its value, or <code>0</code> if the key is
+   * empty. Adding a key equal to the previous one returns the same node.
+   *
+   * @throws IllegalArgumentException if the key is smaller than the previous one.
+   */
+  protected final int addKey(CharSequence key) {
+    final int length = key.length();
+    if (length == 0) {
+      return 0;
+    }
+    final int max = Math.min(length, previousLength);
+    int common = 0;
+    while (common < max && compare(key.charAt(common), previous[common]) == 0) {
+      common++;
+    }
+    if (common < max ? compare(key.charAt(common), previous[common]) < 0 : length < previousLength) {
+      throw new IllegalArgumentException("Keys must be added in sorted order: "
+          + key + " < " + new String(previous, 0, previousLength));
+    }
+
+    if (common == length) {
+      return levels[length - 1][counts[length - 1] - 1];
+    }
+
+    closeLevels(common + 1);
+    if (length > levels.length) {
+      levels = Arrays.copyOf(levels, ArrayUtil.oversize(length, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+      counts = ArrayUtil.grow(counts, levels.length);
+    }
+    int node = 0;
+    for (int d = common; d < length; d++) {
+      node = newNode(key.charAt(d));
+      if (levels[d] == null) {
+        levels[d] = new int[4];
+      }
+      levels[d] = ArrayUtil.grow(levels[d], counts[d] + 1);
+      levels[d][counts[d]++] = node;
+    }
+
+    previous = ArrayUtil.grow(previous, length);
+    for (int d = common; d < length; d++) {
+      previous[d] = key.charAt(d);
+    }
+    previousLength = length;
+    return node;
+  }
+
+  /**
+   * Links the remaining levels and returns the root of the tree, or
+   * <code>0</code> if no keys were added. The builder is then empty again.
+   */
+  protected final int finishTree() {
+    closeLevels(1);
+    final int root = previousLength > 0 ? closeLevel(0) : 0;
+    previousLength = 0;
+    return root;
+  }
+
+  /** Closes all open levels at or deeper than <code>from</code>. */
+  private void closeLevels(int from) {
+    for (int d = previousLength - 1; d >= from; d--) {
+      closeLevel(d);
+    }
+  }
+
+  /**
+   * Links the siblings at level <code>d</code> and makes them the eq kid of
+   * their parent.
+   */
+  private int closeLevel(int d) {
+    final int parent = d > 0 ? levels[d - 1][counts[d - 1] - 1] : 0;
+    final int root = balanced(levels[d], 0, counts[d] - 1, parent);
+    counts[d] = 0;
+    if (parent != 0) {
+      linkEq(parent, root);
+    }
+    return root;
+  }
+
+  private int balanced(int[] siblings, int from, int to, int parent) {
+    if (from > to) {
+      return 0;
+    }
+    final int mid = (from + to) >>> 1;
+    final int node = siblings[mid];
+    link(node, parent, balanced(siblings, from, mid - 1, node), balanced(siblings, mid + 1, to, node));
+    return node;
+  }
+}
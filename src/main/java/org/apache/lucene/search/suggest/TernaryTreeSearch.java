@@ -0,0 +1,385 @@
+package org.apache.lucene.search.suggest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
+
+/**
+ * The searches shared by the ternary search trees of this module, over their
+ * nodes as seen through a few accessors. A node is an <code>int</code> handle,
+ * <code>0</code> meaning none; keys are not stored but rebuilt along the search
+ * path, so nodes need no parent links.
+ *
+ * <p>Searches start below a node found by the tree itself, with the key
+ * leading to it, so that trees keep their own comparison of characters.
+ *
+ * @lucene.internal
+ */
+public abstract class TernaryTreeSearch {
+
+  /** The weight of nodes without a key, unless {@link #hasKey} says otherwise. */
+  public static final long NO_DATA = Long.MIN_VALUE;
+
+  /** Returns the split char of <code>node</code>. */
+  protected abstract char splitchar(int node);
+
+  /** Returns the lo kid of <code>node</code>, or <code>0</code>. */
+  protected abstract int lo(int node);
+
+  /** Returns the eq kid of <code>node</code>, or <code>0</code>. */
+  protected abstract int eq(int node);
+
+  /** Returns the hi kid of <code>node</code>, or <code>0</code>. */
+  protected abstract int hi(int node);
+
+  /** Returns the weight of the key ending at <code>node</code>. */
+  protected abstract long weight(int node);
+
+  /**
+   * Returns an upper bound of the weights of all keys in the subtree rooted at
+   * <code>node</code>, lo and hi kids included.
+   */
+  protected abstract long maxWeight(int node);
+
+  /** Returns whether a key ends at <code>node</code>. */
+  protected boolean hasKey(int node) {
+    return weight(node) != NO_DATA;
+  }
+
+  /** Receives the keys found by {@link TernaryTreeSearch#prefixCompletion}. */
+  public static abstract class KeyCollector {
+    /**
+     * Collects the key in the first <code>length</code> chars of
+     * <code>key</code>, which is only valid during the call. Returns
+     * <code>true</code> to stop the search.
+     */
+    public abstract boolean collect(char[] key, int length, long weight);
+  }
+
+  /**
+   * Passes the keys beginning with <code>key</code>, which ends at
+   * <code>node</code>, to <code>collector</code> in the order of
+   * <code>TSTAutocomplete.prefixCompletion</code>: depth-first, each node
+   * before its hi, lo and eq subtrees, in that order.
+   */
+  public final void prefixCompletion(int node, CharSequence key, KeyCollector collector) {
+    char[] path = new char[key.length() + 16];
+    for (int i = 0; i < key.length(); i++) {
+      path[i] = key.charAt(i);
+    }
+    if (hasKey(node) && collector.collect(path, key.length(), weight(node))) {
+      return;
+    }
+    final int eqKid = eq(node);
+    if (eqKid == 0) {
+      return;
+    }
+
+    // Each stack entry is a node, the length of the path leading to it and,
+    // for eq kids, the parent node: nodes visited since an eq kid was pushed
+    // are the lo and hi subtrees of its parent, which may only have
+    // overwritten the parent's own char.
+    int[] nodes = new int[16];
+    int[] depths = new int[16];
+    int[] parents = new int[16];
+    int top = 0;
+    nodes[top] = eqKid;
+    depths[top++] = key.length();
+    while (top > 0) {
+      node = nodes[--top];
+      final int depth = depths[top];
+      if (parents[top] != 0) {
+        path[depth - 1] = splitchar(parents[top]);
+      }
+      path = ArrayUtil.grow(path, depth + 1);
+      path[depth] = splitchar(node);
+      if (hasKey(node) && collector.collect(path, depth + 1, weight(node))) {
+        return;
+      }
+      if (top + 3 > nodes.length) {
+        nodes = ArrayUtil.grow(nodes, top + 3);
+        depths = ArrayUtil.grow(depths, nodes.length);
+        parents = ArrayUtil.grow(parents, nodes.length);
+      }
+      int kid = eq(node);
+      if (kid != 0) {
+        nodes[top] = kid;
+        parents[top] = node;
+        depths[top++] = depth + 1;
+      }
+      kid = lo(node);
+      if (kid != 0) {
+        nodes[top] = kid;
+        parents[top] = 0;
+        depths[top++] = depth;
+      }
+      kid = hi(node);
+      if (kid != 0) {
+        nodes[top] = kid;
+        parents[top] = 0;
+        depths[top++] = depth;
+      }
+    }
+  }
+
+  /**
+   * Returns, in alphabetical order (in-order of the tree), the first
+   * <code>num</code> keys beginning with <code>key</code>, which ends at
+   * <code>node</code>, with their weights.
+   */
+  public final List<LookupResult> sortedMatchPrefix(int node, CharSequence key, int num) {
+    final List<LookupResult> result = new ArrayList<LookupResult>();
+    if (num <= 0) {
+      return result;
+    }
+    if (hasKey(node)) {
+      result.add(new LookupResult(key.toString(), weight(node)));
+    }
+
+    // a stack entry is a node to expand, or the bitwise complement of a node
+    // whose own key comes next, with the length of the path leading to it
+    char[] path = new char[key.length() + 16];
+    for (int i = 0; i < key.length(); i++) {
+      path[i] = key.charAt(i);
+    }
+    int[] stack = new int[16];
+    int[] depths = new int[16];
+    int top = 0;
+    final int eqKid = eq(node);
+    if (eqKid != 0) {
+      stack[top] = eqKid;
+      depths[top++] = key.length();
+    }
+    while (top > 0 && result.size() < num) {
+      final int entry = stack[--top];
+      final int depth = depths[top];
+      if (entry < 0) {
+        node = ~entry;
+        path = ArrayUtil.grow(path, depth + 1);
+        path[depth] = splitchar(node);
+        if (hasKey(node)) {
+          result.add(new LookupResult(new String(path, 0, depth + 1), weight(node)));
+        }
+        continue;
+      }
+      if (top + 4 > stack.length) {
+        stack = ArrayUtil.grow(stack, top + 4);
+        depths = ArrayUtil.grow(depths, stack.length);
+      }
+      int kid = hi(entry);
+      if (kid != 0) {
+        stack[top] = kid;
+        depths[top++] = depth;
+      }
+      kid = eq(entry);
+      if (kid != 0) {
+        stack[top] = kid;
+        depths[top++] = depth + 1;
+      }
+      stack[top] = ~entry;
+      depths[top++] = depth;
+      kid = lo(entry);
+      if (kid != 0) {
+        stack[top] = kid;
+        depths[top++] = depth;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * A candidate of the best-first search in {@link #topMatchPrefix} and
+   * {@link #fuzzyMatchPrefix}: either the key of a single node, with its exact
+   * weight, or a whole subtree, with the upper bound of its weights.
+   */
+  private static final class Candidate {
+    final int node;
+    /** The key up to (excluding) the node's split char; the key for data. */
+    final String prefix;
+    final boolean subtree;
+    final long weight;
+    final int seq;
+    /**
+     * The automaton state after <code>prefix</code>, or {@link #MATCHED} once
+     * the prefix was accepted.
+     */
+    final int state;
+    /** A high surrogate not yet fed to the automaton, or <code>0</code>. */
+    final char pending;
+
+    Candidate(int node, String prefix, boolean subtree, long weight, int seq, int state, char pending) {
+      this.node = node;
+      this.prefix = prefix;
+      this.subtree = subtree;
+      this.weight = weight;
+      this.seq = seq;
+      this.state = state;
+      this.pending = pending;
+    }
+  }
+
+  /** State of candidates below an accepted prefix: everything matches. */
+  private static final int MATCHED = -2;
+
+  /**
+   * Highest weights first; for equal weights single keys first (nothing in a
+   * subtree can beat them), then in the order they were queued.
+   */
+  private static final Comparator<Candidate> BEST_FIRST = new Comparator<Candidate>() {
+    @Override
+    public int compare(Candidate a, Candidate b) {
+      if (a.weight != b.weight) {
+        return a.weight > b.weight ? -1 : 1;
+      }
+      if (a.subtree != b.subtree) {
+        return a.subtree ? 1 : -1;
+      }
+      return a.seq - b.seq;
+    }
+  };
+
+  /**
+   * Returns the <code>num</code> keys beginning with <code>key</code>, which
+   * ends at <code>node</code>, that have the highest weights, in descending
+   * weight order.
+   * <p>
+   * This is a best-first search over the max weights of subtrees, which stops
+   * as soon as enough keys have been found.
+   */
+  public final List<LookupResult> topMatchPrefix(int node, String key, int num) {
+    if (num <= 0) {
+      return new ArrayList<LookupResult>();
+    }
+    final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(11, BEST_FIRST);
+    if (hasKey(node)) {
+      queue.add(new Candidate(node, key, false, weight(node), 0, MATCHED, (char) 0));
+    }
+    final int eqKid = eq(node);
+    if (eqKid != 0) {
+      queue.add(new Candidate(eqKid, key, true, maxWeight(eqKid), 1, MATCHED, (char) 0));
+    }
+    return bestFirst(queue, null, false, num);
+  }
+
+  /**
+   * Returns the <code>num</code> keys of the tree rooted at <code>root</code>
+   * (<code>0</code> if empty) with the highest weights that begin with a prefix
+   * within <code>maxEdits</code> edits (of code points, including
+   * transpositions) of <code>key</code>, in descending weight order. If
+   * <code>lowerCase</code>, the key and split chars are compared in lower case.
+   * <p>
+   * A Levenshtein automaton for <code>key</code> is stepped along the
+   * branches of a best-first search over the max weights of subtrees: a branch
+   * is dropped as soon as the automaton dies, and the whole subtree below a
+   * prefix it accepts matches without further stepping.
+   */
+  public final List<LookupResult> fuzzyMatchPrefix(int root, CharSequence key, int maxEdits,
+      boolean lowerCase, int num) {
+    if (maxEdits < 0 || maxEdits > LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE) {
+      throw new IllegalArgumentException("maxEdits must be between 0 and "
+          + LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE + ": " + maxEdits);
+    }
+    if (root == 0 || num <= 0) {
+      return new ArrayList<LookupResult>();
+    }
+    final char[] chars = new char[key.length()];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = lowerCase ? Character.toLowerCase(key.charAt(i)) : key.charAt(i);
+    }
+    final CharacterRunAutomaton matcher = new CharacterRunAutomaton(
+        new LevenshteinAutomata(new String(chars), true).toAutomaton(maxEdits));
+    int state = matcher.getInitialState();
+    if (matcher.isAccept(state)) {
+      state = MATCHED;
+    }
+    final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(11, BEST_FIRST);
+    queue.add(new Candidate(root, "", true, maxWeight(root), 0, state, (char) 0));
+    return bestFirst(queue, matcher, lowerCase, num);
+  }
+
+  /**
+   * Polls the best candidates from <code>queue</code>, expanding subtrees,
+   * until <code>num</code> keys are found.
+   */
+  private List<LookupResult> bestFirst(PriorityQueue<Candidate> queue,
+      CharacterRunAutomaton matcher, boolean lowerCase, int num) {
+    final List<LookupResult> result = new ArrayList<LookupResult>();
+    int seq = queue.size();
+    while (!queue.isEmpty()) {
+      final Candidate top = queue.poll();
+      final int node = top.node;
+      if (!top.subtree) {
+        result.add(new LookupResult(top.prefix, top.weight));
+        if (result.size() == num) {
+          break;
+        }
+        continue;
+      }
+      int kid = lo(node);
+      if (kid != 0) {
+        queue.add(new Candidate(kid, top.prefix, true, maxWeight(kid), seq++, top.state, top.pending));
+      }
+      kid = hi(node);
+      if (kid != 0) {
+        queue.add(new Candidate(kid, top.prefix, true, maxWeight(kid), seq++, top.state, top.pending));
+      }
+
+      // feed the split char to the automaton, whole code points at a time
+      final char splitchar = splitchar(node);
+      int state = top.state;
+      char pending = 0;
+      if (state != MATCHED) {
+        final char c = lowerCase ? Character.toLowerCase(splitchar) : splitchar;
+        if (top.pending != 0) {
+          state = matcher.step(state, Character.isLowSurrogate(c)
+              ? Character.toCodePoint(top.pending, c) : top.pending);
+          if (state != -1 && !Character.isLowSurrogate(c)) {
+            state = matcher.step(state, c);
+          }
+        } else if (Character.isHighSurrogate(c)) {
+          pending = c;
+        } else {
+          state = matcher.step(state, c);
+        }
+        if (state == -1) {
+          continue;
+        }
+        if (pending == 0 && matcher.isAccept(state)) {
+          state = MATCHED;
+        }
+      }
+      final String key = top.prefix + splitchar;
+      if (state == MATCHED && hasKey(node)) {
+        queue.add(new Candidate(node, key, false, weight(node), seq++, MATCHED, (char) 0));
+      }
+      kid = eq(node);
+      if (kid != 0) {
+        queue.add(new Candidate(kid, key, true, maxWeight(kid), seq++, state, pending));
+      }
+    }
+    return result;
+  }
+}
@@ -19,10 +19,12 @@ package org.apache.lucene.search.suggest.fst;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.PriorityQueue;
 
 import org.apache.lucene.util.*;
 import org.apache.lucene.util.fst.FST;
 import org.apache.lucene.util.fst.FST.Arc;
+import org.apache.lucene.util.packed.PackedInts;
 
 /**
  * Finite state automata based implementation of "autocomplete" functionality.
@@ -31,10 +33,6 @@ import org.apache.lucene.util.fst.FST.Arc;
  * @lucene.experimental
  */
 
-// TODO: we could store exact weights as outputs from the FST (int4 encoded
-// floats). This would provide exact outputs from this method and to some
-// degree allowed post-sorting on a more fine-grained weight.
-
 // TODO: support for Analyzers (infix suggestions, synonyms?)
 
 public class FSTCompletion {
@@ -47,10 +45,20 @@ public class FSTCompletion {
     /** source bucket (weight) of the suggestion */
     //bucket：建议的权重，可以理解为在多大的范围（编辑距离）内的建议
     public final int bucket;
+    /** 
+     * exact weight of the suggestion if the automaton has exact weights,
+     * otherwise equal to {@link #bucket} 
+     */
+    public final long weight;
 
     Completion(BytesRef key, int bucket) {
+      this(key, bucket, bucket);
+    }
+
+    Completion(BytesRef key, int bucket, long weight) {
       this.utf8 = BytesRef.deepCopyOf(key);
       this.bucket = bucket;
+      this.weight = weight;
     }
 
     @Override
@@ -75,6 +83,20 @@ public class FSTCompletion {
    */
   private static final ArrayList<Completion> EMPTY_RESULT = new ArrayList<Completion>();
 
+  /**
+   * Orders completions by increasing exact weight and then by decreasing UTF-8
+   * order, so that the head of a queue is the worst completion.
+   */
+  private static final Comparator<Completion> WORST_FIRST = new Comparator<Completion>() {
+    @Override
+    public int compare(Completion a, Completion b) {
+      if (a.weight != b.weight) {
+        return a.weight < b.weight ? -1 : 1;
+      }
+      return b.utf8.compareTo(a.utf8);
+    }
+  };
+
   /**
    * Finite state automaton encoding all the lookup terms. See class notes for
    * details.
@@ -89,6 +111,29 @@ public class FSTCompletion {
    */
   private final Arc<Object>[] rootArcs;
 
+  /**
+   * Exact weights (offset by {@link #minWeight}) indexed by term ordinal or
+   * <code>null</code> if the automaton has no exact weights.
+   */
+  private final PackedInts.Reader weights;
+
+  /**
+   * The smallest exact weight.
+   */
+  private final long minWeight;
+
+  /**
+   * Per-thread traversal state, reused across lookups so that walking the
+   * automaton does not allocate. Threads only hold it weakly, so it does not
+   * keep the automaton of an unreachable completion alive.
+   */
+  private final CloseableThreadLocal<TraversalContext> contexts = new CloseableThreadLocal<TraversalContext>() {
+    @Override
+    protected TraversalContext initialValue() {
+      return new TraversalContext(automaton);
+    }
+  };
+
   /**
    * @see #FSTCompletion(FST, boolean, boolean)
    * 是否在结果中的第一个位置存放完全匹配的那个结果
@@ -114,9 +159,28 @@ public class FSTCompletion {
    *          Find and push an exact match to the first position of the result
    *          list if found.
    */
-  @SuppressWarnings("unchecked")
   public FSTCompletion(FST<Object> automaton, boolean higherWeightsFirst, boolean exactFirst) {
+    this(automaton, null, 0, higherWeightsFirst, exactFirst);
+  }
+
+  /**
+   * Constructs an FSTCompletion with exact weights.
+   * @param automaton
+   *          Automaton with term ordinals as outputs if <code>weights</code> is
+   *          not <code>null</code>. See {@link FSTCompletionBuilder}.
+   * @param weights
+   *          Exact weights (minus <code>minWeight</code>) indexed by term
+   *          ordinal or <code>null</code> if there are no exact weights.
+   * @param minWeight
+   *          The smallest exact weight.
+   * @see #FSTCompletion(FST, boolean, boolean)
+   */
+  @SuppressWarnings("unchecked")
+  public FSTCompletion(FST<Object> automaton, PackedInts.Reader weights, long minWeight,
+      boolean higherWeightsFirst, boolean exactFirst) {
     this.automaton = automaton;
+    this.weights = automaton == null ? null : weights;
+    this.minWeight = minWeight;
     if (automaton != null) {
       this.rootArcs = cacheRootArcs(automaton);
     } else {
@@ -179,22 +243,23 @@ public class FSTCompletion {
    *         match was found.
    */
   private int getExactMatchStartingFromRootArc(
-      int rootArcIndex, BytesRef utf8) {
+      int rootArcIndex, BytesRef utf8, TraversalContext context, Arc<Object>[] prefixArcs,
+      long[] prefixOutputs) {
     // Get the UTF-8 bytes representation of the input key.
     try {
-      final FST.Arc<Object> scratch = new FST.Arc<Object>();
-      FST.BytesReader fstReader = automaton.getBytesReader(0);
       for (; rootArcIndex < rootArcs.length; rootArcIndex++) {
         final FST.Arc<Object> rootArc = rootArcs[rootArcIndex];
-        final FST.Arc<Object> arc = scratch.copyFrom(rootArc);
         
         // Descend into the automaton using the key as prefix.通过前缀递归下降寻找
-        if (descendWithPrefix(arc, utf8)) {//如果通过前缀能找到
-          automaton.readFirstTargetArc(arc, arc, fstReader);
-          if (arc.label == FST.END_LABEL) {
-            // Normalize prefix-encoded weight.
-            return rootArc.label;
+        // The arc matching the last byte of the key leads to a final state
+        // if and only if the key itself is in the automaton.
+        final FST.Arc<Object> arc = descend(rootArcIndex, utf8, context, prefixArcs, prefixOutputs);
+        if (arc != null && arc.isFinal()) {
+          if (weights != null) {
+            context.exactWeight = weight(context.prefixOutput, arc.nextFinalOutput);
           }
+          // Normalize prefix-encoded weight.
+          return rootArc.label;
         }
       }
     } catch (IOException e) {
@@ -229,9 +294,11 @@ public class FSTCompletion {
         // suggestions would be to add them with a constant weight -- this saves
         // unnecessary
         // traversals and sorting.
-        return lookupSortedAlphabetically(keyUtf8, num);
+        return lookupSortedAlphabetically(keyUtf8, num, null, null);
+      } else if (weights != null) {
+        return lookupSortedByExactWeight(keyUtf8, num, null, null);
       } else {
-        return lookupSortedByWeight(keyUtf8, num, false);
+        return lookupSortedByWeight(keyUtf8, num, null, null);
       }
     } catch (IOException e) {
       // Should never happen, but anyway.
@@ -241,18 +308,37 @@ public class FSTCompletion {
 
   /**
    * Lookup suggestions sorted alphabetically <b>if weights are not
-   * constant</b>. This is a workaround: in general, use constant weights for
-   * alphabetically sorted result.
+   * constant</b>. The completions of every bucket are enumerated in UTF-8 order
+   * and merged, stopping after <code>num</code> results. Suggestions present in
+   * more than one bucket are returned once per bucket, higher buckets first.
    */
-  private List<Completion> lookupSortedAlphabetically(BytesRef key, int num)
-      throws IOException {
-    // Greedily get num results from each weight branch.
-    List<Completion> res = lookupSortedByWeight(key, num, true);
+  private List<Completion> lookupSortedAlphabetically(BytesRef key, int num,
+      Arc<Object>[] prefixArcs, long[] prefixOutputs) throws IOException {
+    final ArrayList<Completion> res = new ArrayList<Completion>(Math.min(10, num));
 
-    // Sort and trim.
-    Collections.sort(res);
-    if (res.size() > num) {
-      res = res.subList(0, num);
+    final TraversalContext context = contexts.get();
+    final PriorityQueue<BucketCursor> merge = context.merge;
+    try {
+      for (int i = 0; i < rootArcs.length; i++) {
+        final Arc<Object> arc = descend(i, key, context, prefixArcs, prefixOutputs);
+        if (arc != null) {
+          final BucketCursor cursor = context.cursor(this, i);
+          cursor.reset(this, arc, key, context.prefixOutput);
+          if (cursor.next(this)) {
+            merge.add(cursor);
+          }
+        }
+      }
+
+      while (res.size() < num && !merge.isEmpty()) {
+        final BucketCursor cursor = merge.poll();
+        res.add(cursor.completion(this));
+        if (cursor.next(this)) {
+          merge.add(cursor);
+        }
+      }
+    } finally {
+      merge.clear();
     }
     return res;
   }
@@ -260,43 +346,62 @@ public class FSTCompletion {
   /**
    * Lookup suggestions sorted by weight (descending order).
    * 获得查找建议（降序排列），这个才是核心方法
-   * @param collectAll
-   *          If <code>true</code>, the routine terminates immediately when
-   *          <code>num</code> suggestions have been collected. If
-   *          <code>false</code>, it will collect suggestions from all weight
-   *          arcs (needed for {@link #lookupSortedAlphabetically}.
+   * @param prefixArcs
+   *          If not <code>null</code>, the arcs matching the last byte of the
+   *          key in each bucket (<code>null</code> for buckets without such a
+   *          path), as tracked by a {@link LookupSession}.
+   * @param prefixOutputs
+   *          The sums of outputs along the paths to <code>prefixArcs</code>.
    */
   private ArrayList<Completion> lookupSortedByWeight(BytesRef key, 
-      int num, boolean collectAll) throws IOException {
+      int num, Arc<Object>[] prefixArcs, long[] prefixOutputs) throws IOException {
     // Don't overallocate the results buffers. This also serves the purpose of
     // allowing the user of this class to request all matches using Integer.MAX_VALUE as
     // the number of results.
     final ArrayList<Completion> res = new ArrayList<Completion>(Math.min(10, num));
 
-    final BytesRef output = BytesRef.deepCopyOf(key);
+    final TraversalContext context = contexts.get();
+    final BytesRef output = context.output;
+    output.copyBytes(key);
+
+    // Position of the exact match in res, if it has been collected while
+    // walking the buckets (an exact match is always the first completion
+    // collected from its bucket).
+    int exactMatchIndex = -1;
     for (int i = 0; i < rootArcs.length; i++) {
       final FST.Arc<Object> rootArc = rootArcs[i];
-      final FST.Arc<Object> arc = new FST.Arc<Object>().copyFrom(rootArc);
       //对rootArc的每个弧，做递归下降的前缀寻找
       // Descend into the automaton using the key as prefix.
-      if (descendWithPrefix(arc, key)) {
+      final FST.Arc<Object> arc = descend(i, key, context, prefixArcs, prefixOutputs);
+      if (arc != null) {
+        if (exactMatchIndex < 0 && arc.isFinal()) {
+          exactMatchIndex = res.size();
+        }
+
         // A subgraph starting from the current node has the completions
         // of the key prefix. The arc we're at is the last key's byte,
         // so we will collect it too.
         output.length = key.length - 1;
-        if (collect(res, num, rootArc.label, output, arc) && !collectAll) {
+        if (collect(context, res, null, num, rootArc.label, output, arc)) {
           // We have enough suggestions to return immediately. Keep on looking
           // for an
           // exact match, if requested.
           if (exactFirst) {
-            if (!checkExistingAndReorder(res, key)) {
-              int exactMatchBucket = getExactMatchStartingFromRootArc(i, key);
+            if (exactMatchIndex >= 0) {
+              // Already collected; push it up front so that the ordering
+              // remains identical with the exception of the exact match.
+              res.add(0, res.remove(exactMatchIndex));
+            } else {
+              // Buckets up to i were checked during the walk above.
+              int exactMatchBucket = getExactMatchStartingFromRootArc(
+                  i + 1, key, context, prefixArcs, prefixOutputs);
               if (exactMatchBucket != -1) {
                 // Insert as the first result and truncate at num.
                 while (res.size() >= num) {
                   res.remove(res.size() - 1);
                 }
-                res.add(0, new Completion(key, exactMatchBucket));
+                res.add(0, new Completion(key, exactMatchBucket, 
+                    weights == null ? exactMatchBucket : context.exactWeight));
               }
             }
           }
@@ -308,29 +413,90 @@ public class FSTCompletion {
   }
   
   /**
-   * Checks if the list of
-   * {@link org.apache.lucene.search.suggest.Lookup.LookupResult}s already has a
-   * <code>key</code>. If so, reorders that
-   * {@link org.apache.lucene.search.suggest.Lookup.LookupResult} to the first
-   * position.
-   * 
-   * @return Returns <code>true<code> if and only if <code>list</code> contained
-   *         <code>key</code>.
+   * Lookup suggestions sorted by bucket and then by exact weight (descending
+   * order). Every bucket's subtree is traversed completely, keeping the best
+   * completions in a bounded heap.
+   */
+  private ArrayList<Completion> lookupSortedByExactWeight(BytesRef key, 
+      int num, Arc<Object>[] prefixArcs, long[] prefixOutputs) throws IOException {
+    final ArrayList<Completion> res = new ArrayList<Completion>(Math.min(10, num));
+
+    final TraversalContext context = contexts.get();
+    final BytesRef output = context.output;
+    output.copyBytes(key);
+
+    final PriorityQueue<Completion> queue = context.queue;
+    Completion exactMatch = null;
+    for (int i = 0; i < rootArcs.length; i++) {
+      if (res.size() >= num && (!exactFirst || exactMatch != null)) {
+        break;
+      }
+
+      final FST.Arc<Object> arc = descend(i, key, context, prefixArcs, prefixOutputs);
+      if (arc == null) {
+        continue;
+      }
+
+      if (exactFirst && exactMatch == null && arc.isFinal()) {
+        exactMatch = new Completion(key, rootArcs[i].label, 
+            weight(context.prefixOutput, arc.nextFinalOutput));
+      }
+
+      if (res.size() < num) {
+        output.length = key.length - 1;
+        collect(context, res, queue, num - res.size(), rootArcs[i].label, output, arc);
+
+        // The queue yields the worst completion first.
+        final int start = res.size();
+        while (!queue.isEmpty()) {
+          res.add(queue.poll());
+        }
+        Collections.reverse(res.subList(start, res.size()));
+      }
+    }
+
+    if (exactMatch != null) {
+      // Push the exact match up front, keeping the order of the others.
+      int index = -1;
+      for (int i = 0; i < res.size() && index < 0; i++) {
+        if (res.get(i).utf8.bytesEquals(key)) {
+          index = i;
+        }
+      }
+      if (index >= 0) {
+        res.add(0, res.remove(index));
+      } else {
+        while (res.size() >= num) {
+          res.remove(res.size() - 1);
+        }
+        res.add(0, exactMatch);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Returns the arc matching the last byte of <code>utf8</code> in bucket
+   * <code>rootArcIndex</code> (in the context's scratch arc), or
+   * <code>null</code> if the bucket has no such path. Uses
+   * <code>prefixArcs</code> (and <code>prefixOutputs</code>) instead of
+   * descending from the root, if given. The sum of outputs along the path is
+   * left in the context's <code>prefixOutput</code>.
    */
-  private boolean checkExistingAndReorder(ArrayList<Completion> list, BytesRef key) {
-    // We assume list does not have duplicates (because of how the FST is created).
-    for (int i = list.size(); --i >= 0;) {
-      if (key.equals(list.get(i).utf8)) {
-        // Key found. Unless already at i==0, remove it and push up front so
-        // that the ordering
-        // remains identical with the exception of the exact match.
-        list.add(0, list.remove(i));
-        return true;
+  private Arc<Object> descend(int rootArcIndex, BytesRef utf8,
+      TraversalContext context, Arc<Object>[] prefixArcs, long[] prefixOutputs) throws IOException {
+    if (prefixArcs != null) {
+      final Arc<Object> prefixArc = prefixArcs[rootArcIndex];
+      if (prefixArc == null) {
+        return null;
       }
+      context.prefixOutput = prefixOutputs[rootArcIndex];
+      return context.scratch.copyFrom(prefixArc);
     }
-    return false;
+    final Arc<Object> arc = context.scratch.copyFrom(rootArcs[rootArcIndex]);
+    return descendWithPrefix(arc, utf8, context) ? arc : null;
   }
-  
+
   /**
    * Descend along the path starting at <code>arc</code> and going through bytes
    * in the argument.
@@ -343,56 +509,267 @@ public class FSTCompletion {
    *         matching last byte of <code>term</code>. <code>false</code> is
    *         returned if no such prefix exists.
    */
-  private boolean descendWithPrefix(Arc<Object> arc, BytesRef utf8)
-      throws IOException {
+  private boolean descendWithPrefix(Arc<Object> arc, BytesRef utf8,
+      TraversalContext context) throws IOException {
+    final FST.BytesReader fstReader = context.fstReader;
+    long prefixOutput = weights == null ? 0 : OrdinalOutputs.ordinal(arc.output);
     final int max = utf8.offset + utf8.length;//最大寻找长度。
-    // Cannot save as instance var since multiple threads
-    // can use FSTCompletion at once...
-    final FST.BytesReader fstReader = automaton.getBytesReader(0);
     for (int i = utf8.offset; i < max; i++) {
       if (automaton.findTargetArc(utf8.bytes[i] & 0xff, arc, arc, fstReader) == null) {
         // No matching prefixes, return an empty result.
     	// 因为是寻找前缀，所以如果前面的字符没有找到，就肯定不会找到了，直接返回
         return false;
       }
+      if (weights != null) {
+        prefixOutput += OrdinalOutputs.ordinal(arc.output);
+      }
     }
+    context.prefixOutput = prefixOutput;
     return true;
   }
+
+  /**
+   * Returns the exact weight of the term whose path outputs sum up to
+   * <code>prefixOutput</code> plus <code>finalOutput</code>.
+   */
+  private long weight(long prefixOutput, Object finalOutput) {
+    final long ord = prefixOutput + OrdinalOutputs.ordinal(finalOutput);
+    return minWeight + weights.get((int) ord);
+  }
   
   /**
-   * Recursive collect lookup results from the automaton subgraph starting at
-   * <code>arc</code>.
+   * Collect lookup results from the automaton subgraph starting at
+   * <code>arc</code>. The subgraph is walked depth-first using the arc stack
+   * of the traversal context, so no objects other than the results are
+   * allocated.
    * 
+   * @param queue
+   *          If not <code>null</code>, the whole subgraph is traversed and the
+   *          <code>num</code> completions with the highest exact weights are
+   *          kept in this queue. Otherwise completions are added to
+   *          <code>res</code> in traversal order.
    * @param num
    *          Maximum number of results needed (early termination).
    */
-  private boolean collect(List<Completion> res, int num, int bucket,
+  private boolean collect(TraversalContext context, List<Completion> res, 
+      PriorityQueue<Completion> queue, int num, int bucket,
       BytesRef output, Arc<Object> arc) throws IOException {
-    if (output.length == output.bytes.length) {
-      output.bytes = ArrayUtil.grow(output.bytes);
-    }
     assert output.offset == 0;
-    output.bytes[output.length++] = (byte) arc.label;
-    FST.BytesReader fstReader = automaton.getBytesReader(0);
-    automaton.readFirstTargetArc(arc, arc, fstReader);
+    final FST.BytesReader fstReader = context.fstReader;
+    final int base = output.length;
+    final boolean exact = weights != null;
+
+    // Level 0 is the arc matching the last byte of the prefix; level n holds
+    // the arc currently visited n bytes below it. outputs[n] is the sum of
+    // outputs along the path up to and including the arc at level n.
+    Arc<Object>[] stack = context.stack(1);
+    context.outputs[0] = context.prefixOutput;
+    append(output, base, arc.label);
+    automaton.readFirstTargetArc(arc, stack[1], fstReader);
+    int level = 1;
     while (true) {
-      if (arc.label == FST.END_LABEL) {
-        res.add(new Completion(output, bucket));
-        if (res.size() >= num) return true;
+      final Arc<Object> current = stack[level];
+      if (current.label == FST.END_LABEL) {
+        output.length = base + level;
+        if (queue == null) {
+          res.add(new Completion(output, bucket,
+              exact ? weight(context.outputs[level - 1], current.output) : bucket));
+          if (res.size() >= num) return true;
+        } else {
+          // Completions are visited in increasing UTF-8 order, so a completion
+          // with the same weight as the worst one collected cannot beat it.
+          final long weight = weight(context.outputs[level - 1], current.output);
+          if (queue.size() < num || weight > queue.peek().weight) {
+            queue.add(new Completion(output, bucket, weight));
+            if (queue.size() > num) {
+              queue.poll();
+            }
+          }
+        }
       } else {
-        int save = output.length;
-        if (collect(res, num, bucket, output, new Arc<Object>().copyFrom(arc))) {
+        append(output, base + level, current.label);
+        stack = context.stack(level + 1);
+        if (exact) {
+          context.outputs[level] = context.outputs[level - 1] + OrdinalOutputs.ordinal(current.output);
+        }
+        automaton.readFirstTargetArc(current, stack[++level], fstReader);
+        continue;
+      }
+
+      // Move on to the next sibling, going up as levels are exhausted.
+      while (stack[level].isLast()) {
+        if (--level == 0) {
+          return false;
+        }
+      }
+      automaton.readNextArc(stack[level], fstReader);
+    }
+  }
+
+  /** Sets the byte at <code>index</code>, growing the buffer if needed. */
+  private static void append(BytesRef output, int index, int label) {
+    if (index >= output.bytes.length) {
+      output.bytes = ArrayUtil.grow(output.bytes, index + 1);
+    }
+    output.bytes[index] = (byte) label;
+  }
+
+  /**
+   * Orders cursors by their current completion (UTF-8 order) and then by
+   * bucket, highest first.
+   */
+  private static final Comparator<BucketCursor> CURSOR_ORDER = new Comparator<BucketCursor>() {
+    @Override
+    public int compare(BucketCursor a, BucketCursor b) {
+      final int cmp = a.output.compareTo(b.output);
+      return cmp != 0 ? cmp : a.rootArcIndex - b.rootArcIndex;
+    }
+  };
+
+  /**
+   * Enumerates the completions of a key within a single bucket in UTF-8 order,
+   * one at a time. This is the resumable counterpart of
+   * {@link FSTCompletion#collect}.
+   * <p>
+   * Cursors are cached in the per-thread {@link TraversalContext}, so they do
+   * not reference their completion, which is passed to every call instead.
+   */
+  private static final class BucketCursor {
+    final int rootArcIndex;
+    final BytesRef output = new BytesRef();
+    private final FST.BytesReader fstReader;
+    private Arc<Object>[] stack = TraversalContext.newArcs(8, null);
+    private long[] outputs = new long[stack.length];
+    private int base;
+    private int level;
+    private boolean emitted;
+
+    BucketCursor(FST<Object> automaton, int rootArcIndex) {
+      this.fstReader = automaton.getBytesReader(0);
+      this.rootArcIndex = rootArcIndex;
+    }
+
+    /**
+     * Positions the cursor before the first completion below <code>arc</code>,
+     * the arc matching the last byte of <code>key</code>.
+     */
+    void reset(FSTCompletion completion, Arc<Object> arc, BytesRef key, long prefixOutput) throws IOException {
+      assert key.length > 0;
+      output.copyBytes(key);
+      base = key.length - 1;
+      stack[0].copyFrom(arc);
+      outputs[0] = prefixOutput;
+      completion.automaton.readFirstTargetArc(stack[0], stack[1], fstReader);
+      level = 1;
+      emitted = false;
+    }
+
+    /**
+     * Advances to the next completion and returns <code>true</code>, or
+     * returns <code>false</code> if there are no more completions.
+     */
+    boolean next(FSTCompletion completion) throws IOException {
+      final FST<Object> automaton = completion.automaton;
+      if (level == 0) {
+        return false;
+      }
+      if (emitted) {
+        // Move on to the next sibling, going up as levels are exhausted.
+        while (stack[level].isLast()) {
+          if (--level == 0) {
+            return false;
+          }
+        }
+        automaton.readNextArc(stack[level], fstReader);
+      }
+
+      while (true) {
+        final Arc<Object> current = stack[level];
+        if (current.label == FST.END_LABEL) {
+          output.length = base + level;
+          emitted = true;
           return true;
         }
-        output.length = save;
+        append(output, base + level, current.label);
+        if (level + 1 >= stack.length) {
+          stack = TraversalContext.newArcs(
+              ArrayUtil.oversize(level + 2, RamUsageEstimator.NUM_BYTES_OBJECT_REF), stack);
+          outputs = ArrayUtil.grow(outputs, stack.length);
+        }
+        if (completion.weights != null) {
+          outputs[level] = outputs[level - 1] + OrdinalOutputs.ordinal(current.output);
+        }
+        automaton.readFirstTargetArc(current, stack[++level], fstReader);
       }
-      
-      if (arc.isLast()) {
-        break;
+    }
+
+    /** Returns the current completion. */
+    Completion completion(FSTCompletion completion) {
+      final int bucket = completion.rootArcs[rootArcIndex].label;
+      return new Completion(output, bucket, completion.weights == null
+          ? bucket : completion.weight(outputs[level - 1], stack[level].output));
+    }
+  }
+
+  /**
+   * Reusable state for walking the automaton: a bytes reader, an arc stack
+   * and the output buffer. Instances are confined to a single thread.
+   */
+  private static final class TraversalContext {
+    final FST.BytesReader fstReader;
+    final Arc<Object> scratch = new Arc<Object>();
+    final BytesRef output = new BytesRef();
+    final PriorityQueue<Completion> queue = new PriorityQueue<Completion>(11, WORST_FIRST);
+    final PriorityQueue<BucketCursor> merge = new PriorityQueue<BucketCursor>(11, CURSOR_ORDER);
+    private BucketCursor[] cursors = new BucketCursor[0];
+    private Arc<Object>[] stack = newArcs(8, null);
+
+    /** Sums of outputs along the path, parallel to the arc stack. */
+    long[] outputs = new long[stack.length];
+
+    /** Sum of outputs along the path to the arc returned by a descent. */
+    long prefixOutput;
+
+    /** Exact weight of the last exact match found. */
+    long exactWeight;
+
+    TraversalContext(FST<Object> automaton) {
+      this.fstReader = automaton == null ? null : automaton.getBytesReader(0);
+    }
+
+    /** Returns the arc stack, with room for at least <code>level + 1</code> arcs. */
+    Arc<Object>[] stack(int level) {
+      if (level >= stack.length) {
+        stack = newArcs(ArrayUtil.oversize(level + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF), stack);
+        outputs = ArrayUtil.grow(outputs, stack.length);
+      }
+      return stack;
+    }
+
+    /** Returns the (reused) cursor over bucket <code>rootArcIndex</code>. */
+    BucketCursor cursor(FSTCompletion completion, int rootArcIndex) {
+      if (cursors.length != completion.rootArcs.length) {
+        cursors = new BucketCursor[completion.rootArcs.length];
+      }
+      if (cursors[rootArcIndex] == null) {
+        cursors[rootArcIndex] = new BucketCursor(completion.automaton, rootArcIndex);
+      }
+      return cursors[rootArcIndex];
+    }
+
+    @SuppressWarnings({"rawtypes","unchecked"})
+    static Arc<Object>[] newArcs(int size, Arc<Object>[] previous) {
+      final Arc<Object>[] arcs = new Arc[size];
+      int i = 0;
+      if (previous != null) {
+        System.arraycopy(previous, 0, arcs, 0, previous.length);
+        i = previous.length;
+      }
+      for (; i < arcs.length; i++) {
+        arcs[i] = new Arc<Object>();
       }
-      automaton.readNextArc(arc, fstReader);
+      return arcs;
     }
-    return false;
   }
 
   /**
@@ -407,7 +784,155 @@ public class FSTCompletion {
    * no exact match exists.
    */
   public int getBucket(CharSequence key) {
-    return getExactMatchStartingFromRootArc(0, new BytesRef(key));
+    if (automaton == null) {
+      return -1;
+    }
+    return getExactMatchStartingFromRootArc(0, new BytesRef(key), contexts.get(), null, null);
+  }
+
+  /**
+   * Returns the exact weight of a given key or <code>null</code> if no exact
+   * match exists or the automaton has no exact weights.
+   */
+  public Long getWeight(CharSequence key) {
+    if (weights == null) {
+      return null;
+    }
+    final TraversalContext context = contexts.get();
+    if (getExactMatchStartingFromRootArc(0, new BytesRef(key), context, null, null) == -1) {
+      return null;
+    }
+    return context.exactWeight;
+  }
+
+  /**
+   * Creates a new {@link LookupSession} for interactive completion. The session
+   * keeps the arcs reached in every bucket for the current key so that each
+   * typed character costs one transition per bucket.
+   */
+  public LookupSession<Completion> newSession() {
+    return new Session();
+  }
+
+  /**
+   * A {@link LookupSession} tracking, for every depth of the current key, the
+   * arc reached in each bucket.
+   */
+  private final class Session extends LookupSession<Completion> {
+    private final FST.BytesReader fstReader =
+        automaton == null ? null : automaton.getBytesReader(0);
+
+    /**
+     * <code>levels[d][i]</code> is the arc matching byte <code>d - 1</code> of
+     * the key in bucket <code>i</code> or <code>null</code> if the bucket has
+     * no such path. Level zero holds the root arcs.
+     */
+    private Arc<Object>[][] levels;
+
+    /**
+     * Arc instances backing <code>levels</code>, allocated once per level and
+     * reused for subsequent keys.
+     */
+    private Arc<Object>[][] spares;
+
+    /**
+     * <code>outputs[d][i]</code> is the sum of outputs along the path to
+     * <code>levels[d][i]</code>.
+     */
+    private long[][] outputs;
+
+    /** The number of pushed bytes. */
+    private int depth;
+
+    @SuppressWarnings({"rawtypes","unchecked"})
+    Session() {
+      levels = new Arc[8][];
+      spares = new Arc[8][];
+      outputs = new long[8][];
+      levels[0] = rootArcs.clone();
+      outputs[0] = new long[rootArcs.length];
+      if (weights != null) {
+        for (int i = 0; i < rootArcs.length; i++) {
+          outputs[0][i] = OrdinalOutputs.ordinal(rootArcs[i].output);
+        }
+      }
+    }
+
+    @Override
+    @SuppressWarnings({"rawtypes","unchecked"})
+    protected boolean push(int label) throws IOException {
+      final int level = depth + 1;
+      if (level >= levels.length) {
+        final int size = ArrayUtil.oversize(level + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+        final Arc<Object>[][] newLevels = new Arc[size][];
+        final Arc<Object>[][] newSpares = new Arc[size][];
+        final long[][] newOutputs = new long[size][];
+        System.arraycopy(levels, 0, newLevels, 0, levels.length);
+        System.arraycopy(spares, 0, newSpares, 0, spares.length);
+        System.arraycopy(outputs, 0, newOutputs, 0, outputs.length);
+        levels = newLevels;
+        spares = newSpares;
+        outputs = newOutputs;
+      }
+      if (levels[level] == null) {
+        levels[level] = new Arc[rootArcs.length];
+        spares[level] = new Arc[rootArcs.length];
+        outputs[level] = new long[rootArcs.length];
+        for (int i = 0; i < rootArcs.length; i++) {
+          spares[level][i] = new Arc<Object>();
+        }
+      }
+
+      final Arc<Object>[] current = levels[depth];
+      final Arc<Object>[] next = levels[level];
+      boolean found = false;
+      for (int i = 0; i < current.length; i++) {
+        next[i] = null;
+        if (current[i] != null &&
+            automaton.findTargetArc(label, current[i], spares[level][i], fstReader) != null) {
+          next[i] = spares[level][i];
+          if (weights != null) {
+            outputs[level][i] = outputs[depth][i] + OrdinalOutputs.ordinal(next[i].output);
+          }
+          found = true;
+        }
+      }
+
+      if (found) {
+        depth = level;
+      }
+      return found;
+    }
+
+    @Override
+    protected void pop() {
+      assert depth > 0;
+      depth--;
+    }
+
+    @Override
+    protected List<Completion> lookup(BytesRef key, int num) throws IOException {
+      if (key.length == 0) {
+        return EMPTY_RESULT;
+      }
+      final Arc<Object>[] prefixArcs = levels[depth];
+      final long[] prefixOutputs = outputs[depth];
+      if (!higherWeightsFirst && rootArcs.length > 1) {
+        return lookupSortedAlphabetically(key, num, prefixArcs, prefixOutputs);
+      } else if (weights != null) {
+        return lookupSortedByExactWeight(key, num, prefixArcs, prefixOutputs);
+      } else {
+        return lookupSortedByWeight(key, num, prefixArcs, prefixOutputs);
+      }
+    }
+  }
+
+  /**
+   * Releases the per-thread traversal state. The completion must not be used
+   * afterwards.
+   */
+  public void close() {
+    contexts.close();
   }
 
   /**
@@ -416,4 +941,19 @@ public class FSTCompletion {
   public FST<Object> getFST() {
     return automaton;
   }
+
+  /**
+   * Returns the exact weights (offset by {@link #getMinWeight()}) indexed by
+   * term ordinal or <code>null</code> if the automaton has no exact weights.
+   */
+  public PackedInts.Reader getWeights() {
+    return weights;
+  }
+
+  /**
+   * Returns the smallest exact weight.
+   */
+  public long getMinWeight() {
+    return minWeight;
+  }
 }
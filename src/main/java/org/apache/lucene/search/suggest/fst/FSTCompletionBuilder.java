@@ -20,10 +20,12 @@ package org.apache.lucene.search.suggest.fst;
 import java.io.Closeable;
 import java.io.IOException;
 
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefIterator;
 import org.apache.lucene.util.IntsRef;
 import org.apache.lucene.util.fst.*;
+import org.apache.lucene.util.packed.PackedInts;
 
 /**
  * Finite state automata based implementation of "autocomplete" functionality.
@@ -93,6 +95,18 @@ import org.apache.lucene.util.fst.*;
  * "alphabetically" in any of the documentation above indicates UTF-8
  * representation order, nothing else.
  * 
+ * <h2>Exact weights</h2>
+ * 
+ * <p>
+ * Optionally (see {@link #FSTCompletionBuilder(int, BytesRefSorter, int, boolean)}),
+ * exact term weights can be kept next to the automaton. Every term then gets an
+ * ordinal (its rank in the sorted input), encoded as the sum of outputs along
+ * its path, and the weights are stored in a packed array indexed by that
+ * ordinal. At lookup time the candidates of every bucket are ranked by their
+ * exact weight (and then alphabetically) with a bounded heap; buckets are still
+ * visited highest first. This makes ordering inside a bucket exact at the cost
+ * of traversing the whole key's subtree in the buckets that contribute results.
+ * 
  * <p>
  * <b>NOTE</b>: the FST file format is experimental and subject to suddenly
  * change, requiring you to rebuild the FST suggest index.
@@ -142,6 +156,32 @@ public class FSTCompletionBuilder {
    */
   private final int shareMaxTailLength;
 
+  /**
+   * If <code>true</code>, exact weights are kept for every term.
+   */
+  private final boolean exactWeights;
+
+  /**
+   * If <code>true</code>, the automaton is packed after construction.
+   */
+  private final boolean doPackFST;
+
+  /**
+   * Size of the automaton before packing, in bytes.
+   */
+  private long unpackedSize;
+
+  /**
+   * Exact weights (offset by {@link #minWeight}) indexed by term ordinal, if
+   * {@link #exactWeights} is set.
+   */
+  PackedInts.Reader weights;
+
+  /**
+   * The smallest exact weight.
+   */
+  long minWeight;
+
   /**
    * Creates an {@link FSTCompletion} with default options: 10 buckets, exact match
    * promoted to first position and {@link InMemorySorter} with a comparator obtained from
@@ -173,6 +213,38 @@ public class FSTCompletionBuilder {
    *          For minimal automata, set it to {@link Integer#MAX_VALUE}.
    */
   public FSTCompletionBuilder(int buckets, BytesRefSorter sorter, int shareMaxTailLength) {
+    this(buckets, sorter, shareMaxTailLength, false);
+  }
+
+  /**
+   * Creates an FSTCompletion with the specified options.
+   * 
+   * @param exactWeights
+   *          If <code>true</code>, exact weights passed to
+   *          {@link #add(BytesRef, int, long)} are stored with the automaton and
+   *          used to order suggestions within a bucket. Suggestions must not
+   *          contain the zero byte in this mode.
+   * 
+   * @see #FSTCompletionBuilder(int, BytesRefSorter, int)
+   */
+  public FSTCompletionBuilder(int buckets, BytesRefSorter sorter, int shareMaxTailLength, 
+      boolean exactWeights) {
+    this(buckets, sorter, shareMaxTailLength, exactWeights, false);
+  }
+
+  /**
+   * Creates an FSTCompletion with the specified options.
+   * 
+   * @param doPackFST
+   *          If <code>true</code>, the automaton is packed (nodes are reordered
+   *          and addresses compacted) after construction. This takes more time
+   *          and memory while building but the automaton is smaller and
+   *          usually faster to traverse. See {@link #getUnpackedSizeInBytes()}.
+   * 
+   * @see #FSTCompletionBuilder(int, BytesRefSorter, int, boolean)
+   */
+  public FSTCompletionBuilder(int buckets, BytesRefSorter sorter, int shareMaxTailLength, 
+      boolean exactWeights, boolean doPackFST) {
     if (buckets < 1 || buckets > 255) {
       throw new IllegalArgumentException("Buckets must be >= 1 and <= 255: "
           + buckets);
@@ -184,6 +256,8 @@ public class FSTCompletionBuilder {
     this.sorter = sorter;
     this.buckets = buckets;
     this.shareMaxTailLength = shareMaxTailLength;
+    this.exactWeights = exactWeights;
+    this.doPackFST = doPackFST;
   }
 
   /**
@@ -199,33 +273,67 @@ public class FSTCompletionBuilder {
    *          before suggestions placed in smaller buckets.
    */
   public void add(BytesRef utf8, int bucket) throws IOException {
+    add(utf8, bucket, bucket);
+  }
+
+  /**
+   * Appends a single suggestion, its bucket and its exact weight to the
+   * internal buffers. The weight is ignored unless exact weights were requested
+   * in the constructor. If the same suggestion is added to a bucket more than
+   * once, the largest weight is kept.
+   * 
+   * @see #add(BytesRef, int)
+   */
+  public void add(BytesRef utf8, int bucket, long weight) throws IOException {
     if (bucket < 0 || bucket >= buckets) {
       throw new IllegalArgumentException(
           "Bucket outside of the allowed range [0, " + buckets + "): " + bucket);
     }
     
-    if (scratch.bytes.length < utf8.length + 1) {
-      scratch.grow(utf8.length + 10);
+    if (scratch.bytes.length < utf8.length + 1 + WEIGHT_SUFFIX_LENGTH) {
+      scratch.grow(utf8.length + 10 + WEIGHT_SUFFIX_LENGTH);
     }
     
     scratch.length = 1;
     scratch.bytes[0] = (byte) bucket;
     scratch.append(utf8);
+    if (exactWeights) {
+      // The weight is appended after a zero byte which keeps shorter suggestions
+      // sorted before their extensions.
+      for (int i = utf8.offset; i < utf8.offset + utf8.length; i++) {
+        if (utf8.bytes[i] == 0) {
+          throw new IllegalArgumentException(
+              "Suggestions must not contain the zero byte with exact weights.");
+        }
+      }
+      int upto = scratch.length;
+      scratch.bytes[upto++] = 0;
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        scratch.bytes[upto++] = (byte) (weight >>> shift);
+      }
+      scratch.length = upto;
+    }
     sorter.add(scratch);
   }
 
+  /**
+   * The length of the separator and the weight appended to sorted entries if
+   * exact weights are stored.
+   */
+  private static final int WEIGHT_SUFFIX_LENGTH = 1 + 8;
+
   /**
    * Builds the final automaton from a list of added entries. This method may
    * take a longer while as it needs to build the automaton.
    */
   public FSTCompletion build() throws IOException {
-    this.automaton = buildAutomaton(sorter);
+    this.automaton = exactWeights ? buildWeightedAutomaton(sorter) : buildAutomaton(sorter);
 
     if (sorter instanceof Closeable) {
       ((Closeable) sorter).close();
     }
 
-    return new FSTCompletion(automaton);
+    return new FSTCompletion(automaton, weights, minWeight, true, true);
   }
 
   /**
@@ -237,7 +345,7 @@ public class FSTCompletionBuilder {
     final Object empty = outputs.getNoOutput();
     final Builder<Object> builder = new Builder<Object>(
         FST.INPUT_TYPE.BYTE1, 0, 0, true, true, 
-        shareMaxTailLength, outputs, null, false);
+        shareMaxTailLength, outputs, null, doPackFST);
     
     BytesRef scratch = new BytesRef();
     BytesRef entry;
@@ -252,6 +360,92 @@ public class FSTCompletionBuilder {
       }
     }
     
-    return count == 0 ? null : builder.finish();
+    return count == 0 ? null : finish(builder);
+  }
+
+  /**
+   * Builds the final automaton with term ordinals as outputs and collects the
+   * exact weights into {@link #weights}.
+   */
+  private FST<Object> buildWeightedAutomaton(BytesRefSorter sorter) throws IOException {
+    final Outputs<Object> outputs = OrdinalOutputs.getSingleton();
+    final Builder<Object> builder = new Builder<Object>(
+        FST.INPUT_TYPE.BYTE1, 0, 0, true, true, 
+        shareMaxTailLength, outputs, null, doPackFST);
+
+    long [] values = new long [16];
+    BytesRef previous = new BytesRef();
+    BytesRef term = new BytesRef();
+    BytesRef entry;
+    final IntsRef scratchIntsRef = new IntsRef();
+    int ord = 0;
+    BytesRefIterator iter = sorter.iterator();
+    while((entry = iter.next()) != null) {
+      term.bytes = entry.bytes;
+      term.offset = entry.offset;
+      term.length = entry.length - WEIGHT_SUFFIX_LENGTH;
+
+      long weight = 0;
+      for (int i = term.offset + term.length + 1; i < entry.offset + entry.length; i++) {
+        weight = (weight << 8) | (entry.bytes[i] & 0xff);
+      }
+
+      if (ord > 0 && previous.bytesEquals(term)) {
+        values[ord - 1] = Math.max(values[ord - 1], weight);
+      } else {
+        builder.add(Util.toIntsRef(term, scratchIntsRef), Long.valueOf(ord));
+        previous.copyBytes(term);
+        values = ArrayUtil.grow(values, ord + 1);
+        values[ord++] = weight;
+      }
+    }
+
+    if (ord == 0) {
+      weights = null;
+      return null;
+    }
+
+    long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+    for (int i = 0; i < ord; i++) {
+      min = Math.min(min, values[i]);
+      max = Math.max(max, values[i]);
+    }
+    if (max - min < 0) {
+      throw new IllegalArgumentException("Range of weights too large: " + min + " - " + max);
+    }
+    final PackedInts.Mutable packed = PackedInts.getMutable(
+        ord, PackedInts.bitsRequired(max - min), PackedInts.COMPACT);
+    for (int i = 0; i < ord; i++) {
+      packed.set(i, values[i] - min);
+    }
+    this.weights = packed;
+    this.minWeight = min;
+    return finish(builder);
+  }
+
+  /**
+   * Finishes the automaton and packs it, if requested.
+   */
+  private FST<Object> finish(Builder<Object> builder) throws IOException {
+    FST<Object> fst = builder.finish();
+    unpackedSize = fst.sizeInBytes();
+    return doPackFST ? pack(fst) : fst;
+  }
+
+  /**
+   * Packs an automaton built with <code>doPackFST</code> set.
+   */
+  static <T> FST<T> pack(FST<T> fst) throws IOException {
+    return fst.pack(3, Math.max(10, fst.getNodeCount() / 4), PackedInts.COMPACT);
+  }
+
+  /**
+   * Returns the size of the last automaton built, in bytes, before it was packed
+   * (if at all). Compare with {@link FST#sizeInBytes()} of the final automaton.
+   * Note that an automaton built for packing carries extra bookkeeping and is
+   * larger than one built without.
+   */
+  public long getUnpackedSizeInBytes() {
+    return unpackedSize;
   }
 }
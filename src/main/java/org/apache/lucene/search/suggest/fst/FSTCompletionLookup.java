@@ -17,25 +17,32 @@ package org.apache.lucene.search.suggest.fst;
  * limitations under the License.
  */
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.search.spell.TermFreqIterator;
 import org.apache.lucene.search.suggest.Lookup;
 import org.apache.lucene.search.suggest.fst.FSTCompletion.Completion;
-import org.apache.lucene.search.suggest.fst.Sort.SortInfo;
 import org.apache.lucene.search.suggest.tst.TSTLookup;
 import org.apache.lucene.store.ByteArrayDataInput;
 import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
 import org.apache.lucene.store.InputStreamDataInput;
 import org.apache.lucene.store.OutputStreamDataOutput;
 import org.apache.lucene.util.*;
 import org.apache.lucene.util.fst.FST;
 import org.apache.lucene.util.fst.NoOutputs;
+import org.apache.lucene.util.packed.PackedInts;
 
 /**
  * An adapter from {@link Lookup} API to {@link FSTCompletion}.
@@ -45,11 +52,13 @@ import org.apache.lucene.util.fst.NoOutputs;
  * to match the number of buckets. For the rationale for bucketing, see
  * {@link FSTCompletion}.
  * 
- * <p><b>Note:</b>Discretization requires an additional sorting pass.
+ * <p><b>Note:</b>Discretization requires an additional (sequential) pass over
+ * a temporary copy of the input.
  * 
  * <p>The range of weights for bucketing/ discretization is determined 
- * by sorting the input by weight and then dividing into
- * equal ranges. Then, scores within each range are assigned to that bucket. 
+ * by the quantiles of the weights: the input is divided into equal ranges
+ * by weight and scores within each range are assigned to that bucket. For
+ * large inputs, the quantiles are estimated from a uniform sample of weights.
  * 
  * <p>Note that this means that even large differences in weights may be lost 
  * during automaton construction, but the overall distinction between "classes"
@@ -58,10 +67,15 @@ import org.apache.lucene.util.fst.NoOutputs;
  * <p>For fine-grained control over which weights are assigned to which buckets,
  * use {@link FSTCompletion} directly or {@link TSTLookup}, for example.
  * 
+ * <p>Alternatively, exact weights can be stored next to the automaton (see
+ * {@link #FSTCompletionLookup(int, boolean, boolean)}). Suggestions within a
+ * bucket are then ordered by their exact weight, which is also returned as the
+ * value of each {@link LookupResult}.
+ * 
  * @see FSTCompletion
  * @lucene.experimental
  */
-public class FSTCompletionLookup extends Lookup {
+public class FSTCompletionLookup extends Lookup implements Closeable {
   /** 
    * An invalid bucket count if we're creating an object
    * of this class from an existing FST.
@@ -79,18 +93,40 @@ public class FSTCompletionLookup extends Lookup {
    */
   private final static int sharedTailLength = 5;
 
+  /**
+   * The number of weights sampled to find the bucket boundaries during
+   * {@link #build(TermFreqIterator)}. Buckets are exact for inputs up to this size
+   * and approximate (quantiles of a uniform sample) for larger inputs.
+   */
+  private final static int WEIGHT_SAMPLE_SIZE = 1 << 17;
+
+  /** Header of stored automata, followed by a byte of flags. */
+  static final String CODEC_NAME = "FSTCompletionLookup";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  /** Flag of automata stored with their exact weights. */
+  private final static int FLAG_EXACT_WEIGHTS = 0x01;
+
   private int buckets;
   private boolean exactMatchFirst;
+  private boolean exactWeights;
+  private boolean doPackFST;
+
+  /**
+   * Size of the last automaton built before packing, in bytes.
+   */
+  private long unpackedSize = -1;
 
   /**
    * Automaton used for completions with higher weights reordering.
    */
-  private FSTCompletion higherWeightsCompletion;
+  private volatile FSTCompletion higherWeightsCompletion;
 
   /**
    * Automaton used for normal completions.
    */
-  private FSTCompletion normalCompletion;
+  private volatile FSTCompletion normalCompletion;
 
   /**
    * This constructor prepares for creating a suggested FST using the
@@ -116,8 +152,41 @@ public class FSTCompletionLookup extends Lookup {
    *          discretized weight and alphabetical within the bucket.
    */
   public FSTCompletionLookup(int buckets, boolean exactMatchFirst) {
+    this(buckets, exactMatchFirst, false);
+  }
+
+  /**
+   * This constructor prepares for creating a suggested FST using the
+   * {@link #build(TermFreqIterator)} method.
+   * 
+   * @param exactWeights
+   *          If <code>true</code>, exact weights are stored with the automaton
+   *          and used to order suggestions within each bucket. Suggestions must
+   *          not contain the zero byte in this mode.
+   * 
+   * @see #FSTCompletionLookup(int, boolean)
+   */
+  public FSTCompletionLookup(int buckets, boolean exactMatchFirst, boolean exactWeights) {
+    this(buckets, exactMatchFirst, exactWeights, false);
+  }
+
+  /**
+   * This constructor prepares for creating a suggested FST using the
+   * {@link #build(TermFreqIterator)} method.
+   * 
+   * @param doPackFST
+   *          If <code>true</code>, the automaton is packed after construction
+   *          (smaller and usually faster to traverse, but slower to build).
+   * 
+   * @see #FSTCompletionLookup(int, boolean, boolean)
+   * @see #getUnpackedSizeInBytes()
+   */
+  public FSTCompletionLookup(int buckets, boolean exactMatchFirst, boolean exactWeights, 
+      boolean doPackFST) {
     this.buckets = buckets;
     this.exactMatchFirst = exactMatchFirst;
+    this.exactWeights = exactWeights;
+    this.doPackFST = doPackFST;
   }
 
   /**
@@ -131,55 +200,65 @@ public class FSTCompletionLookup extends Lookup {
    *          discretized weight and alphabetical within the bucket.
    */
   public FSTCompletionLookup(FSTCompletion completion, boolean exactMatchFirst) {
-    this(INVALID_BUCKETS_COUNT, exactMatchFirst);
-    this.normalCompletion = new FSTCompletion(
-        completion.getFST(), false, exactMatchFirst);
-    this.higherWeightsCompletion =  new FSTCompletion(
-        completion.getFST(), true, exactMatchFirst);
+    this(INVALID_BUCKETS_COUNT, exactMatchFirst, completion.getWeights() != null);
+    this.normalCompletion = new FSTCompletion(completion.getFST(), 
+        completion.getWeights(), completion.getMinWeight(), false, exactMatchFirst);
+    this.higherWeightsCompletion =  new FSTCompletion(completion.getFST(), 
+        completion.getWeights(), completion.getMinWeight(), true, exactMatchFirst);
   }
 
   @Override
   public void build(TermFreqIterator tfit) throws IOException {
     File tempInput = File.createTempFile(
         FSTCompletionLookup.class.getSimpleName(), ".input", Sort.defaultTempDir());
-    File tempSorted = File.createTempFile(
-        FSTCompletionLookup.class.getSimpleName(), ".sorted", Sort.defaultTempDir());
 
     Sort.ByteSequencesWriter writer = new Sort.ByteSequencesWriter(tempInput);
     Sort.ByteSequencesReader reader = null;
     ExternalRefSorter sorter = null;
 
-    // Push floats up front before sequences to sort them. For now, assume they are non-negative.
-    // If negative floats are allowed some trickery needs to be done to find their byte order.
+    // Push floats up front before sequences. While writing, keep a uniform sample
+    // of the weights to find the bucket boundaries without sorting the input by weight.
     boolean success = false;
     try {
       byte [] buffer = new byte [0];
       ByteArrayDataOutput output = new ByteArrayDataOutput(buffer);
+      int [] sample = new int [0];
+      Random random = new Random(0x5ca1ab1eL);
+      long lines = 0;
       BytesRef spare;
       while ((spare = tfit.next()) != null) {
         if (spare.length + 4 >= buffer.length) {
           buffer = ArrayUtil.grow(buffer, spare.length + 4);
         }
 
+        final int weight = encodeWeight(tfit.weight());
         output.reset(buffer);
-        output.writeInt(encodeWeight(tfit.weight()));
+        output.writeInt(weight);
         output.writeBytes(spare.bytes, spare.offset, spare.length);
         writer.write(buffer, 0, output.getPosition());
+
+        // Reservoir sampling.
+        if (lines < WEIGHT_SAMPLE_SIZE) {
+          sample = ArrayUtil.grow(sample, (int) lines + 1);
+          sample[(int) lines] = weight;
+        } else {
+          long slot = (random.nextLong() & Long.MAX_VALUE) % (lines + 1);
+          if (slot < WEIGHT_SAMPLE_SIZE) {
+            sample[(int) slot] = weight;
+          }
+        }
+        lines++;
       }
       writer.close();
 
-      // We don't know the distribution of scores and we need to bucket them, so we'll sort
-      // and divide into equal buckets.
-      SortInfo info = new Sort().sort(tempInput, tempSorted);
-      tempInput.delete();
+      final int sampleSize = (int) Math.min(lines, WEIGHT_SAMPLE_SIZE);
+      Arrays.sort(sample, 0, sampleSize);
+
+      // The only sort is done by the builder (by bucket, then by term).
       FSTCompletionBuilder builder = new FSTCompletionBuilder(
-          buckets, sorter = new ExternalRefSorter(new Sort()), sharedTailLength);
+          buckets, sorter = new ExternalRefSorter(new Sort()), sharedTailLength, exactWeights, doPackFST);
 
-      final int inputLines = info.lines;
-      reader = new Sort.ByteSequencesReader(tempSorted);
-      long line = 0;
-      int previousBucket = 0;
-      int previousScore = 0;
+      reader = new Sort.ByteSequencesReader(tempInput);
       ByteArrayDataInput input = new ByteArrayDataInput();
       BytesRef tmp1 = new BytesRef();
       BytesRef tmp2 = new BytesRef();
@@ -187,28 +266,22 @@ public class FSTCompletionLookup extends Lookup {
         input.reset(tmp1.bytes);
         int currentScore = input.readInt();
 
-        int bucket;
-        if (line > 0 && currentScore == previousScore) {
-          bucket = previousBucket;
-        } else {
-          bucket = (int) (line * buckets / inputLines);
-        }
-        previousScore = currentScore;
-        previousBucket = bucket;
+        // The bucket is the weight's quantile: the fraction of (sampled) weights
+        // smaller than this one. Equal weights always end up in the same bucket.
+        int bucket = (int) Math.min(buckets - 1, 
+            (long) lowerBound(sample, sampleSize, currentScore) * buckets / sampleSize);
 
-        // Only append the input, discard the weight.
+        // Only append the input, discard the weight (unless exact weights are kept).
         tmp2.bytes = tmp1.bytes;
         tmp2.offset = input.getPosition();
         tmp2.length = tmp1.length - input.getPosition();
-        builder.add(tmp2, bucket);
-
-        line++;
+        builder.add(tmp2, bucket, currentScore);
       }
 
       // The two FSTCompletions share the same automaton.
-      this.higherWeightsCompletion = builder.build();
-      this.normalCompletion = new FSTCompletion(
-          higherWeightsCompletion.getFST(), false, exactMatchFirst);
+      final FSTCompletion higherWeightsCompletion = builder.build();
+      this.unpackedSize = higherWeightsCompletion.getFST() == null ? 0 : builder.getUnpackedSizeInBytes();
+      publish(higherWeightsCompletion);
       
       success = true;
     } finally {
@@ -218,9 +291,25 @@ public class FSTCompletionLookup extends Lookup {
         IOUtils.closeWhileHandlingException(reader, writer, sorter);
 
       tempInput.delete();
-      tempSorted.delete();
     }
   }
+
+  /**
+   * Returns the index of the first element of the sorted <code>values[0..length)</code>
+   * which is not smaller than <code>key</code>.
+   */
+  private static int lowerBound(int [] values, int length, int key) {
+    int lo = 0, hi = length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (values[mid] < key) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
   
   /** weight -> cost */
   private static int encodeWeight(long value) {
@@ -244,44 +333,134 @@ public class FSTCompletionLookup extends Lookup {
     for (Completion c : completions) {
       spare.grow(c.utf8.length);
       UnicodeUtil.UTF8toUTF16(c.utf8, spare);
-      results.add(new LookupResult(spare.toString(), c.bucket));
+      results.add(new LookupResult(spare.toString(), c.weight));
     }
     return results;
   }
 
   /**
    * Returns the bucket (weight) as a Long for the provided key if it exists,
-   * otherwise null if it does not.
+   * otherwise null if it does not. With exact weights, the exact weight is
+   * returned.
    */
   public Object get(CharSequence key) {
+    final FSTCompletion normalCompletion = this.normalCompletion;
+    if (exactWeights) {
+      return normalCompletion.getWeight(key);
+    }
     final int bucket = normalCompletion.getBucket(key);
     return bucket == -1 ? null : Long.valueOf(bucket);
   }
 
 
+  /**
+   * Returns the size of the automaton in bytes or <code>0</code> if there is none.
+   */
+  public long getSizeInBytes() {
+    final FSTCompletion normalCompletion = this.normalCompletion;
+    final FST<Object> fst = normalCompletion == null ? null : normalCompletion.getFST();
+    return fst == null ? 0 : fst.sizeInBytes();
+  }
+
+  /**
+   * Returns the size of the automaton before it was packed (equal to
+   * {@link #getSizeInBytes()} if it was not packed) or <code>-1</code> if the
+   * automaton was not built by this instance.
+   */
+  public long getUnpackedSizeInBytes() {
+    return unpackedSize;
+  }
+
   @Override
   public synchronized boolean store(OutputStream output) throws IOException {
 
     try {
       if (this.normalCompletion == null || normalCompletion.getFST() == null) 
         return false;
-      normalCompletion.getFST().save(new OutputStreamDataOutput(output));
+      store(new OutputStreamDataOutput(output));
     } finally {
       IOUtils.close(output);
     }
     return true;
   }
 
+  private void store(DataOutput output) throws IOException {
+    final FSTCompletion completion = this.normalCompletion;
+    CodecUtil.writeHeader(output, CODEC_NAME, VERSION_CURRENT);
+    output.writeByte((byte) (exactWeights ? FLAG_EXACT_WEIGHTS : 0));
+    completion.getFST().save(output);
+    if (exactWeights) {
+      final PackedInts.Reader weights = completion.getWeights();
+      output.writeLong(completion.getMinWeight());
+      final PackedInts.Writer writer = PackedInts.getWriter(
+          output, weights.size(), weights.getBitsPerValue(), PackedInts.COMPACT);
+      for (int i = 0; i < weights.size(); i++) {
+        writer.add(weights.get(i));
+      }
+      writer.finish();
+    }
+  }
+
   @Override
   public synchronized boolean load(InputStream input) throws IOException {
     try {
-      this.higherWeightsCompletion = new FSTCompletion(new FST<Object>(
-          new InputStreamDataInput(input), NoOutputs.getSingleton()));
-      this.normalCompletion = new FSTCompletion(
-          higherWeightsCompletion.getFST(), false, exactMatchFirst);
+      load(new InputStreamDataInput(input));
     } finally {
       IOUtils.close(input);
     }
     return true;
   }
+
+  private void load(DataInput input) throws IOException {
+    CodecUtil.checkHeader(input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+    final int flags = input.readByte();
+    if ((flags & ~FLAG_EXACT_WEIGHTS) != 0) {
+      throw new CorruptIndexException("unknown flags: " + flags);
+    }
+    if (((flags & FLAG_EXACT_WEIGHTS) != 0) != exactWeights) {
+      throw new IllegalArgumentException(exactWeights
+          ? "the automaton was stored without exact weights, but this lookup expects them"
+          : "the automaton was stored with exact weights, but this lookup does not expect them");
+    }
+    this.unpackedSize = -1;
+    if (exactWeights) {
+      FST<Object> automaton = new FST<Object>(input, OrdinalOutputs.getSingleton());
+      long minWeight = input.readLong();
+      PackedInts.Reader weights = PackedInts.getReader(input);
+      publish(new FSTCompletion(automaton, weights, minWeight, true, true));
+    } else {
+      publish(new FSTCompletion(new FST<Object>(input, NoOutputs.getSingleton())));
+    }
+  }
+
+  /**
+   * Publishes a fully built completion and a normal completion sharing its
+   * automaton. Concurrent lookups see either the previous or the new automaton.
+   */
+  private void publish(FSTCompletion higherWeightsCompletion) {
+    this.normalCompletion = new FSTCompletion(higherWeightsCompletion.getFST(), 
+        higherWeightsCompletion.getWeights(), higherWeightsCompletion.getMinWeight(),
+        false, exactMatchFirst);
+    this.higherWeightsCompletion = higherWeightsCompletion;
+  }
+
+  /**
+   * Releases the per-thread state of the current completions. This lookup must
+   * not be used afterwards.
+   * <p>
+   * Completions replaced by {@link #build(TermFreqIterator)} or a load are not
+   * closed, as concurrent lookups may still use them; their per-thread state
+   * is released once they are no longer referenced.
+   */
+  @Override
+  public void close() {
+    final FSTCompletion normalCompletion = this.normalCompletion;
+    final FSTCompletion higherWeightsCompletion = this.higherWeightsCompletion;
+    if (normalCompletion != null) {
+      normalCompletion.close();
+    }
+    if (higherWeightsCompletion != null) {
+      higherWeightsCompletion.close();
+    }
+  }
 }
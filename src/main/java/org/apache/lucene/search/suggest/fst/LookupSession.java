@@ -0,0 +1,127 @@
+package org.apache.lucene.search.suggest.fst;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.UnicodeUtil;
+
+/**
+ * Incremental lookup state for interactive, keystroke-by-keystroke completion.
+ *
+ * <p>A session remembers the automaton state reached for the current key. When
+ * the key changes (a character is typed or deleted), only the bytes after the
+ * common prefix of the old and the new key are processed: typing one more
+ * character costs a single transition per tracked path and a backspace just pops
+ * the state stack. The cost of {@link #lookup(int)} is therefore independent of
+ * the length of the key.
+ *
+ * <p><b>Note:</b> sessions are not thread-safe; use one session per user (input
+ * field) and thread.
+ *
+ * @see FSTCompletion#newSession()
+ * @see WFSTCompletionLookup#newSession()
+ * @lucene.experimental
+ */
+public abstract class LookupSession<T> {
+  /** UTF-8 representation of the current key. */
+  private BytesRef key = new BytesRef();
+
+  /** Scratch buffer for the next key. */
+  private BytesRef next = new BytesRef();
+
+  /**
+   * The number of leading bytes of {@link #key} for which a state has been
+   * pushed. If it is smaller than the key's length the key has no completions.
+   */
+  private int depth;
+
+  /** Sole constructor. (For invocation by subclass constructors.) */
+  protected LookupSession() {}
+
+  /**
+   * Sets the current key (the prefix to complete), reusing the state computed
+   * for the common prefix of the previous and the new key.
+   */
+  public final void setKey(CharSequence newKey) {
+    UnicodeUtil.UTF16toUTF8(newKey, 0, newKey.length(), next);
+    final BytesRef previous = key;
+    key = next;
+    next = previous;
+
+    int common = 0;
+    final int max = Math.min(depth, key.length);
+    while (common < max && previous.bytes[common] == key.bytes[common]) {
+      common++;
+    }
+    while (depth > common) {
+      pop();
+      depth--;
+    }
+    try {
+      while (depth < key.length && push(key.bytes[depth] & 0xff)) {
+        depth++;
+      }
+    } catch (IOException e) {
+      // Should never happen, but anyway.
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the current key as set by {@link #setKey(CharSequence)}.
+   */
+  public final String getKey() {
+    return key.utf8ToString();
+  }
+
+  /**
+   * Returns at most <code>num</code> completions of the current key.
+   */
+  public final List<T> lookup(int num) {
+    if (depth < key.length) {
+      return new ArrayList<T>(0);
+    }
+    try {
+      return lookup(key, num);
+    } catch (IOException e) {
+      // Should never happen, but anyway.
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Advances the state by one byte of the key.
+   *
+   * @return <code>false</code> if no path continues with <code>label</code>;
+   *         no more bytes are pushed until the state is popped.
+   */
+  protected abstract boolean push(int label) throws IOException;
+
+  /** Reverts the effect of the last successful {@link #push(int)}. */
+  protected abstract void pop();
+
+  /**
+   * Collects completions from the current state. Called only when every byte
+   * of the <code>key</code> has been pushed. The key must not be modified.
+   */
+  protected abstract List<T> lookup(BytesRef key, int num) throws IOException;
+}
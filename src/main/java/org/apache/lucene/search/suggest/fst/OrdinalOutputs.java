@@ -0,0 +1,92 @@
+package org.apache.lucene.search.suggest.fst;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.fst.Outputs;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+
+/**
+ * Term ordinals as outputs of an {@link FSTCompletion} automaton. This is
+ * {@link PositiveIntOutputs} exposed as <code>Outputs&lt;Object&gt;</code> so
+ * that automata with and without exact weights share the same type. The sum of
+ * outputs along a path is the ordinal of the term (its rank in the sorted
+ * input).
+ *
+ * @see FSTCompletionBuilder#FSTCompletionBuilder(int, BytesRefSorter, int, boolean)
+ * @lucene.experimental
+ */
+final class OrdinalOutputs extends Outputs<Object> {
+  private final static OrdinalOutputs singleton = new OrdinalOutputs();
+  private final PositiveIntOutputs delegate = PositiveIntOutputs.getSingleton(true);
+
+  private OrdinalOutputs() {
+  }
+
+  public static OrdinalOutputs getSingleton() {
+    return singleton;
+  }
+
+  /** Returns the ordinal increment carried by an arc output. */
+  static long ordinal(Object output) {
+    return ((Long) output).longValue();
+  }
+
+  @Override
+  public Object common(Object output1, Object output2) {
+    return delegate.common((Long) output1, (Long) output2);
+  }
+
+  @Override
+  public Object subtract(Object output, Object inc) {
+    return delegate.subtract((Long) output, (Long) inc);
+  }
+
+  @Override
+  public Object add(Object prefix, Object output) {
+    return delegate.add((Long) prefix, (Long) output);
+  }
+
+  @Override
+  public void write(Object output, DataOutput out) throws IOException {
+    delegate.write((Long) output, out);
+  }
+
+  @Override
+  public Object read(DataInput in) throws IOException {
+    return delegate.read(in);
+  }
+
+  @Override
+  public Object getNoOutput() {
+    return delegate.getNoOutput();
+  }
+
+  @Override
+  public String outputToString(Object output) {
+    return delegate.outputToString((Long) output);
+  }
+
+  @Override
+  public String toString() {
+    return "OrdinalOutputs";
+  }
+}
@@ -0,0 +1,126 @@
+package org.apache.lucene.search.suggest.fst;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An {@link InputStream} that reads the next chunk of its input on an
+ * {@link ExecutorService} while the current one is consumed, so that reading
+ * many files at once, as when merging partitions, is done in large sequential
+ * chunks and overlaps with the consumer.
+ *
+ * @see Sort#mergePartitions
+ */
+final class ReadAheadInputStream extends InputStream {
+  private final InputStream in;
+  private final ExecutorService executor;
+
+  private byte[] current;
+  private byte[] next;
+  private int pos;
+  private int limit;
+  /** The pending read into {@link #next}, <code>null</code> at the end of the input. */
+  private Future<Integer> pending;
+
+  ReadAheadInputStream(InputStream in, int chunkSize, ExecutorService executor) {
+    this.in = in;
+    this.executor = executor;
+    this.current = new byte[chunkSize];
+    this.next = new byte[chunkSize];
+    this.pending = fill(next);
+  }
+
+  private Future<Integer> fill(final byte[] buffer) {
+    return executor.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws IOException {
+        int upto = 0;
+        while (upto < buffer.length) {
+          final int read = in.read(buffer, upto, buffer.length - upto);
+          if (read < 0) {
+            break;
+          }
+          upto += read;
+        }
+        return upto;
+      }
+    });
+  }
+
+  /** Swaps in the chunk read ahead and starts reading the next one. */
+  private boolean refill() throws IOException {
+    if (pending == null) {
+      return false;
+    }
+    final int read = Sort.get(pending);
+    final byte[] tmp = current;
+    current = next;
+    next = tmp;
+    pos = 0;
+    limit = read;
+    // a short chunk is the last one
+    pending = read < current.length ? null : fill(next);
+    return read > 0;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (pos == limit && !refill()) {
+      return -1;
+    }
+    return current[pos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (pos == limit && !refill()) {
+      return -1;
+    }
+    final int count = Math.min(len, limit - pos);
+    System.arraycopy(current, pos, b, off, count);
+    pos += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return limit - pos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (pending != null) {
+        // don't close the input under a pending read
+        final Future<Integer> future = pending;
+        pending = null;
+        Sort.get(future);
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -18,7 +18,18 @@ package org.apache.lucene.search.suggest.fst;
  */
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.lucene.search.suggest.BytesRefList;
 import org.apache.lucene.util.*;
@@ -64,10 +75,33 @@ public final class Sort {
   private static final String MIN_BUFFER_SIZE_MSG = "At least 0.5MB RAM buffer is needed";
 
   /**
-   * Maximum number of temporary files before doing an intermediate merge.
+   * Maximum number of temporary files merged at once.
    */
   public final static int MAX_TEMPFILES = 128;
 
+  /** Size of the buffers of {@link ByteSequencesReader}s and {@link ByteSequencesWriter}s of files. */
+  static final int FILE_BUFFER_SIZE = 256 * 1024;
+
+  /** Bounds of the per-file buffers when merging partitions. */
+  private static final int MIN_MERGE_BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_MERGE_BUFFER_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * Encodings of temporary files (partitions and intermediate merges). The
+   * output is always written as is.
+   */
+  public static enum TempEncoding {
+    /** Entries as they are, each prefixed with its length. */
+    RAW,
+    /**
+     * Each entry as the length of the prefix it shares with the previous one,
+     * the length of the rest as vInts, then the rest.
+     */
+    PREFIX_DELTA,
+    /** {@link #PREFIX_DELTA}, deflated at {@link Deflater#BEST_SPEED}. */
+    PREFIX_DELTA_DEFLATE
+  }
+
   /** 
    * A bit more descriptive unit for constructors.
    * 
@@ -142,12 +176,16 @@ public final class Sort {
     public int lines;
     /** time spent merging sorted partitions (in milliseconds) */
     public long mergeTime;
-    /** time spent sorting data (in milliseconds) */
+    /** time spent sorting data (in milliseconds, summed over sorting threads) */
     public long sortTime;
     /** total time spent (in milliseconds) */
     public long totalTime;
     /** time spent in i/o read (in milliseconds) */
     public long readTime;
+    /** bytes read from the input and temporary files */
+    public long bytesRead;
+    /** bytes written to temporary files and the output */
+    public long bytesWritten;
     /** read buffer size (in bytes) */
     public final long bufferSize = ramBufferSize.bytes;
     
@@ -157,9 +195,9 @@ public final class Sort {
     @Override
     public String toString() {
       return String.format(Locale.ROOT,
-          "time=%.2f sec. total (%.2f reading, %.2f sorting, %.2f merging), lines=%d, temp files=%d, merges=%d, soft ram limit=%.2f MB",
+          "time=%.2f sec. total (%.2f reading, %.2f sorting, %.2f merging), lines=%d, temp files=%d, merges=%d, read=%.2f MB, written=%.2f MB, soft ram limit=%.2f MB",
           totalTime / 1000.0d, readTime / 1000.0d, sortTime / 1000.0d, mergeTime / 1000.0d,
-          lines, tempMergeFiles, mergeRounds,
+          lines, tempMergeFiles, mergeRounds, (double) bytesRead / MB, (double) bytesWritten / MB,
           (double) bufferSize / MB);
     }
   }
@@ -170,6 +208,8 @@ public final class Sort {
   private final BytesRefList buffer = new BytesRefList();
   private SortInfo sortInfo;
   private int maxTempFiles;
+  private final int sortThreads;
+  private final TempEncoding tempEncoding;
   private final Comparator<BytesRef> comparator;
   
   /** Default comparator: sorts in binary (codepoint) order */
@@ -196,9 +236,38 @@ public final class Sort {
   }
 
   /**
-   * All-details constructor.
+   * All-details constructor, sorting partitions on the calling thread.
    */
   public Sort(Comparator<BytesRef> comparator, BufferSize ramBufferSize, File tempDirectory, int maxTempfiles) {
+    this(comparator, ramBufferSize, tempDirectory, maxTempfiles, 1);
+  }
+
+  /**
+   * All-details constructor with a number of sorting threads. With more than
+   * one thread, the calling thread only reads partitions, while up to
+   * <code>sortThreads</code> others sort and write the previous ones. The RAM
+   * buffer is then shared by <code>sortThreads + 1</code> partitions, so there
+   * are more (smaller) partitions to merge. Partitions are then also merged
+   * with asynchronous read-ahead of each input and a background writer.
+   *
+   * <p>This mode is opt-in only: the other constructors, and the suggesters
+   * of this module, sort on the calling thread. With more than one thread the
+   * comparator is called concurrently, so it must be thread-safe, as
+   * {@link #DEFAULT_COMPARATOR} is; comparators keeping scratch state in
+   * fields are not.
+   */
+  public Sort(Comparator<BytesRef> comparator, BufferSize ramBufferSize, File tempDirectory, int maxTempfiles, int sortThreads) {
+    this(comparator, ramBufferSize, tempDirectory, maxTempfiles, sortThreads, TempEncoding.RAW);
+  }
+
+  /**
+   * All-details constructor with a number of sorting threads and an encoding
+   * of temporary files.
+   * 
+   * @see #Sort(Comparator, BufferSize, File, int, int)
+   */
+  public Sort(Comparator<BytesRef> comparator, BufferSize ramBufferSize, File tempDirectory, int maxTempfiles, int sortThreads,
+      TempEncoding tempEncoding) {
     if (ramBufferSize.bytes < ABSOLUTE_MIN_SORT_BUFFER_SIZE) {
       throw new IllegalArgumentException(MIN_BUFFER_SIZE_MSG + ": " + ramBufferSize.bytes);
     }
@@ -207,9 +276,15 @@ public final class Sort {
       throw new IllegalArgumentException("maxTempFiles must be >= 2");
     }
 
+    if (sortThreads < 1) {
+      throw new IllegalArgumentException("sortThreads must be >= 1");
+    }
+
     this.ramBufferSize = ramBufferSize;
     this.tempDirectory = tempDirectory;
     this.maxTempFiles = maxTempfiles;
+    this.sortThreads = sortThreads;
+    this.tempEncoding = tempEncoding;
     this.comparator = comparator;
   }
 
@@ -229,26 +304,19 @@ public final class Sort {
       ByteSequencesReader is = new ByteSequencesReader(input);
       boolean success = false;
       try {
-        int lines = 0;
-        while ((lines = readPartition(is)) > 0) {
-          merges.add(sortPartition(lines));
-          sortInfo.tempMergeFiles++;
-          sortInfo.lines += lines;
-
-          // Handle intermediate merges.
-          if (merges.size() == maxTempFiles) {
-            File intermediate = File.createTempFile("sort", "intermediate", tempDirectory);
-            try {
-              mergePartitions(merges, intermediate);
-            } finally {
-              for (File file : merges) {
-                file.delete();
-              }
-              merges.clear();
-              merges.add(intermediate);
-            }
+        if (sortThreads == 1) {
+          int lines = 0;
+          while ((lines = readPartition(is)) > 0) {
+            merges.add(sortPartition(lines));
             sortInfo.tempMergeFiles++;
+            sortInfo.lines += lines;
           }
+        } else {
+          sortPartitionsConcurrently(is, merges);
+        }
+        sortInfo.bytesRead += input.length();
+        for (File partition : merges) {
+          sortInfo.bytesWritten += partition.length();
         }
         success = true;
       } finally {
@@ -258,17 +326,19 @@ public final class Sort {
           IOUtils.closeWhileHandlingException(is);
       }
 
-      // One partition, try to rename or copy if unsuccessful.
-      if (merges.size() == 1) {     
+      // One raw partition, try to rename or copy if unsuccessful.
+      if (merges.size() == 1 && tempEncoding == TempEncoding.RAW) {     
         File single = merges.get(0);
         // If simple rename doesn't work this means the output is
         // on a different volume or something. Copy the input then.
         if (!single.renameTo(output)) {
           copy(single, output);
+          sortInfo.bytesRead += single.length();
+          sortInfo.bytesWritten += single.length();
         }
       } else { 
-        // otherwise merge the partitions with a priority queue.
-        mergePartitions(merges, output);
+        // otherwise merge (or decode) the partitions with a priority queue.
+        mergeTiered(merges, output);
       }
       success2 = true;
     } finally {
@@ -302,57 +372,229 @@ public final class Sort {
   }
 
   /**
-   * Copies one file to another.
+   * Copies one file to another, with {@link FileChannel#transferTo}: the
+   * operating system copies the bytes, without going through the heap.
    */
-  private static void copy(File file, File output) throws IOException {
-    // 64kb copy buffer (empirical pick).
-    byte [] buffer = new byte [16 * 1024];
-    InputStream is = null;
-    OutputStream os = null;
+  static void copy(File file, File output) throws IOException {
+    FileInputStream is = null;
+    FileOutputStream os = null;
     try {
       is = new FileInputStream(file);
       os = new FileOutputStream(output);
-      int length;
-      while ((length = is.read(buffer)) > 0) {
-        os.write(buffer, 0, length);
+      final FileChannel in = is.getChannel(), out = os.getChannel();
+      final long size = in.size();
+      for (long position = 0; position < size; ) {
+        position += in.transferTo(position, size - position, out);
       }
     } finally {
       IOUtils.close(is, os);
     }
   }
 
+  /** Orders files by increasing length. */
+  private static final Comparator<File> BY_LENGTH = new Comparator<File>() {
+    @Override
+    public int compare(File a, File b) {
+      final long aLength = a.length(), bLength = b.length();
+      return aLength < bLength ? -1 : (aLength == bLength ? 0 : 1);
+    }
+  };
+
+  /**
+   * Merges the partitions into <code>output</code>, at most
+   * <code>maxTempFiles</code> at once, in the order rewriting the fewest bytes.
+   * As in a k-ary Huffman code, the smallest files are merged into
+   * intermediate ones first; only the first merge may have a lower fan-in,
+   * such that all others, and the last one in particular, merge
+   * <code>maxTempFiles</code> files. Merged files are removed from
+   * <code>merges</code> and deleted, intermediate ones are added to it.
+   */
+  private void mergeTiered(List<File> merges, File output) throws IOException {
+    Collections.sort(merges, BY_LENGTH);
+    int fanIn = (merges.size() - 2) % (maxTempFiles - 1) + 2;
+    while (merges.size() > maxTempFiles) {
+      final List<File> smallest = merges.subList(0, fanIn);
+      final File intermediate = File.createTempFile("sort", "intermediate", tempDirectory);
+      try {
+        mergePartitions(new ArrayList<File>(smallest), intermediate, true);
+      } finally {
+        for (File file : smallest) {
+          file.delete();
+        }
+        smallest.clear();
+        final int index = Collections.binarySearch(merges, intermediate, BY_LENGTH);
+        merges.add(index < 0 ? -index - 1 : index, intermediate);
+      }
+      sortInfo.tempMergeFiles++;
+      fanIn = maxTempFiles;
+    }
+    mergePartitions(merges, output, false);
+  }
+
+  /**
+   * Reads partitions on the calling thread and sorts them on
+   * <code>sortThreads</code> others. Buffers are recycled through a bounded
+   * queue, so the reader blocks while all of them are being sorted.
+   */
+  private void sortPartitionsConcurrently(ByteSequencesReader is, List<File> merges) throws IOException {
+    final int partitionBytes = ramBufferSize.bytes / (sortThreads + 1);
+    final BlockingQueue<BytesRefList> free = new ArrayBlockingQueue<BytesRefList>(sortThreads + 1);
+    for (int i = 0; i <= sortThreads; i++) {
+      free.add(new BytesRefList());
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(sortThreads, new NamedThreadFactory("sort"));
+    final List<Future<File>> pending = new ArrayList<Future<File>>();
+    boolean success = false;
+    try {
+      while (true) {
+        final BytesRefList data;
+        try {
+          data = free.take();
+        } catch (InterruptedException e) {
+          throw new ThreadInterruptedException(e);
+        }
+        final int lines = readPartition(is, data, partitionBytes);
+        if (lines == 0) {
+          break;
+        }
+        sortInfo.tempMergeFiles++;
+        sortInfo.lines += lines;
+        pending.add(executor.submit(new Callable<File>() {
+          @Override
+          public File call() throws IOException {
+            try {
+              return sortPartition(data);
+            } finally {
+              data.clear();
+              free.add(data);
+            }
+          }
+        }));
+
+      }
+      collect(pending, merges);
+      success = true;
+    } finally {
+      executor.shutdown();
+      if (!success) {
+        // wait for the partitions being written, so that they can be deleted
+        for (Future<File> future : pending) {
+          try {
+            future.get().delete();
+          } catch (Throwable t) {
+            // ignore, we are already handling an exception
+          }
+        }
+      }
+    }
+  }
+
+  /** Waits for the pending partitions, in order, and appends them to <code>merges</code>. */
+  private static void collect(List<Future<File>> pending, List<File> merges) throws IOException {
+    while (!pending.isEmpty()) {
+      final File file = get(pending.get(0));
+      pending.remove(0);
+      merges.add(file);
+    }
+  }
+
+  /** Waits for <code>future</code>, rethrowing the exception it failed with, if any. */
+  static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new ThreadInterruptedException(e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
   /** Sort a single partition in-memory. */
   protected File sortPartition(int len) throws IOException {
-    BytesRefList data = this.buffer;
+    final File tempFile = sortPartition(buffer);
+    // Clean up the buffer for the next partition.
+    buffer.clear();
+    return tempFile;
+  }
+
+  /** Sorts <code>data</code> and writes it to a new temporary file. */
+  private File sortPartition(BytesRefList data) throws IOException {
     File tempFile = File.createTempFile("sort", "partition", tempDirectory);
 
-    long start = System.currentTimeMillis();
-    sortInfo.sortTime += (System.currentTimeMillis() - start);
-    
-    final ByteSequencesWriter out = new ByteSequencesWriter(tempFile);
+    boolean success = false;
+    final ByteSequencesWriter out = tempWriter(new BufferedOutputStream(new FileOutputStream(tempFile), FILE_BUFFER_SIZE));
     BytesRef spare;
     try {
-      BytesRefIterator iter = buffer.iterator(comparator);
+      long start = System.currentTimeMillis();
+      BytesRefIterator iter = data.iterator(comparator);
+      final long elapsed = System.currentTimeMillis() - start;
+      synchronized (sortInfo) {
+        sortInfo.sortTime += elapsed;
+      }
+
       while((spare = iter.next()) != null) {
         assert spare.length <= Short.MAX_VALUE;
         out.write(spare);
       }
       
       out.close();
-
-      // Clean up the buffer for the next partition.
-      data.clear();
+      success = true;
       return tempFile;
     } finally {
       IOUtils.close(out);
+      if (!success) {
+        tempFile.delete();
+      }
     }
   }
 
-  /** Merge a list of sorted temporary files (partitions) into an output file */
-  void mergePartitions(List<File> merges, File outputFile) throws IOException {
+  /**
+   * Merge a list of sorted temporary files (partitions) into an output file.
+   * The RAM buffer, unused while merging, is shared by the buffers of the
+   * inputs and the output; with several sorting threads, each is read ahead
+   * (or written) asynchronously, in two halves.
+   * 
+   * @param encodeOutput whether <code>outputFile</code> is a temporary file,
+   *   written in the {@link TempEncoding}.
+   */
+  void mergePartitions(List<File> merges, File outputFile, boolean encodeOutput) throws IOException {
     long start = System.currentTimeMillis();
 
-    ByteSequencesWriter out = new ByteSequencesWriter(outputFile);
+    final int bufferSize = (int) Math.max(MIN_MERGE_BUFFER_SIZE, Math.min(MAX_MERGE_BUFFER_SIZE,
+        ramBufferSize.bytes / (2L * (merges.size() + 1))));
+    final ExecutorService executor = sortThreads == 1
+        ? null : Executors.newFixedThreadPool(sortThreads, new NamedThreadFactory("sort-merge"));
+    try {
+      mergePartitions(merges, outputFile, encodeOutput, bufferSize, executor);
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+
+    for (File file : merges) {
+      sortInfo.bytesRead += file.length();
+    }
+    sortInfo.bytesWritten += outputFile.length();
+    sortInfo.mergeTime += System.currentTimeMillis() - start;
+    sortInfo.mergeRounds++;
+  }
+
+  private void mergePartitions(List<File> merges, File outputFile, boolean encodeOutput, int bufferSize,
+      ExecutorService executor) throws IOException {
+    OutputStream os = new FileOutputStream(outputFile);
+    os = executor == null
+        ? new BufferedOutputStream(os, bufferSize) : new WriteBehindOutputStream(os, bufferSize, executor);
+    ByteSequencesWriter out = encodeOutput ? tempWriter(os) : new ByteSequencesWriter(new DataOutputStream(os));
 
     PriorityQueue<FileAndTop> queue = new PriorityQueue<FileAndTop>(merges.size()) {
       protected boolean lessThan(FileAndTop a, FileAndTop b) {
@@ -364,7 +606,9 @@ public final class Sort {
     try {
       // Open streams and read the top for each file
       for (int i = 0; i < merges.size(); i++) {
-        streams[i] = new ByteSequencesReader(merges.get(i));
+        final InputStream is = new FileInputStream(merges.get(i));
+        streams[i] = tempReader(executor == null
+            ? new BufferedInputStream(is, bufferSize) : new ReadAheadInputStream(is, bufferSize, executor));
         byte line[] = streams[i].read();
         if (line != null) {
           queue.insertWithOverflow(new FileAndTop(i, line));
@@ -384,9 +628,6 @@ public final class Sort {
           queue.updateTop();
         }
       }
-  
-      sortInfo.mergeTime += System.currentTimeMillis() - start;
-      sortInfo.mergeRounds++;
     } finally {
       // The logic below is: if an exception occurs in closing out, it has a priority over exceptions
       // happening in closing streams.
@@ -398,22 +639,66 @@ public final class Sort {
     }
   }
 
+  /** Opens a writer of a temporary file, in the {@link TempEncoding}, to a buffered stream. */
+  private ByteSequencesWriter tempWriter(OutputStream os) {
+    switch (tempEncoding) {
+      case RAW:
+        return new ByteSequencesWriter(new DataOutputStream(os));
+      case PREFIX_DELTA:
+        return new PrefixDeltaWriter(new DataOutputStream(os));
+      case PREFIX_DELTA_DEFLATE:
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        return new PrefixDeltaWriter(new DataOutputStream(new BufferedOutputStream(
+            new DeflaterOutputStream(os, deflater) {
+              @Override
+              public void close() throws IOException {
+                try {
+                  super.close();
+                } finally {
+                  deflater.end();
+                }
+              }
+            })));
+      default:
+        throw new AssertionError(tempEncoding);
+    }
+  }
+
+  /** Opens a reader of a temporary file, in the {@link TempEncoding}, from a buffered stream. */
+  private ByteSequencesReader tempReader(InputStream is) {
+    switch (tempEncoding) {
+      case RAW:
+        return new ByteSequencesReader(new DataInputStream(is));
+      case PREFIX_DELTA:
+        return new PrefixDeltaReader(new DataInputStream(is));
+      case PREFIX_DELTA_DEFLATE:
+        return new PrefixDeltaReader(new DataInputStream(new BufferedInputStream(new InflaterInputStream(is))));
+      default:
+        throw new AssertionError(tempEncoding);
+    }
+  }
+
   /** Read in a single partition of data 
    * 一个partition的大小是BytesRefList设定的一个默认大小*/
   int readPartition(ByteSequencesReader reader) throws IOException {
+    return readPartition(reader, buffer, ramBufferSize.bytes);
+  }
+
+  /** Read in a single partition of at most about <code>maxBytes</code> into <code>data</code>. */
+  private int readPartition(ByteSequencesReader reader, BytesRefList data, int maxBytes) throws IOException {
     long start = System.currentTimeMillis();
     final BytesRef scratch = new BytesRef();
     while ((scratch.bytes = reader.read()) != null) {
       scratch.length = scratch.bytes.length; 
-      buffer.append(scratch);
+      data.append(scratch);
       // Account for the created objects.
       // (buffer slots do not account to buffer size.) 
-      if (ramBufferSize.bytes < buffer.bytesUsed()) {
+      if (maxBytes < data.bytesUsed()) {
         break;
       }
     }
     sortInfo.readTime += (System.currentTimeMillis() - start);
-    return buffer.size();
+    return data.size();
   }
 
   static class FileAndTop {
@@ -437,7 +722,7 @@ public final class Sort {
     public ByteSequencesWriter(File file) throws IOException {
       this(new DataOutputStream(
           new BufferedOutputStream(
-              new FileOutputStream(file))));
+              new FileOutputStream(file), FILE_BUFFER_SIZE)));
     }
 
     /** Constructs a ByteSequencesWriter to the provided DataOutput */
@@ -499,7 +784,7 @@ public final class Sort {
     public ByteSequencesReader(File file) throws IOException {
       this(new DataInputStream(
           new BufferedInputStream(
-              new FileInputStream(file))));
+              new FileInputStream(file), FILE_BUFFER_SIZE)));
     }
 
     /** Constructs a ByteSequencesReader from the provided DataInput */
@@ -564,6 +849,101 @@ public final class Sort {
     }
   }
 
+  /**
+   * Writes entries as deltas to the previous one.
+   * 
+   * @see TempEncoding#PREFIX_DELTA
+   */
+  static final class PrefixDeltaWriter extends ByteSequencesWriter {
+    private final DataOutput out;
+    private final BytesRef previous = new BytesRef();
+
+    PrefixDeltaWriter(DataOutput out) {
+      super(out);
+      this.out = out;
+    }
+
+    @Override
+    public void write(byte [] bytes, int off, int len) throws IOException {
+      assert len >= 0 && len <= Short.MAX_VALUE;
+      final int max = Math.min(len, previous.length);
+      int prefix = 0;
+      while (prefix < max && bytes[off + prefix] == previous.bytes[prefix]) {
+        prefix++;
+      }
+      writeVInt(out, prefix);
+      writeVInt(out, len - prefix);
+      out.write(bytes, off + prefix, len - prefix);
+
+      previous.grow(len);
+      System.arraycopy(bytes, off + prefix, previous.bytes, prefix, len - prefix);
+      previous.length = len;
+    }
+
+    private static void writeVInt(DataOutput out, int i) throws IOException {
+      while ((i & ~0x7F) != 0) {
+        out.writeByte((i & 0x7F) | 0x80);
+        i >>>= 7;
+      }
+      out.writeByte(i);
+    }
+  }
+
+  /**
+   * Reads entries written by {@link PrefixDeltaWriter}.
+   */
+  static final class PrefixDeltaReader extends ByteSequencesReader {
+    private final DataInput in;
+    private final BytesRef previous = new BytesRef();
+
+    PrefixDeltaReader(DataInput in) {
+      super(in);
+      this.in = in;
+    }
+
+    /** Decodes the next entry into {@link #previous}. */
+    private boolean readNext() throws IOException {
+      final byte first;
+      try {
+        first = in.readByte();
+      } catch (EOFException e) {
+        return false;
+      }
+      final int prefix = readVInt(first);
+      final int suffix = readVInt(in.readByte());
+      previous.grow(prefix + suffix);
+      in.readFully(previous.bytes, prefix, suffix);
+      previous.length = prefix + suffix;
+      return true;
+    }
+
+    private int readVInt(byte b) throws IOException {
+      int i = b & 0x7F;
+      for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+        b = in.readByte();
+        i |= (b & 0x7F) << shift;
+      }
+      return i;
+    }
+
+    @Override
+    public boolean read(BytesRef ref) throws IOException {
+      if (!readNext()) {
+        return false;
+      }
+      ref.copyBytes(previous);
+      return true;
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+      if (!readNext()) {
+        return null;
+      }
+      return Arrays.copyOf(previous.bytes, previous.length);
+    }
+  }
+
   /** Returns the comparator in use to sort entries */
   public Comparator<BytesRef> getComparator() {
     return comparator;
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.TreeSet;
 
 import org.apache.lucene.search.spell.TermFreqIterator;
 import org.apache.lucene.search.suggest.Lookup;
@@ -38,7 +39,10 @@ import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRef;
 import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.apache.lucene.util.UnicodeUtil;
+import org.apache.lucene.util.automaton.ByteRunAutomaton;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
 import org.apache.lucene.util.fst.Builder;
 import org.apache.lucene.util.fst.FST;
 import org.apache.lucene.util.fst.FST.Arc;
@@ -66,12 +70,22 @@ public class WFSTCompletionLookup extends Lookup {
    */
   // NOTE: like FSTSuggester, this is really a WFSA, if you want to
   // customize the code to add some output you should use PairOutputs.
-  private FST<Long> fst = null;
+  private volatile FST<Long> fst = null;
   
   /** 
    * True if exact match suggestions should always be returned first.
    */
   private final boolean exactFirst;
+
+  /**
+   * True if the FST should be packed after construction.
+   */
+  private final boolean doPackFST;
+
+  /**
+   * Size of the last FST built before packing, in bytes.
+   */
+  private long unpackedSize = -1;
   
   /**
    * Calls {@link #WFSTCompletionLookup(boolean) WFSTCompletionLookup(true)}
@@ -89,7 +103,20 @@ public class WFSTCompletionLookup extends Lookup {
    *        in low-quality suggestions.
    */
   public WFSTCompletionLookup(boolean exactFirst) {
+    this(exactFirst, false);
+  }
+
+  /**
+   * Creates a new suggester.
+   * 
+   * @param doPackFST <code>true</code> if the FST should be packed after
+   *        construction (smaller and usually faster to traverse, but slower
+   *        to build). See {@link #getUnpackedSizeInBytes()}.
+   * @see #WFSTCompletionLookup(boolean)
+   */
+  public WFSTCompletionLookup(boolean exactFirst, boolean doPackFST) {
     this.exactFirst = exactFirst;
+    this.doPackFST = doPackFST;
   }
   
   @Override
@@ -100,7 +127,8 @@ public class WFSTCompletionLookup extends Lookup {
     IntsRef scratchInts = new IntsRef();
     BytesRef previous = null;
     PositiveIntOutputs outputs = PositiveIntOutputs.getSingleton(true);
-    Builder<Long> builder = new Builder<Long>(FST.INPUT_TYPE.BYTE1, outputs);
+    Builder<Long> builder = new Builder<Long>(FST.INPUT_TYPE.BYTE1, 0, 0, true, true, 
+        Integer.MAX_VALUE, outputs, null, doPackFST);
     while ((scratch = iter.next()) != null) {
       long cost = iter.weight();
       
@@ -114,7 +142,29 @@ public class WFSTCompletionLookup extends Lookup {
       builder.add(scratchInts, cost);
       previous.copyBytes(scratch);
     }
-    fst = builder.finish();
+    FST<Long> fst = builder.finish();
+    unpackedSize = fst == null ? 0 : fst.sizeInBytes();
+    if (doPackFST && fst != null) {
+      fst = FSTCompletionBuilder.pack(fst);
+    }
+    this.fst = fst;
+  }
+
+  /**
+   * Returns the size of the FST in bytes or <code>0</code> if there is none.
+   */
+  public long getSizeInBytes() {
+    final FST<Long> fst = this.fst;
+    return fst == null ? 0 : fst.sizeInBytes();
+  }
+
+  /**
+   * Returns the size of the FST before it was packed (equal to
+   * {@link #getSizeInBytes()} if it was not packed) or <code>-1</code> if the
+   * FST was not built by this instance.
+   */
+  public long getUnpackedSizeInBytes() {
+    return unpackedSize;
   }
 
   
@@ -135,6 +185,7 @@ public class WFSTCompletionLookup extends Lookup {
   public boolean load(InputStream input) throws IOException {
     try {
       this.fst = new FST<Long>(new InputStreamDataInput(input), PositiveIntOutputs.getSingleton(true));
+      this.unpackedSize = -1;
     } finally {
       IOUtils.close(input);
     }
@@ -144,20 +195,36 @@ public class WFSTCompletionLookup extends Lookup {
   @Override
   public List<LookupResult> lookup(CharSequence key, boolean onlyMorePopular, int num) {
     assert num > 0;
+    final FST<Long> fst = this.fst;
+    if (fst == null) {
+      return Collections.<LookupResult>emptyList();
+    }
     BytesRef scratch = new BytesRef(key);
-    int prefixLength = scratch.length;
     Arc<Long> arc = new Arc<Long>();
     
     // match the prefix portion exactly
     Long prefixOutput = null;
     try {
-      prefixOutput = lookupPrefix(scratch, arc);
+      prefixOutput = lookupPrefix(fst, scratch, arc);
     } catch (IOException bogus) { throw new RuntimeException(bogus); }
     
     if (prefixOutput == null) {
       return Collections.<LookupResult>emptyList();
     }
     
+    try {
+      return complete(fst, scratch, arc, prefixOutput, num);
+    } catch (IOException bogus) { throw new RuntimeException(bogus); }
+  }
+
+  /**
+   * Collects the top <code>num</code> completions of <code>scratch</code>,
+   * the bytes of which lead to <code>arc</code> with the given output. The
+   * contents of <code>scratch</code> are modified.
+   */
+  private List<LookupResult> complete(FST<Long> fst, BytesRef scratch, Arc<Long> arc,
+      long prefixOutput, int num) throws IOException {
+    int prefixLength = scratch.length;
     List<LookupResult> results = new ArrayList<LookupResult>(num);
     CharsRef spare = new CharsRef();
     if (exactFirst && arc.isFinal()) {
@@ -170,10 +237,7 @@ public class WFSTCompletionLookup extends Lookup {
     }
     
     // complete top-N
-    MinResult<Long> completions[] = null;
-    try {
-      completions = Util.shortestPaths(fst, arc, weightComparator, num);
-    } catch (IOException bogus) { throw new RuntimeException(bogus); }
+    MinResult<Long> completions[] = Util.shortestPaths(fst, arc, weightComparator, num);
     
     BytesRef suffix = new BytesRef(8);
     for (MinResult<Long> completion : completions) {
@@ -188,7 +252,153 @@ public class WFSTCompletionLookup extends Lookup {
     return results;
   }
   
-  private Long lookupPrefix(BytesRef scratch, Arc<Long> arc) throws /*Bogus*/IOException {
+  /**
+   * Typo-tolerant completion: returns the top <code>num</code> suggestions (by
+   * weight) among the completions of all prefixes within <code>maxEdits</code>
+   * edits of <code>key</code>. Edits are insertions, deletions, substitutions and
+   * transpositions of Unicode code points.
+   * 
+   * <p>A Levenshtein automaton for <code>key</code> is intersected with the FST to
+   * find the shortest accepted prefixes; a single best-first search over all of
+   * them then retrieves the top suggestions, so every suggestion is returned
+   * once, regardless of how many matching prefixes it has.
+   * 
+   * @param maxEdits
+   *          The maximum number of edits, at most
+   *          {@link LevenshteinAutomata#MAXIMUM_SUPPORTED_DISTANCE}.
+   */
+  public List<LookupResult> fuzzyLookup(CharSequence key, int maxEdits, int num) {
+    assert num > 0;
+    if (maxEdits < 0 || maxEdits > LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE) {
+      throw new IllegalArgumentException("maxEdits must be between 0 and " 
+          + LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE + ": " + maxEdits);
+    }
+    final FST<Long> fst = this.fst;
+    if (fst == null) {
+      return Collections.<LookupResult>emptyList();
+    }
+
+    final ByteRunAutomaton matcher = new ByteRunAutomaton(
+        new LevenshteinAutomata(key.toString(), true).toAutomaton(maxEdits), true);
+    final BytesReader bytesReader = fst.getBytesReader(0);
+    final TreeSet<FuzzyPath> queue = new TreeSet<FuzzyPath>();
+    final List<LookupResult> results = new ArrayList<LookupResult>(Math.min(10, num));
+    try {
+      // find the shortest matching prefixes
+      collectFuzzyPrefixes(fst, bytesReader, matcher, matcher.getInitialState(), 
+          fst.getFirstArc(new Arc<Long>()), 0, new BytesRef(), queue, num);
+
+      // best-first search below all of them: outputs are pushed towards the root,
+      // so the cost of a path is also the cost of its cheapest completion
+      CharsRef spare = new CharsRef();
+      while (results.size() < num && !queue.isEmpty()) {
+        final FuzzyPath path = queue.pollFirst();
+        if (path.arc.label == FST.END_LABEL) {
+          spare.grow(path.input.length);
+          UnicodeUtil.UTF8toUTF16(path.input, spare);
+          results.add(new LookupResult(spare.toString(), decodeWeight(path.cost)));
+          continue;
+        }
+
+        final Arc<Long> arc = fst.readFirstTargetArc(path.arc, new Arc<Long>(), bytesReader);
+        while (true) {
+          BytesRef input = path.input;
+          if (arc.label != FST.END_LABEL) {
+            input = new BytesRef(path.input.length + 1);
+            input.copyBytes(path.input);
+            input.bytes[input.length++] = (byte) arc.label;
+          }
+          offer(queue, new FuzzyPath(path.cost + arc.output, input, 
+              new Arc<Long>().copyFrom(arc)), num - results.size());
+          if (arc.isLast()) {
+            break;
+          }
+          fst.readNextArc(arc, bytesReader);
+        }
+      }
+    } catch (IOException bogus) { throw new RuntimeException(bogus); }
+    return results;
+  }
+
+  /**
+   * Walks the FST and the <code>matcher</code> in parallel from <code>arc</code>
+   * and queues the paths on which <code>matcher</code> first reaches an
+   * accepting state.
+   */
+  private static void collectFuzzyPrefixes(FST<Long> fst, BytesReader bytesReader, 
+      ByteRunAutomaton matcher, int state, Arc<Long> arc, long cost, BytesRef input,
+      TreeSet<FuzzyPath> queue, int num) throws IOException {
+    if (matcher.isAccept(state)) {
+      // every completion of this prefix matches; longer prefixes add nothing
+      offer(queue, new FuzzyPath(cost, BytesRef.deepCopyOf(input), new Arc<Long>().copyFrom(arc)), num);
+      return;
+    }
+
+    final Arc<Long> child = fst.readFirstTargetArc(arc, new Arc<Long>(), bytesReader);
+    while (true) {
+      if (child.label != FST.END_LABEL) {
+        final int next = matcher.step(state, child.label);
+        if (next != -1) {
+          if (input.length == input.bytes.length) {
+            input.grow(input.length + 1);
+          }
+          input.bytes[input.length++] = (byte) child.label;
+          collectFuzzyPrefixes(fst, bytesReader, matcher, next, child, 
+              cost + child.output, input, queue, num);
+          input.length--;
+        }
+      }
+      if (child.isLast()) {
+        break;
+      }
+      fst.readNextArc(child, bytesReader);
+    }
+  }
+
+  /**
+   * Adds <code>path</code> to <code>queue</code> unless <code>queue</code> already
+   * holds <code>limit</code> better paths.
+   */
+  private static void offer(TreeSet<FuzzyPath> queue, FuzzyPath path, int limit) {
+    if (queue.size() == limit) {
+      if (path.compareTo(queue.last()) >= 0) {
+        return;
+      }
+      queue.pollLast();
+    }
+    queue.add(path);
+  }
+
+  /**
+   * A path of the fuzzy search: the input up to (and including) <code>arc</code>
+   * and the accumulated cost.
+   */
+  private static final class FuzzyPath implements Comparable<FuzzyPath> {
+    final long cost;
+    final BytesRef input;
+    final Arc<Long> arc;
+
+    FuzzyPath(long cost, BytesRef input, Arc<Long> arc) {
+      this.cost = cost;
+      this.input = input;
+      this.arc = arc;
+    }
+
+    @Override
+    public int compareTo(FuzzyPath other) {
+      if (cost != other.cost) {
+        return cost < other.cost ? -1 : 1;
+      }
+      final int cmp = input.compareTo(other.input);
+      if (cmp != 0) {
+        return cmp;
+      }
+      // a completed input comes before its extensions
+      return (arc.label == FST.END_LABEL ? 0 : 1) - (other.arc.label == FST.END_LABEL ? 0 : 1);
+    }
+  }
+  
+  private static Long lookupPrefix(FST<Long> fst, BytesRef scratch, Arc<Long> arc) throws /*Bogus*/IOException {
     assert 0 == fst.outputs.getNoOutput().longValue();
     long output = 0;
     BytesReader bytesReader = fst.getBytesReader(0);
@@ -214,10 +424,14 @@ public class WFSTCompletionLookup extends Lookup {
    * or null if it does not exist.
    */
   public Object get(CharSequence key) {
+    final FST<Long> fst = this.fst;
+    if (fst == null) {
+      return null;
+    }
     Arc<Long> arc = new Arc<Long>();
     Long result = null;
     try {
-      result = lookupPrefix(new BytesRef(key), arc);
+      result = lookupPrefix(fst, new BytesRef(key), arc);
     } catch (IOException bogus) { throw new RuntimeException(bogus); }
     if (result == null || !arc.isFinal()) {
       return null;
@@ -226,6 +440,85 @@ public class WFSTCompletionLookup extends Lookup {
     }
   }
   
+  /**
+   * Creates a new {@link LookupSession} for interactive completion. The session
+   * keeps the arc and the accumulated output reached for every byte of the
+   * current key, so each typed character costs a single transition.
+   */
+  public LookupSession<LookupResult> newSession() {
+    return new Session();
+  }
+
+  /**
+   * A {@link LookupSession} tracking the arcs and outputs along the current key.
+   */
+  private final class Session extends LookupSession<LookupResult> {
+    private final FST<Long> fst = WFSTCompletionLookup.this.fst;
+    private final BytesReader bytesReader = fst == null ? null : fst.getBytesReader(0);
+    private final BytesRef scratch = new BytesRef();
+
+    /** <code>arcs[d]</code> is the arc reached after <code>d</code> bytes. */
+    private Arc<Long>[] arcs;
+    /** <code>outputs[d]</code> is the output accumulated up to <code>arcs[d]</code>. */
+    private long[] outputs = new long[8];
+    private int depth;
+
+    Session() {
+      arcs = newArcs(8, null);
+      if (fst != null) {
+        fst.getFirstArc(arcs[0]);
+      }
+    }
+
+    @Override
+    protected boolean push(int label) throws IOException {
+      if (fst == null) {
+        return false;
+      }
+      final int level = depth + 1;
+      if (level >= arcs.length) {
+        arcs = newArcs(ArrayUtil.oversize(level + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF), arcs);
+        outputs = ArrayUtil.grow(outputs, level + 1);
+      }
+      if (fst.findTargetArc(label, arcs[depth], arcs[level], bytesReader) == null) {
+        return false;
+      }
+      outputs[level] = outputs[depth] + arcs[level].output.longValue();
+      depth = level;
+      return true;
+    }
+
+    @Override
+    protected void pop() {
+      assert depth > 0;
+      depth--;
+    }
+
+    @Override
+    protected List<LookupResult> lookup(BytesRef key, int num) throws IOException {
+      assert num > 0;
+      if (fst == null) {
+        return Collections.<LookupResult>emptyList();
+      }
+      scratch.copyBytes(key);
+      return complete(fst, scratch, new Arc<Long>().copyFrom(arcs[depth]), outputs[depth], num);
+    }
+
+    @SuppressWarnings({"rawtypes","unchecked"})
+    private Arc<Long>[] newArcs(int size, Arc<Long>[] previous) {
+      final Arc<Long>[] newArcs = new Arc[size];
+      int i = 0;
+      if (previous != null) {
+        System.arraycopy(previous, 0, newArcs, 0, previous.length);
+        i = previous.length;
+      }
+      for (; i < newArcs.length; i++) {
+        newArcs[i] = new Arc<Long>();
+      }
+      return newArcs;
+    }
+  }
+  
   /** cost -> weight */
   private static int decodeWeight(long encoded) {
     return (int)(Integer.MAX_VALUE - encoded);
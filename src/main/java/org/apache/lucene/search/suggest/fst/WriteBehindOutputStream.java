@@ -0,0 +1,115 @@
+package org.apache.lucene.search.suggest.fst;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An {@link OutputStream} that buffers writes in chunks and writes full
+ * chunks to its output on an {@link ExecutorService}, while the next chunk
+ * is filled.
+ *
+ * @see Sort#mergePartitions
+ */
+final class WriteBehindOutputStream extends OutputStream {
+  private final OutputStream out;
+  private final ExecutorService executor;
+
+  private byte[] current;
+  private byte[] spare;
+  private int upto;
+  /** The pending write of {@link #spare}, if any. */
+  private Future<Void> pending;
+
+  WriteBehindOutputStream(OutputStream out, int chunkSize, ExecutorService executor) {
+    this.out = out;
+    this.executor = executor;
+    this.current = new byte[chunkSize];
+    this.spare = new byte[chunkSize];
+  }
+
+  /** Waits for the previous chunk to be written, and hands off the current one. */
+  private void writeChunk() throws IOException {
+    awaitPending();
+    final byte[] chunk = current;
+    final int length = upto;
+    pending = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        out.write(chunk, 0, length);
+        return null;
+      }
+    });
+    current = spare;
+    spare = chunk;
+    upto = 0;
+  }
+
+  private void awaitPending() throws IOException {
+    if (pending != null) {
+      final Future<Void> future = pending;
+      pending = null;
+      Sort.get(future);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (upto == current.length) {
+      writeChunk();
+    }
+    current[upto++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (upto == current.length) {
+        writeChunk();
+      }
+      final int count = Math.min(len, current.length - upto);
+      System.arraycopy(b, off, current, upto, count);
+      upto += count;
+      off += count;
+      len -= count;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (upto > 0) {
+      writeChunk();
+    }
+    awaitPending();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      // leaves no pending write, even if it fails
+      flush();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,648 @@
+package org.apache.lucene.search.suggest.jaspell;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.lucene.search.suggest.FlatTernaryTree;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.TernaryTreeBuilder;
+import org.apache.lucene.search.suggest.TernaryTreeSearch;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * A {@link JaspellTernarySearchTrie} equivalent that keeps its nodes in parallel
+ * primitive arrays instead of <code>TSTNode</code> objects, for keys whose data
+ * is a <code>long</code> weight.
+ *
+ * <p>A node is an index into the arrays: its split character, the indexes of its
+ * lo, eq and hi kids (<code>0</code> meaning none), its weight and the max weight
+ * of its subtrie. Characters are compared in lower case, like in
+ * {@link JaspellTernarySearchTrie}, and searches return the same results. Keys
+ * are rebuilt along the search path, so parent links are only kept if asked for,
+ * to support {@link #getKey(int)}; without them a node takes 30 bytes, and
+ * there is no per-node object or boxed weight.
+ *
+ * <p>{@link #put} may be called while other threads search the trie: nodes are
+ * only appended, new nodes are hidden from searches until the put completes, and
+ * weights are replaced atomically, so searches see each key either before or
+ * after the change and never block. Modifications are serialized.
+ *
+ * @see JaspellLookup#JaspellLookup(boolean)
+ * @lucene.experimental
+ */
+public class CompactTernarySearchTrie {
+
+  /** The weight of nodes without data. */
+  static final long NO_DATA = Long.MIN_VALUE;
+
+  /**
+   * The node arrays. They are replaced by larger copies as the trie grows, so
+   * that the ones a search started with stay consistent.
+   */
+  private static final class Nodes {
+    final char[] splitchars;
+    final int[] lo, eq, hi;
+    /** <code>null</code> unless parent links are kept. */
+    final int[] parents;
+    final AtomicLongArray weights;
+    final AtomicLongArray maxWeights;
+
+    Nodes(char[] splitchars, int[] lo, int[] eq, int[] hi, int[] parents,
+        AtomicLongArray weights, AtomicLongArray maxWeights) {
+      this.splitchars = splitchars;
+      this.lo = lo;
+      this.eq = eq;
+      this.hi = hi;
+      this.parents = parents;
+      this.weights = weights;
+      this.maxWeights = maxWeights;
+    }
+
+    Nodes(int capacity, boolean parentLinks) {
+      this(new char[capacity], new int[capacity], new int[capacity], new int[capacity],
+          parentLinks ? new int[capacity] : null,
+          new AtomicLongArray(capacity), new AtomicLongArray(capacity));
+    }
+
+    int capacity() {
+      return splitchars.length;
+    }
+
+    /** Returns a copy of the first <code>size</code> nodes with room for more. */
+    Nodes grow(int size, int capacity) {
+      return new Nodes(Arrays.copyOf(splitchars, capacity), Arrays.copyOf(lo, capacity),
+          Arrays.copyOf(eq, capacity), Arrays.copyOf(hi, capacity),
+          parents == null ? null : Arrays.copyOf(parents, capacity),
+          copyOf(weights, size, capacity), copyOf(maxWeights, size, capacity));
+    }
+
+    private static AtomicLongArray copyOf(AtomicLongArray array, int size, int capacity) {
+      final long[] copy = new long[capacity];
+      for (int i = 0; i < size; i++) {
+        copy[i] = array.get(i);
+      }
+      return new AtomicLongArray(copy);
+    }
+  }
+
+  private volatile Nodes nodes;
+
+  /**
+   * The number of nodes searches may visit, node <code>0</code> included.
+   * Written last by {@link #put}, and read before {@link #nodes} and
+   * {@link #root} by searches.
+   */
+  private volatile int size = 1;
+
+  /** The root node, if {@link #size} is greater than one. */
+  private int root;
+
+  /**
+   * Constructs an empty trie.
+   *
+   * @param parentLinks
+   *          Whether to keep a link from each node to its parent, for
+   *          {@link #getKey(int)}.
+   */
+  public CompactTernarySearchTrie(boolean parentLinks) {
+    this.nodes = new Nodes(16, parentLinks);
+  }
+
+  /** Constructs an empty trie without parent links. */
+  public CompactTernarySearchTrie() {
+    this(false);
+  }
+
+  /** Returns whether this trie keeps parent links. */
+  public boolean hasParentLinks() {
+    return nodes.parents != null;
+  }
+
+  /**
+   * Returns <code>link</code> if it was visible when the search started, the
+   * search having seen <code>size</code> nodes, or <code>0</code>.
+   */
+  private static int visible(int link, int size) {
+    return link < size ? link : 0;
+  }
+
+  /**
+   * Returns the node indexed by key, or <code>0</code> if that node doesn't
+   * exist.
+   */
+  public int getNode(CharSequence key) {
+    final int size = this.size;
+    return getNode(key, nodes, size, root, null);
+  }
+
+  /**
+   * Returns the node indexed by key, or <code>0</code>, appending the split
+   * chars along the way (the key as stored) to <code>path</code> if not
+   * <code>null</code>.
+   */
+  private static int getNode(CharSequence key, Nodes nodes, int size, int root, StringBuilder path) {
+    if (key == null || key.length() == 0 || size == 1) {
+      return 0;
+    }
+    int node = root;
+    int charIndex = 0;
+    while (node != 0) {
+      final char splitchar = nodes.splitchars[node];
+      final int charComp = JaspellTernarySearchTrie.compareCharsAlphabetically(
+          key.charAt(charIndex), splitchar);
+      if (charComp == 0) {
+        if (path != null) {
+          path.append(splitchar);
+        }
+        if (++charIndex == key.length()) {
+          return node;
+        }
+        node = visible(nodes.eq[node], size);
+      } else if (charComp < 0) {
+        node = visible(nodes.lo[node], size);
+      } else {
+        node = visible(nodes.hi[node], size);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the weight indexed by key, or <code>null</code> if the key does not
+   * exist.
+   */
+  public Long get(CharSequence key) {
+    final int size = this.size;
+    final Nodes nodes = this.nodes;
+    final int node = getNode(key, nodes, size, root, null);
+    if (node == 0) {
+      return null;
+    }
+    final long weight = nodes.weights.get(node);
+    return weight == NO_DATA ? null : Long.valueOf(weight);
+  }
+
+  /**
+   * Returns the key that indexes the node argument.
+   *
+   * @throws IllegalStateException
+   *           If this trie does not keep parent links.
+   */
+  public String getKey(int node) {
+    final Nodes nodes = this.nodes;
+    if (nodes.parents == null) {
+      throw new IllegalStateException("this trie does not keep parent links");
+    }
+    final StringBuilder key = new StringBuilder();
+    key.append(nodes.splitchars[node]);
+    int last = node;
+    for (int current = nodes.parents[node]; current != 0; current = nodes.parents[current]) {
+      if (nodes.eq[current] == last) {
+        key.append(nodes.splitchars[current]);
+      }
+      last = current;
+    }
+    return key.reverse().toString();
+  }
+
+  /**
+   * Stores a weight in the trie, replacing the previous one if the key exists.
+   *
+   * @throws IllegalArgumentException
+   *           If the key is empty or the weight is <code>Long.MIN_VALUE</code>,
+   *           which marks nodes without data.
+   */
+  public synchronized void put(CharSequence key, long weight) {
+    if (key.length() == 0) {
+      throw new IllegalArgumentException("attempt to put key of zero length");
+    }
+    if (weight == NO_DATA) {
+      throw new IllegalArgumentException("Long.MIN_VALUE is not a valid weight");
+    }
+    // at most one new node per char: grow once, before linking anything
+    final int visible = size;
+    Nodes nodes = this.nodes;
+    if (visible + key.length() > nodes.capacity()) {
+      nodes = nodes.grow(visible,
+          ArrayUtil.oversize(visible + key.length(), RamUsageEstimator.NUM_BYTES_LONG));
+      this.nodes = nodes;
+    }
+
+    int newSize = visible;
+    if (visible == 1) {
+      root = newSize;
+      newSize = newNode(nodes, newSize, key.charAt(0), 0);
+    }
+    int node = root;
+    int charIndex = 0;
+    while (true) {
+      // raise the bounds on the way down; new nodes are only seen after the put
+      if (node < visible) {
+        if (nodes.maxWeights.get(node) < weight) {
+          nodes.maxWeights.set(node, weight);
+        }
+      } else {
+        nodes.maxWeights.lazySet(node, weight);
+      }
+      final int charComp = JaspellTernarySearchTrie.compareCharsAlphabetically(
+          key.charAt(charIndex), nodes.splitchars[node]);
+      int[] links;
+      if (charComp == 0) {
+        if (++charIndex == key.length()) {
+          break;
+        }
+        links = nodes.eq;
+      } else if (charComp < 0) {
+        links = nodes.lo;
+      } else {
+        links = nodes.hi;
+      }
+      if (links[node] == 0) {
+        links[node] = newSize;
+        newSize = newNode(nodes, newSize, key.charAt(charIndex), node);
+      }
+      node = links[node];
+    }
+    if (node < visible) {
+      nodes.weights.set(node, weight);
+    } else {
+      nodes.weights.lazySet(node, weight);
+    }
+    size = newSize;
+  }
+
+  /** Initializes node <code>newSize</code> and returns the new size. */
+  private static int newNode(Nodes nodes, int newSize, char splitchar, int parent) {
+    nodes.splitchars[newSize] = splitchar;
+    if (nodes.parents != null) {
+      nodes.parents[newSize] = parent;
+    }
+    nodes.weights.lazySet(newSize, NO_DATA);
+    nodes.maxWeights.lazySet(newSize, NO_DATA);
+    return newSize + 1;
+  }
+
+  /** The nodes a search started with, as seen by {@link TernaryTreeSearch}. */
+  private static final class View extends TernaryTreeSearch {
+    private final Nodes nodes;
+    private final int size;
+
+    View(Nodes nodes, int size) {
+      this.nodes = nodes;
+      this.size = size;
+    }
+
+    @Override
+    protected char splitchar(int node) {
+      return nodes.splitchars[node];
+    }
+
+    @Override
+    protected int lo(int node) {
+      return visible(nodes.lo[node], size);
+    }
+
+    @Override
+    protected int eq(int node) {
+      return visible(nodes.eq[node], size);
+    }
+
+    @Override
+    protected int hi(int node) {
+      return visible(nodes.hi[node], size);
+    }
+
+    @Override
+    protected long weight(int node) {
+      return nodes.weights.get(node);
+    }
+
+    @Override
+    protected long maxWeight(int node) {
+      return nodes.maxWeights.get(node);
+    }
+  }
+
+  /**
+   * Returns the <code>numReturnValues</code> keys beginning with a given prefix
+   * that have the highest weights, with their weights, in descending weight
+   * order.
+   *
+   * @see JaspellTernarySearchTrie#topMatchPrefix
+   */
+  public List<LookupResult> topMatchPrefix(CharSequence prefix, int numReturnValues) {
+    final int size = this.size;
+    final Nodes nodes = this.nodes;
+    final StringBuilder path = new StringBuilder();
+    final int startNode = getNode(prefix, nodes, size, root, path);
+    if (startNode == 0) {
+      return new ArrayList<LookupResult>();
+    }
+    return new View(nodes, size).topMatchPrefix(startNode, path.toString(), numReturnValues);
+  }
+
+  /**
+   * Returns the <code>numReturnValues</code> keys with the highest weights that
+   * begin with a prefix within <code>maxEdits</code> edits of <code>key</code>,
+   * with their weights, in descending weight order.
+   *
+   * @see JaspellTernarySearchTrie#fuzzyMatchPrefix
+   */
+  public List<LookupResult> fuzzyMatchPrefix(CharSequence key, int maxEdits, int numReturnValues) {
+    final int size = this.size;
+    return new View(nodes, size).fuzzyMatchPrefix(size == 1 ? 0 : root, key, maxEdits, true,
+        numReturnValues);
+  }
+
+  /**
+   * Returns, in alphabetical order, the first <code>numReturnValues</code> keys
+   * beginning with a given prefix, with their weights.
+   *
+   * @see JaspellTernarySearchTrie#sortedMatchPrefix
+   */
+  public List<LookupResult> sortedMatchPrefix(CharSequence prefix, int numReturnValues) {
+    final int size = this.size;
+    final Nodes nodes = this.nodes;
+    final StringBuilder path = new StringBuilder();
+    final int startNode = getNode(prefix, nodes, size, root, path);
+    if (startNode == 0) {
+      return new ArrayList<LookupResult>();
+    }
+    return new View(nodes, size).sortedMatchPrefix(startNode, path, numReturnValues);
+  }
+
+  /** Returns the total number of nodes in the trie. */
+  public int numNodes() {
+    return size - 1;
+  }
+
+  /** Returns the number of nodes in the trie that have data. */
+  public int numDataNodes() {
+    final int size = this.size;
+    final Nodes nodes = this.nodes;
+    int count = 0;
+    for (int i = 1; i < size; i++) {
+      if (nodes.weights.get(i) != NO_DATA) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Returns the (approximate) memory used by the trie, in bytes. */
+  public long sizeInBytes() {
+    final Nodes nodes = this.nodes;
+    final long capacity = nodes.capacity();
+    return RamUsageEstimator.sizeOf(nodes.splitchars) + RamUsageEstimator.sizeOf(nodes.lo)
+        + RamUsageEstimator.sizeOf(nodes.eq) + RamUsageEstimator.sizeOf(nodes.hi)
+        + (nodes.parents == null ? 0 : RamUsageEstimator.sizeOf(nodes.parents))
+        + 2 * (RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + capacity * RamUsageEstimator.NUM_BYTES_LONG);
+  }
+
+  /**
+   * Writes the trie in the pre-order format of {@link JaspellLookup#store}.
+   * Returns false if the trie is empty.
+   */
+  boolean write(DataOutput out) throws IOException {
+    final int size = this.size;
+    final Nodes nodes = this.nodes;
+    if (size == 1) {
+      return false;
+    }
+    int[] stack = new int[16];
+    int top = 0;
+    stack[top++] = root;
+    while (top > 0) {
+      final int node = stack[--top];
+      final int lo = visible(nodes.lo[node], size);
+      final int eq = visible(nodes.eq[node], size);
+      final int hi = visible(nodes.hi[node], size);
+      final long weight = nodes.weights.get(node);
+      byte mask = 0;
+      if (lo != 0) mask |= JaspellLookup.LO_KID;
+      if (eq != 0) mask |= JaspellLookup.EQ_KID;
+      if (hi != 0) mask |= JaspellLookup.HI_KID;
+      if (weight != NO_DATA) mask |= JaspellLookup.HAS_VALUE;
+      out.writeChar(nodes.splitchars[node]);
+      out.writeByte(mask);
+      if (weight != NO_DATA) {
+        out.writeLong(weight);
+      }
+      stack = ArrayUtil.grow(stack, top + 3);
+      if (hi != 0) stack[top++] = hi;
+      if (eq != 0) stack[top++] = eq;
+      if (lo != 0) stack[top++] = lo;
+    }
+    return true;
+  }
+
+  /**
+   * Writes the trie breadth-first to a {@link FlatTernaryTree.Writer}. Returns
+   * false if the trie is empty.
+   */
+  boolean writeFlat(FlatTernaryTree.Writer writer) throws IOException {
+    final int size = this.size;
+    final Nodes nodes = this.nodes;
+    if (size == 1) {
+      return false;
+    }
+    // the flat index of a node is its position in the queue, plus one
+    final int[] queue = new int[size - 1];
+    int tail = 0;
+    queue[tail++] = root;
+    for (int head = 0; head < tail; head++) {
+      final int node = queue[head];
+      final int lo = visible(nodes.lo[node], size);
+      final int eq = visible(nodes.eq[node], size);
+      final int hi = visible(nodes.hi[node], size);
+      int flatLo = 0, flatEq = 0, flatHi = 0;
+      if (lo != 0) {
+        queue[tail++] = lo;
+        flatLo = tail;
+      }
+      if (eq != 0) {
+        queue[tail++] = eq;
+        flatEq = tail;
+      }
+      if (hi != 0) {
+        queue[tail++] = hi;
+        flatHi = tail;
+      }
+      writer.add(nodes.splitchars[node], nodes.weights.get(node), nodes.maxWeights.get(node),
+          flatLo, flatEq, flatHi);
+    }
+    return true;
+  }
+
+  /**
+   * Reads a trie in the pre-order format of {@link JaspellLookup#store}. Nodes
+   * are numbered in that order, so kids come after their parents and the max
+   * weights are computed in a single backwards pass.
+   */
+  static CompactTernarySearchTrie read(DataInput in, boolean parentLinks) throws IOException {
+    final CompactTernarySearchTrie trie = new CompactTernarySearchTrie(parentLinks);
+    Nodes nodes = trie.nodes;
+    long[] weights = new long[nodes.capacity()];
+    // nodes whose kids are still to be read, with the kids left
+    int[] open = new int[16];
+    byte[] masks = new byte[16];
+    int top = 0;
+    int size = 1;
+    do {
+      if (size == nodes.capacity()) {
+        final int capacity = ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_LONG);
+        nodes = nodes.grow(0, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+      }
+      final int node = size++;
+      nodes.splitchars[node] = in.readChar();
+      final byte mask = in.readByte();
+      weights[node] = (mask & JaspellLookup.HAS_VALUE) != 0 ? in.readLong() : NO_DATA;
+      if (top > 0) {
+        final int parent = open[top - 1];
+        final byte left = masks[top - 1];
+        if ((left & JaspellLookup.LO_KID) != 0) {
+          nodes.lo[parent] = node;
+        } else if ((left & JaspellLookup.EQ_KID) != 0) {
+          nodes.eq[parent] = node;
+        } else {
+          nodes.hi[parent] = node;
+        }
+        // clear the lowest kid bit
+        masks[top - 1] = (byte) (left & (left - 1));
+        if (nodes.parents != null) {
+          nodes.parents[node] = parent;
+        }
+      }
+      while (top > 0 && masks[top - 1] == 0) {
+        top--;
+      }
+      final byte kids = (byte) (mask & (JaspellLookup.LO_KID | JaspellLookup.EQ_KID | JaspellLookup.HI_KID));
+      if (kids != 0) {
+        open = ArrayUtil.grow(open, top + 1);
+        masks = ArrayUtil.grow(masks, top + 1);
+        open[top] = node;
+        masks[top++] = kids;
+      }
+    } while (top > 0);
+
+    final long[] maxWeights = new long[size];
+    for (int node = size - 1; node > 0; node--) {
+      long max = weights[node];
+      if (nodes.lo[node] != 0) max = Math.max(max, maxWeights[nodes.lo[node]]);
+      if (nodes.eq[node] != 0) max = Math.max(max, maxWeights[nodes.eq[node]]);
+      if (nodes.hi[node] != 0) max = Math.max(max, maxWeights[nodes.hi[node]]);
+      maxWeights[node] = max;
+    }
+    final int capacity = nodes.capacity();
+    trie.nodes = new Nodes(nodes.splitchars, nodes.lo, nodes.eq, nodes.hi, nodes.parents,
+        new AtomicLongArray(weights), new AtomicLongArray(Arrays.copyOf(maxWeights, capacity)));
+    // nodes are numbered in pre-order
+    trie.root = 1;
+    trie.size = size;
+    return trie;
+  }
+
+  /**
+   * Builds a balanced trie bottom-up, in a single pass over keys sorted in the
+   * order of the trie; see {@link TernaryTreeBuilder}. Node handles are
+   * indexes into the arrays.
+   */
+  static final class SortedBuilder extends TernaryTreeBuilder {
+    private final CompactTernarySearchTrie trie;
+    private Nodes nodes;
+    private int size = 1;
+
+    SortedBuilder(boolean parentLinks) {
+      trie = new CompactTernarySearchTrie(parentLinks);
+      nodes = trie.nodes;
+    }
+
+    /**
+     * Adds a key; keys must be added in sorted order. Adding a key equal to the
+     * previous one, ignoring case, replaces its weight.
+     *
+     * @throws IllegalArgumentException if the key is smaller than the previous
+     *           one, or the weight is <code>Long.MIN_VALUE</code>.
+     */
+    void add(CharSequence key, long weight) {
+      if (weight == NO_DATA) {
+        throw new IllegalArgumentException("Long.MIN_VALUE is not a valid weight");
+      }
+      final int node = addKey(key);
+      if (node != 0) {
+        nodes.weights.lazySet(node, weight);
+      }
+    }
+
+    /** Links the remaining levels and returns the trie. */
+    CompactTernarySearchTrie finish() {
+      final int root = finishTree();
+      if (root != 0) {
+        trie.root = root;
+      }
+      trie.nodes = nodes;
+      trie.size = size;
+      return trie;
+    }
+
+    @Override
+    protected int compare(char c1, char c2) {
+      return JaspellTernarySearchTrie.compareCharsAlphabetically(c1, c2);
+    }
+
+    @Override
+    protected int newNode(char splitchar) {
+      if (size == nodes.capacity()) {
+        nodes = nodes.grow(size, ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_LONG));
+      }
+      // parents are set when linking
+      final int node = size;
+      size = CompactTernarySearchTrie.newNode(nodes, size, splitchar, 0);
+      return node;
+    }
+
+    @Override
+    protected void link(int node, int parent, int lo, int hi) {
+      if (nodes.parents != null) {
+        nodes.parents[node] = parent;
+      }
+      nodes.lo[node] = lo;
+      nodes.hi[node] = hi;
+      final int eq = nodes.eq[node];
+      long max = nodes.weights.get(node);
+      if (lo != 0) max = Math.max(max, nodes.maxWeights.get(lo));
+      if (eq != 0) max = Math.max(max, nodes.maxWeights.get(eq));
+      if (hi != 0) max = Math.max(max, nodes.maxWeights.get(hi));
+      nodes.maxWeights.lazySet(node, max);
+    }
+
+    @Override
+    protected void linkEq(int parent, int root) {
+      nodes.eq[parent] = root;
+    }
+  }
+}
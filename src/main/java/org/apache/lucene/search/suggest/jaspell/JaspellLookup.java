@@ -19,29 +19,47 @@ package org.apache.lucene.search.suggest.jaspell;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.lucene.search.spell.TermFreqIterator;
+import org.apache.lucene.search.suggest.FlatTernaryTree;
 import org.apache.lucene.search.suggest.Lookup;
-import org.apache.lucene.search.suggest.UnsortedTermFreqIteratorWrapper;
+import org.apache.lucene.search.suggest.SortedTermFreqIteratorWrapper;
 import org.apache.lucene.search.suggest.jaspell.JaspellTernarySearchTrie.TSTNode;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRef;
 import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.UnicodeUtil;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
 
 /**
  * Suggest implementation based on 
  * <a href="http://jaspell.sourceforge.net/">JaSpell</a>.
+ * <p>
+ * Keys are held either in a {@link JaspellTernarySearchTrie} or, for a smaller
+ * footprint, in a {@link CompactTernarySearchTrie}, which only takes
+ * {@link Number} values. Both give the same results and use the same stored
+ * format. Either can also be written in the flat format of
+ * {@link FlatTernaryTree} with {@link #storeFlat}, and {@link #loadFlat mapped}
+ * back read-only: lookups then search the mapped file in place.
  * 
  * @see JaspellTernarySearchTrie
+ * @see CompactTernarySearchTrie
  */
 public class JaspellLookup extends Lookup {
-  JaspellTernarySearchTrie trie = new JaspellTernarySearchTrie();
+  /** The trie is fully built before it is published here. */
+  volatile JaspellTernarySearchTrie trie;
+  /** Used instead of {@link #trie} if compact. */
+  volatile CompactTernarySearchTrie compactTrie;
+  /** If not null, the mapped trie used instead of the others. */
+  volatile FlatTernaryTree flat;
+  private final boolean compact;
   private boolean usePrefix = true;
   private int editDistance = 2;
   
@@ -49,17 +67,46 @@ public class JaspellLookup extends Lookup {
    * Creates a new empty trie 
    * @see #build(TermFreqIterator)
    * */
-  public JaspellLookup() {}
+  public JaspellLookup() {
+    this(false);
+  }
+
+  /**
+   * Creates a new empty trie, kept in a {@link CompactTernarySearchTrie} if
+   * <code>compact</code>.
+   * @see #build(TermFreqIterator)
+   */
+  public JaspellLookup(boolean compact) {
+    this.compact = compact;
+    if (compact) {
+      compactTrie = new CompactTernarySearchTrie();
+    } else {
+      trie = new JaspellTernarySearchTrie();
+    }
+  }
 
+  /**
+   * Builds the trie from keys sorted the way it compares them, in lower case:
+   * other input is first sorted on disk. The trie is then built balanced and
+   * bottom-up in a single pass, so no more than the trie itself is held in
+   * memory. Of keys equal ignoring case, the last in byte order wins.
+   */
   @Override
   public void build(TermFreqIterator tfit) throws IOException {
-    if (tfit.getComparator() != null) {
-      // make sure it's unsorted
-      // WTF - this could result in yet another sorted iteration....
-      tfit = new UnsortedTermFreqIteratorWrapper(tfit);
+    if (tfit.getComparator() != LowerCaseUTF16Comparator.INSTANCE) {
+      tfit = new SortedTermFreqIteratorWrapper(tfit, LowerCaseUTF16Comparator.INSTANCE);
+    }
+    final SortedTrieBuilder builder;
+    final CompactTernarySearchTrie.SortedBuilder compactBuilder;
+    if (compact) {
+      builder = null;
+      compactBuilder = new CompactTernarySearchTrie.SortedBuilder(false);
+    } else {
+      final JaspellTernarySearchTrie trie = new JaspellTernarySearchTrie();
+      trie.setMatchAlmostDiff(editDistance);
+      builder = new SortedTrieBuilder(trie);
+      compactBuilder = null;
     }
-    trie = new JaspellTernarySearchTrie();
-    trie.setMatchAlmostDiff(editDistance);
     BytesRef spare;
     final CharsRef charsSpare = new CharsRef();
 
@@ -70,7 +117,21 @@ public class JaspellLookup extends Lookup {
       }
       charsSpare.grow(spare.length);
       UnicodeUtil.UTF8toUTF16(spare.bytes, spare.offset, spare.length, charsSpare);
-      trie.put(charsSpare.toString(), Long.valueOf(weight));
+      if (compact) {
+        compactBuilder.add(charsSpare, weight);
+      } else {
+        builder.add(charsSpare, Long.valueOf(weight));
+      }
+    }
+    final CompactTernarySearchTrie compactTrie = compact ? compactBuilder.finish() : null;
+    final JaspellTernarySearchTrie trie = compact ? null : builder.finish();
+    synchronized (this) {
+      if (compact) {
+        this.compactTrie = compactTrie;
+      } else {
+        this.trie = trie;
+      }
+      this.flat = null;
     }
   }
 
@@ -78,9 +139,29 @@ public class JaspellLookup extends Lookup {
    * Adds a new node if <code>key</code> already exists,
    * otherwise replaces its value.
    * <p>
+   * This method may be called while other threads run lookups; they see the
+   * key either before or after the change. Adds are serialized with each other
+   * and with {@link #build}, {@link #load} and {@link #loadFlat}.
+   * <p>
    * This method always returns false.
+   * 
+   * @throws IllegalArgumentException
+   *           If this lookup is compact and <code>value</code> is not a
+   *           {@link Number}.
+   * @throws UnsupportedOperationException
+   *           If the trie was mapped by {@link #loadFlat}.
    */
-  public boolean add(CharSequence key, Object value) {
+  public synchronized boolean add(CharSequence key, Object value) {
+    if (flat != null) {
+      throw new UnsupportedOperationException("mapped tries are read-only");
+    }
+    if (compact) {
+      if (!(value instanceof Number)) {
+        throw new IllegalArgumentException("compact tries only take Number values: " + value);
+      }
+      compactTrie.put(key, ((Number) value).longValue());
+      return false;
+    }
     trie.put(key, value);
     // XXX
     return false;
@@ -91,19 +172,34 @@ public class JaspellLookup extends Lookup {
    * if the key does not exist.
    */
   public Object get(CharSequence key) {
+    final FlatTernaryTree flat = this.flat;
+    if (flat != null) {
+      return flat.get(key);
+    }
+    if (compact) {
+      return compactTrie.get(key);
+    }
     return trie.get(key);
   }
 
   @Override
   public List<LookupResult> lookup(CharSequence key, boolean onlyMorePopular, int num) {
+    final FlatTernaryTree flat = this.flat;
+    if (flat != null) {
+      return onlyMorePopular ? flat.topMatchPrefix(key, num) : flat.sortedMatchPrefix(key, num);
+    }
+    if (compact) {
+      final CompactTernarySearchTrie compactTrie = this.compactTrie;
+      return onlyMorePopular ? compactTrie.topMatchPrefix(key, num) : compactTrie.sortedMatchPrefix(key, num);
+    }
+    final JaspellTernarySearchTrie trie = this.trie;
+    if (usePrefix) {
+      return onlyMorePopular ? trie.topMatchPrefix(key, num) : trie.sortedMatchPrefix(key, num);
+    }
     List<LookupResult> res = new ArrayList<LookupResult>();
     List<String> list;
     int count = onlyMorePopular ? num * 2 : num;
-    if (usePrefix) {
-      list = trie.matchPrefix(key, count);
-    } else {
-      list = trie.matchAlmost(key, count);
-    }
+    list = trie.matchAlmost(key, count);
     if (list == null || list.size() == 0) {
       return res;
       
@@ -128,32 +224,55 @@ public class JaspellLookup extends Lookup {
     return res;
   }
 
-  private static final byte LO_KID = 0x01;
-  private static final byte EQ_KID = 0x02;
-  private static final byte HI_KID = 0x04;
-  private static final byte HAS_VALUE = 0x08;
+  /**
+   * Typo-tolerant completion: returns the top <code>num</code> suggestions (by
+   * weight) among the completions of all prefixes within <code>maxEdits</code>
+   * edits of <code>key</code>.
+   * 
+   * @param maxEdits
+   *          The maximum number of edits, at most
+   *          {@link LevenshteinAutomata#MAXIMUM_SUPPORTED_DISTANCE}.
+   * @see JaspellTernarySearchTrie#fuzzyMatchPrefix
+   */
+  public List<LookupResult> fuzzyLookup(CharSequence key, int maxEdits, int num) {
+    final FlatTernaryTree flat = this.flat;
+    if (flat != null) {
+      return flat.fuzzyMatchPrefix(key, maxEdits, num);
+    }
+    if (compact) {
+      return compactTrie.fuzzyMatchPrefix(key, maxEdits, num);
+    }
+    return trie.fuzzyMatchPrefix(key, maxEdits, num);
+  }
+
+  static final byte LO_KID = 0x01;
+  static final byte EQ_KID = 0x02;
+  static final byte HI_KID = 0x04;
+  static final byte HAS_VALUE = 0x08;
  
-  private void readRecursively(DataInputStream in, TSTNode node) throws IOException {
-    node.splitchar = in.readChar();
+  private TSTNode readRecursively(DataInputStream in, JaspellTernarySearchTrie trie, TSTNode parent) throws IOException {
+    TSTNode node = trie.new TSTNode(in.readChar(), parent);
     byte mask = in.readByte();
     if ((mask & HAS_VALUE) != 0) {
       node.data = Long.valueOf(in.readLong());
     }
     if ((mask & LO_KID) != 0) {
-      TSTNode kid = trie.new TSTNode('\0', node);
-      node.relatives[TSTNode.LOKID] = kid;
-      readRecursively(in, kid);
+      node.relatives[TSTNode.LOKID] = readRecursively(in, trie, node);
     }
     if ((mask & EQ_KID) != 0) {
-      TSTNode kid = trie.new TSTNode('\0', node);
-      node.relatives[TSTNode.EQKID] = kid;
-      readRecursively(in, kid);
+      node.relatives[TSTNode.EQKID] = readRecursively(in, trie, node);
     }
     if ((mask & HI_KID) != 0) {
-      TSTNode kid = trie.new TSTNode('\0', node);
-      node.relatives[TSTNode.HIKID] = kid;
-      readRecursively(in, kid);
+      node.relatives[TSTNode.HIKID] = readRecursively(in, trie, node);
     }
+    long maxWeight = node.data != null ? ((Long) node.data).longValue() : Long.MIN_VALUE;
+    for (int i = TSTNode.LOKID; i <= TSTNode.HIKID; i++) {
+      if (node.relatives[i] != null) {
+        maxWeight = Math.max(maxWeight, node.relatives[i].maxWeight);
+      }
+    }
+    node.maxWeight = maxWeight;
+    return node;
   }
 
   private void writeRecursively(DataOutputStream out, TSTNode node) throws IOException {
@@ -175,8 +294,92 @@ public class JaspellLookup extends Lookup {
     writeRecursively(out, node.relatives[TSTNode.HIKID]);
   }
 
+  /**
+   * Writes the trie in the flat format of {@link FlatTernaryTree},
+   * breadth-first and without recursion, then closes the output stream.
+   * Returns false, writing nothing, if the trie is empty.
+   * 
+   * @see #loadFlat
+   */
+  public synchronized boolean storeFlat(OutputStream output) throws IOException {
+    try {
+      final FlatTernaryTree flat = this.flat;
+      if (flat != null) {
+        flat.copyTo(output);
+        return true;
+      }
+      if (compact) {
+        final CompactTernarySearchTrie compactTrie = this.compactTrie;
+        if (compactTrie.numNodes() == 0) {
+          return false;
+        }
+        FlatTernaryTree.Writer writer = new FlatTernaryTree.Writer(output, true);
+        compactTrie.writeFlat(writer);
+        writer.finish();
+        return true;
+      }
+      TSTNode root = trie.getRoot();
+      if (root == null) {
+        return false;
+      }
+      FlatTernaryTree.Writer writer = new FlatTernaryTree.Writer(output, true);
+      // kids are numbered as they are queued, in the order they are written
+      ArrayDeque<TSTNode> queue = new ArrayDeque<TSTNode>();
+      queue.add(root);
+      int next = 2;
+      while (!queue.isEmpty()) {
+        TSTNode node = queue.poll();
+        int[] kids = new int[TSTNode.HIKID + 1];
+        for (int i = TSTNode.LOKID; i <= TSTNode.HIKID; i++) {
+          if (node.relatives[i] != null) {
+            kids[i] = next++;
+            queue.add(node.relatives[i]);
+          }
+        }
+        Object data = node.data;
+        long weight = data instanceof Number ? ((Number) data).longValue() : FlatTernaryTree.NO_DATA;
+        writer.add(node.splitchar, weight, node.maxWeight,
+            kids[TSTNode.LOKID], kids[TSTNode.EQKID], kids[TSTNode.HIKID]);
+      }
+      writer.finish();
+      return true;
+    } finally {
+      IOUtils.close(output);
+    }
+  }
+
+  /**
+   * Maps a trie written by {@link #storeFlat}. Nothing is read until lookups
+   * need it, so this takes about the same time whatever the trie size. The
+   * trie is read-only until the next {@link #build} or {@link #load}.
+   */
+  public synchronized boolean loadFlat(File file) throws IOException {
+    FlatTernaryTree flat = FlatTernaryTree.open(file);
+    if (!flat.isCaseInsensitive()) {
+      throw new IllegalArgumentException("not a JaspellLookup trie: " + file);
+    }
+    this.flat = flat;
+    return true;
+  }
+
+  /**
+   * Stores the trie; not supported while it is mapped by {@link #loadFlat}.
+   */
   @Override
-  public boolean store(OutputStream output) throws IOException {
+  public synchronized boolean store(OutputStream output) throws IOException {
+    if (flat != null) {
+      throw new UnsupportedOperationException("mapped tries can only be stored with storeFlat");
+    }
+    if (compact) {
+      DataOutputStream out = new DataOutputStream(output);
+      try {
+        boolean stored = compactTrie.write(out);
+        out.flush();
+        return stored;
+      } finally {
+        IOUtils.close(out);
+      }
+    }
     TSTNode root = trie.getRoot();
     if (root == null) { // empty tree
       return false;
@@ -192,15 +395,26 @@ public class JaspellLookup extends Lookup {
   }
 
   @Override
-  public boolean load(InputStream input) throws IOException {
+  public synchronized boolean load(InputStream input) throws IOException {
     DataInputStream in = new DataInputStream(input);
-    TSTNode root = trie.new TSTNode('\0', null);
+    if (compact) {
+      try {
+        this.compactTrie = CompactTernarySearchTrie.read(in, false);
+      } finally {
+        IOUtils.close(in);
+      }
+      this.flat = null;
+      return true;
+    }
+    final JaspellTernarySearchTrie trie = new JaspellTernarySearchTrie();
+    trie.setMatchAlmostDiff(editDistance);
     try {
-      readRecursively(in, root);
-      trie.setRoot(root);
+      trie.setRoot(readRecursively(in, trie, null));
     } finally {
       IOUtils.close(in);
     }
+    this.trie = trie;
+    this.flat = null;
     return true;
   }
 }
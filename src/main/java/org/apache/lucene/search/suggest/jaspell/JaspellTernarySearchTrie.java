@@ -34,12 +34,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Vector;
 import java.util.zip.GZIPInputStream;
 
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.TernaryTreeSearch;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
 
 /**
  * Implementation of a Ternary Search Trie, a data structure for storing
@@ -60,11 +67,21 @@ import org.apache.lucene.util.IOUtils;
  * Algorithms, January 1997). Algorithms in C, Third Edition, by Robert
  * Sedgewick (Addison-Wesley, 1998) provides yet another view of ternary search
  * trees.
+ * <p>
+ * {@link #put} may be called while other threads search the trie: it only
+ * links fully initialized nodes and replaces values, so searches see each key
+ * either before or after the change and never block. Modifications are
+ * serialized; {@link #remove} relinks existing nodes and is not safe under
+ * concurrent searches.
  */
 public class JaspellTernarySearchTrie {
 
   /**
    * An inner class of Ternary Search Trie that represents a node in the trie.
+   * <p>
+   * The split char and the relatives array are final, so that a thread reading
+   * a reference to a new node, even without synchronization, also sees them
+   * initialized. This is what allows {@link #put} while other threads search.
    */
   protected final class TSTNode {
 
@@ -75,10 +92,16 @@ public class JaspellTernarySearchTrie {
     protected Object data;
 
     /** The relative nodes. */
-    protected TSTNode[] relatives = new TSTNode[4];
+    protected final TSTNode[] relatives = new TSTNode[4];
 
     /** The char used in the split. */
-    protected char splitchar;
+    protected final char splitchar;
+
+    /**
+     * An upper bound of the weights of all data in the subtrie rooted at this
+     * node, lo and hi kids included; <code>Long.MIN_VALUE</code> if none.
+     */
+    protected volatile long maxWeight = Long.MIN_VALUE;
 
     /**
      * Constructor method.
@@ -104,7 +127,7 @@ public class JaspellTernarySearchTrie {
    *@return A negative number, 0 or a positive number if the second char is
    *         less, equal or greater.
    */
-  private static int compareCharsAlphabetically(char cCompare2, char cRef) {
+  static int compareCharsAlphabetically(char cCompare2, char cRef) {
     return Character.toLowerCase(cCompare2) - Character.toLowerCase(cRef);
   }
   
@@ -149,7 +172,7 @@ public class JaspellTernarySearchTrie {
   private int matchAlmostDiff;
 
   /** The base node in the trie. */
-  private TSTNode rootNode;
+  private volatile TSTNode rootNode;
   
   private final Locale locale;
 
@@ -257,6 +280,7 @@ public class JaspellTernarySearchTrie {
           occur += occur2.floatValue();
         }
         currentNode = getOrCreateNode(word.trim().toLowerCase(locale));
+        raiseMaxWeights(currentNode, occur);
         currentNode.data = occur;
       }
     }
@@ -395,7 +419,7 @@ public class JaspellTernarySearchTrie {
    *          A <code>String</code> index.
    *@return The <code>Float</code> retrieved from the Ternary Search Trie.
    */
-  public Float getAndIncrement(String key) {
+  public synchronized Float getAndIncrement(String key) {
     String key2 = key.trim().toLowerCase(locale);
     TSTNode node = getNode(key2);
     if (node == null) {
@@ -642,6 +666,137 @@ public class JaspellTernarySearchTrie {
     return matchAlmostResult;
   }
 
+  /**
+   * The nodes reached by one search, as seen by {@link TernaryTreeSearch}: a
+   * node gets an <code>int</code> handle when first handed out.
+   */
+  private static final class NodeHandles extends TernaryTreeSearch {
+    private TSTNode[] nodes = new TSTNode[16];
+    private int count = 1;
+
+    int handle(TSTNode node) {
+      if (node == null) {
+        return 0;
+      }
+      if (count == nodes.length) {
+        nodes = Arrays.copyOf(nodes,
+            ArrayUtil.oversize(count + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+      }
+      nodes[count] = node;
+      return count++;
+    }
+
+    @Override
+    protected char splitchar(int node) {
+      return nodes[node].splitchar;
+    }
+
+    @Override
+    protected int lo(int node) {
+      return handle(nodes[node].relatives[TSTNode.LOKID]);
+    }
+
+    @Override
+    protected int eq(int node) {
+      return handle(nodes[node].relatives[TSTNode.EQKID]);
+    }
+
+    @Override
+    protected int hi(int node) {
+      return handle(nodes[node].relatives[TSTNode.HIKID]);
+    }
+
+    @Override
+    protected long weight(int node) {
+      return JaspellTernarySearchTrie.weight(nodes[node].data);
+    }
+
+    @Override
+    protected long maxWeight(int node) {
+      return nodes[node].maxWeight;
+    }
+
+    @Override
+    protected boolean hasKey(int node) {
+      return nodes[node].data instanceof Number;
+    }
+  }
+
+  /**
+   * Returns the <code>numReturnValues</code> keys beginning with a given prefix
+   * that have the highest weights (their data being a {@link Number}), with
+   * their weights, in descending weight order.
+   * <p>
+   * This is a best-first search over the max weights of subtries, which stops
+   * as soon as enough keys have been found; keys are built along the way rather
+   * than from parent pointers.
+   * 
+   *@param prefix
+   *          Each key returned from this method will begin with the characters
+   *          in prefix.
+   *@param numReturnValues
+   *          The maximum number of values returned from this method.
+   *@return A <code>List</code> with the results.
+   */
+  public List<LookupResult> topMatchPrefix(CharSequence prefix, int numReturnValues) {
+    TSTNode startNode = getNode(prefix);
+    if (startNode == null) {
+      return new ArrayList<LookupResult>();
+    }
+    NodeHandles handles = new NodeHandles();
+    return handles.topMatchPrefix(handles.handle(startNode), getKey(startNode), numReturnValues);
+  }
+
+  /**
+   * Returns the <code>numReturnValues</code> keys with the highest weights
+   * (their data being a {@link Number}) that begin with a prefix within
+   * <code>maxEdits</code> edits of <code>key</code>, with their weights, in
+   * descending weight order. Edits are insertions, deletions, substitutions and
+   * transpositions of code points, compared in lower case like all searches of
+   * this trie.
+   * <p>
+   * A Levenshtein automaton for <code>key</code> is stepped along the
+   * branches of a best-first search over the max weights of subtries: a branch
+   * is dropped as soon as the automaton dies, and the whole subtrie below a
+   * prefix it accepts matches without further stepping. Unlike
+   * {@link #matchAlmost}, the edit distance is given per call.
+   * 
+   *@param key
+   *          The key to complete.
+   *@param maxEdits
+   *          The maximum number of edits, at most
+   *          {@link LevenshteinAutomata#MAXIMUM_SUPPORTED_DISTANCE}.
+   *@param numReturnValues
+   *          The maximum number of values returned from this method.
+   *@return A <code>List</code> with the results.
+   */
+  public List<LookupResult> fuzzyMatchPrefix(CharSequence key, int maxEdits, int numReturnValues) {
+    NodeHandles handles = new NodeHandles();
+    return handles.fuzzyMatchPrefix(handles.handle(rootNode), key, maxEdits, true, numReturnValues);
+  }
+
+  /**
+   * Returns, in alphabetical order, the first <code>numReturnValues</code> keys
+   * beginning with a given prefix whose data is a {@link Number}, with their
+   * weights. Same as {@link #matchPrefix(CharSequence, int)}, but keys are built
+   * along the way rather than from parent pointers, and come with their weights.
+   * 
+   *@param prefix
+   *          Each key returned from this method will begin with the characters
+   *          in prefix.
+   *@param numReturnValues
+   *          The maximum number of values returned from this method.
+   *@return A <code>List</code> with the results.
+   */
+  public List<LookupResult> sortedMatchPrefix(CharSequence prefix, int numReturnValues) {
+    TSTNode startNode = getNode(prefix);
+    if (startNode == null) {
+      return new ArrayList<LookupResult>();
+    }
+    NodeHandles handles = new NodeHandles();
+    return handles.sortedMatchPrefix(handles.handle(startNode), getKey(startNode), numReturnValues);
+  }
+
   /**
    * Returns an alphabetical <code>List</code> of all keys in the trie that
    * begin with a given prefix. Only keys for nodes having non-null data are
@@ -732,8 +887,30 @@ public class JaspellTernarySearchTrie {
    *@param value
    *          The object to be stored in the Trie.
    */
-  public void put(CharSequence key, Object value) {
-    getOrCreateNode(key).data = value;
+  public synchronized void put(CharSequence key, Object value) {
+    TSTNode node = getOrCreateNode(key);
+    raiseMaxWeights(node, value);
+    node.data = value;
+  }
+
+  /**
+   * Returns the weight of a value, <code>Long.MIN_VALUE</code> if it is not a
+   * {@link Number}.
+   */
+  static long weight(Object value) {
+    return value instanceof Number ? ((Number) value).longValue() : Long.MIN_VALUE;
+  }
+
+  /**
+   * Raises the max weight of a node and its ancestors to the weight of a value
+   * about to be stored in the node. Bounds are never lowered, so they stay
+   * valid (if loose) when values are replaced or removed.
+   */
+  private static void raiseMaxWeights(TSTNode node, Object value) {
+    final long weight = weight(value);
+    for (TSTNode n = node; n != null && n.maxWeight < weight; n = n.relatives[TSTNode.PARENT]) {
+      n.maxWeight = weight;
+    }
   }
 
   /**
@@ -776,7 +953,7 @@ public class JaspellTernarySearchTrie {
    *          A <code>string</code> that indexes the object to be removed from
    *          the Trie.
    */
-  public void remove(String key) {
+  public synchronized void remove(String key) {
     deleteNode(getNode(key.trim().toLowerCase(locale)));
   }
 
@@ -0,0 +1,107 @@
+package org.apache.lucene.search.suggest.jaspell;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Comparator;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Compares UTF-8 encoded terms in the order of the Jaspell tries: their UTF-16
+ * chars compared one at a time in lower case, as by
+ * {@link JaspellTernarySearchTrie#compareCharsAlphabetically(char, char)}.
+ * Terms that are equal ignoring case are ordered by their bytes.
+ * <p>
+ * Terms are decoded on the fly, without allocating; the comparator is
+ * stateless and thread-safe.
+ */
+final class LowerCaseUTF16Comparator implements Comparator<BytesRef> {
+
+  static final LowerCaseUTF16Comparator INSTANCE = new LowerCaseUTF16Comparator();
+
+  private static final int HIGH_SURROGATE_OFFSET =
+      Character.MIN_HIGH_SURROGATE - (Character.MIN_SUPPLEMENTARY_CODE_POINT >>> 10);
+
+  private LowerCaseUTF16Comparator() {}
+
+  @Override
+  public int compare(BytesRef a, BytesRef b) {
+    final byte[] aBytes = a.bytes, bBytes = b.bytes;
+    final int aEnd = a.offset + a.length, bEnd = b.offset + b.length;
+    int aUpto = a.offset, bUpto = b.offset;
+    // low surrogates of supplementary code points, for the next iteration
+    char aPending = 0, bPending = 0;
+    while (true) {
+      final char aChar, bChar;
+      if (aPending != 0) {
+        aChar = aPending;
+        aPending = 0;
+      } else if (aUpto == aEnd) {
+        return bPending != 0 || bUpto < bEnd ? -1 : a.compareTo(b);
+      } else {
+        final int code = codePoint(aBytes, aUpto);
+        aUpto += length(aBytes[aUpto]);
+        if (code >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+          aChar = (char) (HIGH_SURROGATE_OFFSET + (code >>> 10));
+          aPending = (char) (Character.MIN_LOW_SURROGATE + (code & 0x3ff));
+        } else {
+          aChar = (char) code;
+        }
+      }
+      if (bPending != 0) {
+        bChar = bPending;
+        bPending = 0;
+      } else if (bUpto == bEnd) {
+        return 1;
+      } else {
+        final int code = codePoint(bBytes, bUpto);
+        bUpto += length(bBytes[bUpto]);
+        if (code >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+          bChar = (char) (HIGH_SURROGATE_OFFSET + (code >>> 10));
+          bPending = (char) (Character.MIN_LOW_SURROGATE + (code & 0x3ff));
+        } else {
+          bChar = (char) code;
+        }
+      }
+      final int diff = JaspellTernarySearchTrie.compareCharsAlphabetically(aChar, bChar);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+  }
+
+  /** The number of bytes of the UTF-8 sequence starting with <code>lead</code>. */
+  private static int length(byte lead) {
+    final int b = lead & 0xff;
+    return b < 0xc0 ? 1 : b < 0xe0 ? 2 : b < 0xf0 ? 3 : 4;
+  }
+
+  private static int codePoint(byte[] bytes, int upto) {
+    final int b = bytes[upto] & 0xff;
+    if (b < 0xc0) {
+      return b;
+    } else if (b < 0xe0) {
+      return ((b & 0x1f) << 6) | (bytes[upto + 1] & 0x3f);
+    } else if (b < 0xf0) {
+      return ((b & 0x0f) << 12) | ((bytes[upto + 1] & 0x3f) << 6) | (bytes[upto + 2] & 0x3f);
+    } else {
+      return ((b & 0x07) << 18) | ((bytes[upto + 1] & 0x3f) << 12)
+          | ((bytes[upto + 2] & 0x3f) << 6) | (bytes[upto + 3] & 0x3f);
+    }
+  }
+}
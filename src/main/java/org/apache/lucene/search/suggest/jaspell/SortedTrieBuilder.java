@@ -0,0 +1,104 @@
+package org.apache.lucene.search.suggest.jaspell;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+import org.apache.lucene.search.suggest.TernaryTreeBuilder;
+import org.apache.lucene.search.suggest.jaspell.JaspellTernarySearchTrie.TSTNode;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Builds a balanced {@link JaspellTernarySearchTrie} bottom-up, in a single
+ * pass over keys sorted in the order of the trie ({@link LowerCaseUTF16Comparator});
+ * see {@link TernaryTreeBuilder}. Node handles index the nodes created so
+ * far, which are released by {@link #finish}.
+ *
+ * @see JaspellLookup#build
+ */
+final class SortedTrieBuilder extends TernaryTreeBuilder {
+  private final JaspellTernarySearchTrie trie;
+  /** The nodes by handle; <code>0</code> is unused. */
+  private TSTNode[] nodes = new TSTNode[16];
+  private int size = 1;
+
+  SortedTrieBuilder(JaspellTernarySearchTrie trie) {
+    this.trie = trie;
+  }
+
+  /**
+   * Adds a key; keys must be added in sorted order. Adding a key equal to the
+   * previous one, ignoring case, replaces its value.
+   *
+   * @throws IllegalArgumentException if the key is smaller than the previous one.
+   */
+  public void add(CharSequence key, Object value) {
+    final int node = addKey(key);
+    if (node != 0) {
+      nodes[node].data = value;
+    }
+  }
+
+  /** Links the remaining levels and returns the trie. */
+  public JaspellTernarySearchTrie finish() {
+    final int root = finishTree();
+    if (root != 0) {
+      trie.setRoot(nodes[root]);
+    }
+    Arrays.fill(nodes, 0, size, null);
+    size = 1;
+    return trie;
+  }
+
+  @Override
+  protected int compare(char c1, char c2) {
+    return JaspellTernarySearchTrie.compareCharsAlphabetically(c1, c2);
+  }
+
+  @Override
+  protected int newNode(char splitchar) {
+    if (size == nodes.length) {
+      nodes = Arrays.copyOf(nodes, ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+    }
+    // parents are set when linking
+    nodes[size] = trie.new TSTNode(splitchar, null);
+    return size++;
+  }
+
+  @Override
+  protected void link(int handle, int parent, int lo, int hi) {
+    final TSTNode node = nodes[handle];
+    node.relatives[TSTNode.PARENT] = nodes[parent];
+    node.relatives[TSTNode.LOKID] = nodes[lo];
+    node.relatives[TSTNode.HIKID] = nodes[hi];
+
+    long max = JaspellTernarySearchTrie.weight(node.data);
+    for (int i = TSTNode.LOKID; i <= TSTNode.HIKID; i++) {
+      if (node.relatives[i] != null) {
+        max = Math.max(max, node.relatives[i].maxWeight);
+      }
+    }
+    node.maxWeight = max;
+  }
+
+  @Override
+  protected void linkEq(int parent, int root) {
+    nodes[parent].relatives[TSTNode.EQKID] = nodes[root];
+  }
+}
@@ -0,0 +1,406 @@
+package org.apache.lucene.search.suggest.tst;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.search.spell.TermFreqIterator;
+import org.apache.lucene.search.suggest.Lookup;
+import org.apache.lucene.search.suggest.SortedTermFreqIteratorWrapper;
+import org.apache.lucene.search.suggest.TernaryTreeBuilder;
+import org.apache.lucene.search.suggest.TernaryTreeSearch;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.UnicodeUtil;
+
+/**
+ * A {@link TSTLookup} equivalent that keeps the ternary search tree in parallel
+ * primitive arrays instead of {@link TernaryTreeNode} objects.
+ *
+ * <p>A node is an index into the arrays: its split character, the indexes of its
+ * lo, eq and hi kids (<code>0</code> meaning none), its weight, the max weight
+ * of its subtree and whether a key ends there. Keys are not stored but rebuilt
+ * from the path while traversing, so the tree takes about 30 bytes per node,
+ * without any per-node object or boxed weight. Given the same input, the tree
+ * has the same shape as {@link TSTLookup}'s and lookups return the same results
+ * (keys of equal weight may come in a different order with
+ * <code>onlyMorePopular</code>, which is a best-first search over the max
+ * weights, like {@link TSTLookup}'s).
+ *
+ * <p>The tree is immutable once built or loaded and published atomically;
+ * lookups are thread-safe.
+ *
+ * @lucene.experimental
+ */
+public class CompactTSTLookup extends Lookup {
+
+  /** Codec name of the header written by {@link #store(OutputStream)}. */
+  static final String CODEC_NAME = "CompactTSTLookup";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  /** An immutable tree; node <code>0</code> is unused. */
+  private static final class Tree extends TernaryTreeSearch {
+    final int size;
+    final int root;
+    final char[] splitchars;
+    final int[] lo, eq, hi;
+    final long[] weights;
+    /** The max weight of the keys in the subtree of each node, lo and hi kids included. */
+    final long[] maxWeights;
+    final OpenBitSet terminal;
+
+    Tree(int size, int root, char[] splitchars, int[] lo, int[] eq, int[] hi,
+        long[] weights, long[] maxWeights, OpenBitSet terminal) {
+      this.size = size;
+      this.root = root;
+      this.splitchars = splitchars;
+      this.lo = lo;
+      this.eq = eq;
+      this.hi = hi;
+      this.weights = weights;
+      this.maxWeights = maxWeights;
+      this.terminal = terminal;
+    }
+
+    @Override
+    protected char splitchar(int node) {
+      return splitchars[node];
+    }
+
+    @Override
+    protected int lo(int node) {
+      return lo[node];
+    }
+
+    @Override
+    protected int eq(int node) {
+      return eq[node];
+    }
+
+    @Override
+    protected int hi(int node) {
+      return hi[node];
+    }
+
+    @Override
+    protected long weight(int node) {
+      return weights[node];
+    }
+
+    @Override
+    protected long maxWeight(int node) {
+      return maxWeights[node];
+    }
+
+    @Override
+    protected boolean hasKey(int node) {
+      return terminal.get(node);
+    }
+  }
+
+  /**
+   * Accumulates nodes while building, from keys in sorted order; same
+   * construction as {@link SortedTernaryTreeBuilder}, node handles being
+   * indexes into the arrays.
+   */
+  private static final class TreeBuilder extends TernaryTreeBuilder {
+    int size = 1;
+    char[] splitchars = new char[16];
+    int[] lo = new int[16], eq = new int[16], hi = new int[16];
+    long[] weights = new long[16];
+    long[] maxWeights = new long[16];
+    final OpenBitSet terminal = new OpenBitSet();
+
+    @Override
+    protected int newNode(char c) {
+      if (size == splitchars.length) {
+        final int newLength = ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_LONG);
+        splitchars = Arrays.copyOf(splitchars, newLength);
+        lo = Arrays.copyOf(lo, newLength);
+        eq = Arrays.copyOf(eq, newLength);
+        hi = Arrays.copyOf(hi, newLength);
+        weights = Arrays.copyOf(weights, newLength);
+        maxWeights = Arrays.copyOf(maxWeights, newLength);
+      }
+      splitchars[size] = c;
+      return size++;
+    }
+
+    @Override
+    protected void link(int node, int parent, int lo, int hi) {
+      this.lo[node] = lo;
+      this.hi[node] = hi;
+      maxWeights[node] = maxWeight(node, terminal, weights, maxWeights, this.lo, eq, this.hi);
+    }
+
+    @Override
+    protected void linkEq(int parent, int root) {
+      eq[parent] = root;
+    }
+
+    void add(CharSequence key, long weight) {
+      final int node = addKey(key);
+      if (node != 0) {
+        terminal.set(node);
+        weights[node] = weight;
+      }
+    }
+
+    /** Links the remaining levels and returns the tree, trimmed to its size. */
+    Tree finish() {
+      final int root = finishTree();
+      return new Tree(size, root,
+          Arrays.copyOf(splitchars, size), Arrays.copyOf(lo, size), Arrays.copyOf(eq, size),
+          Arrays.copyOf(hi, size), Arrays.copyOf(weights, size), Arrays.copyOf(maxWeights, size),
+          terminal);
+    }
+  }
+
+  /**
+   * Returns the max weight of the subtree of <code>node</code>, given those of
+   * its kids.
+   */
+  private static long maxWeight(int node, OpenBitSet terminal, long[] weights, long[] maxWeights,
+      int[] lo, int[] eq, int[] hi) {
+    long max = terminal.get(node) ? weights[node] : TernaryTreeSearch.NO_DATA;
+    if (lo[node] != 0) {
+      max = Math.max(max, maxWeights[lo[node]]);
+    }
+    if (eq[node] != 0) {
+      max = Math.max(max, maxWeights[eq[node]]);
+    }
+    if (hi[node] != 0) {
+      max = Math.max(max, maxWeights[hi[node]]);
+    }
+    return max;
+  }
+
+  private volatile Tree tree = new TreeBuilder().finish();
+
+  /**
+   * Creates a new lookup with an empty tree.
+   * @see #build(TermFreqIterator)
+   */
+  public CompactTSTLookup() {}
+
+  @Override
+  public void build(TermFreqIterator tfit) throws IOException {
+    if (tfit.getComparator() != BytesRef.getUTF8SortedAsUTF16Comparator()) {
+      // make sure it's sorted and the comparator uses UTF16 sort order
+      tfit = new SortedTermFreqIteratorWrapper(tfit, BytesRef.getUTF8SortedAsUTF16Comparator());
+    }
+
+    // build bottom-up while streaming the sorted input
+    final TreeBuilder builder = new TreeBuilder();
+    BytesRef spare;
+    CharsRef charsSpare = new CharsRef();
+    while ((spare = tfit.next()) != null) {
+      charsSpare.grow(spare.length);
+      UnicodeUtil.UTF8toUTF16(spare.bytes, spare.offset, spare.length, charsSpare);
+      builder.add(charsSpare, tfit.weight());
+    }
+    this.tree = builder.finish();
+  }
+
+  /**
+   * Returns the node at the end of <code>key</code>, or <code>0</code>.
+   */
+  private static int descend(Tree tree, CharSequence key) {
+    int node = tree.root;
+    int i = 0;
+    while (node != 0) {
+      final char c = key.charAt(i);
+      if (c < tree.splitchars[node]) {
+        node = tree.lo[node];
+      } else if (c > tree.splitchars[node]) {
+        node = tree.hi[node];
+      } else if (i == key.length() - 1) {
+        return node;
+      } else {
+        i++;
+        node = tree.eq[node];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the weight of <code>key</code>, or <code>null</code> if the key
+   * does not exist.
+   */
+  public Long get(CharSequence key) {
+    final Tree tree = this.tree;
+    if (key.length() == 0) {
+      return null;
+    }
+    final int node = descend(tree, key);
+    if (node == 0 || !tree.terminal.get(node)) {
+      return null;
+    }
+    return Long.valueOf(tree.weights[node]);
+  }
+
+  @Override
+  public List<LookupResult> lookup(CharSequence key, boolean onlyMorePopular, final int num) {
+    final Tree tree = this.tree;
+    final List<LookupResult> res = new ArrayList<LookupResult>();
+    if (key.length() == 0 || num <= 0) {
+      return res;
+    }
+    final int prefix = descend(tree, key);
+    if (prefix == 0) {
+      return res;
+    }
+
+    if (onlyMorePopular) {
+      return tree.topMatchPrefix(prefix, key.toString(), num);
+    }
+
+    // same order as TSTAutocomplete#prefixCompletion
+    tree.prefixCompletion(prefix, key, new TernaryTreeSearch.KeyCollector() {
+      @Override
+      public boolean collect(char[] path, int length, long weight) {
+        res.add(new LookupResult(new String(path, 0, length), weight));
+        return res.size() == num;
+      }
+    });
+    return res;
+  }
+
+  /** Returns the number of nodes in the tree. */
+  public int getNodeCount() {
+    return tree.size - 1;
+  }
+
+  /** Returns the (approximate) memory used by the tree, in bytes. */
+  public long getSizeInBytes() {
+    final Tree tree = this.tree;
+    return RamUsageEstimator.sizeOf(tree.splitchars) + RamUsageEstimator.sizeOf(tree.lo)
+        + RamUsageEstimator.sizeOf(tree.eq) + RamUsageEstimator.sizeOf(tree.hi)
+        + RamUsageEstimator.sizeOf(tree.weights) + RamUsageEstimator.sizeOf(tree.maxWeights)
+        + RamUsageEstimator.sizeOf(tree.terminal.getBits());
+  }
+
+  @Override
+  public synchronized boolean store(OutputStream output) throws IOException {
+    final Tree tree = this.tree;
+    DataOutputStream out = new DataOutputStream(output);
+    try {
+      CodecUtil.writeHeader(new OutputStreamDataOutput(out), CODEC_NAME, VERSION_CURRENT);
+      out.writeInt(tree.size);
+      out.writeInt(tree.root);
+      for (int i = 1; i < tree.size; i++) {
+        out.writeChar(tree.splitchars[i]);
+        out.writeInt(tree.lo[i]);
+        out.writeInt(tree.eq[i]);
+        out.writeInt(tree.hi[i]);
+        out.writeBoolean(tree.terminal.get(i));
+        if (tree.terminal.get(i)) {
+          out.writeLong(tree.weights[i]);
+        }
+      }
+      out.flush();
+    } finally {
+      IOUtils.close(output);
+    }
+    return true;
+  }
+
+  /**
+   * Computes the max weights of a loaded tree, kids before parents.
+   */
+  private static long[] maxWeights(int size, int root, int[] lo, int[] eq, int[] hi, long[] weights,
+      OpenBitSet terminal) throws CorruptIndexException {
+    // breadth-first, each node after its parent
+    final int[] order = new int[size];
+    int count = 0;
+    if (root != 0) {
+      order[count++] = root;
+    }
+    final int[][] links = new int[][] {lo, eq, hi};
+    for (int i = 0; i < count; i++) {
+      final int node = order[i];
+      for (int[] link : links) {
+        final int kid = link[node];
+        if (kid != 0) {
+          if (count == size - 1) {
+            throw new CorruptIndexException("invalid tree: more than " + (size - 1) + " nodes reachable");
+          }
+          order[count++] = kid;
+        }
+      }
+    }
+    final long[] maxWeights = new long[size];
+    for (int i = count - 1; i >= 0; i--) {
+      final int node = order[i];
+      maxWeights[node] = maxWeight(node, terminal, weights, maxWeights, lo, eq, hi);
+    }
+    return maxWeights;
+  }
+
+  @Override
+  public synchronized boolean load(InputStream input) throws IOException {
+    DataInputStream in = new DataInputStream(input);
+    try {
+      CodecUtil.checkHeader(new InputStreamDataInput(in), CODEC_NAME, VERSION_START, VERSION_CURRENT);
+      final int size = in.readInt();
+      final int root = in.readInt();
+      if (size < 1 || root < 0 || root >= size || (root == 0) != (size == 1)) {
+        throw new CorruptIndexException("invalid tree: size=" + size + ", root=" + root);
+      }
+      final char[] splitchars = new char[size];
+      final int[] lo = new int[size], eq = new int[size], hi = new int[size];
+      final long[] weights = new long[size];
+      final OpenBitSet terminal = new OpenBitSet(size);
+      for (int i = 1; i < size; i++) {
+        splitchars[i] = in.readChar();
+        lo[i] = in.readInt();
+        eq[i] = in.readInt();
+        hi[i] = in.readInt();
+        if (lo[i] < 0 || lo[i] >= size || eq[i] < 0 || eq[i] >= size || hi[i] < 0 || hi[i] >= size) {
+          throw new CorruptIndexException("invalid links of node " + i + ": " + lo[i] + ", " + eq[i] + ", " + hi[i]);
+        }
+        if (in.readBoolean()) {
+          terminal.set(i);
+          weights[i] = in.readLong();
+        }
+      }
+      this.tree = new Tree(size, root, splitchars, lo, eq, hi, weights,
+          maxWeights(size, root, lo, eq, hi, weights, terminal), terminal);
+    } finally {
+      IOUtils.close(in);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,92 @@
+package org.apache.lucene.search.suggest.tst;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+import org.apache.lucene.search.suggest.TernaryTreeBuilder;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Builds a balanced ternary search tree of {@link TernaryTreeNode}s bottom-up,
+ * in a single pass over keys sorted in UTF-16 order; see
+ * {@link TernaryTreeBuilder}. Node handles index the nodes created so far,
+ * which are released by {@link #finish}.
+ *
+ * @see TSTLookup#build
+ */
+final class SortedTernaryTreeBuilder extends TernaryTreeBuilder {
+  /** The nodes by handle; <code>0</code> is unused. */
+  private TernaryTreeNode[] nodes = new TernaryTreeNode[16];
+  private int size = 1;
+
+  /**
+   * Adds a key; keys must be added in sorted order. Adding the previous key
+   * again replaces its value.
+   *
+   * @throws IllegalArgumentException if the key is smaller than the previous one.
+   */
+  public void add(CharSequence key, Object val) {
+    final int node = addKey(key);
+    if (node != 0) {
+      nodes[node].token = key.toString();
+      nodes[node].val = val;
+    }
+  }
+
+  /**
+   * Links the remaining levels and returns the root of the tree, or
+   * <code>null</code> if no keys were added.
+   */
+  public TernaryTreeNode finish() {
+    final TernaryTreeNode root = nodes[finishTree()];
+    Arrays.fill(nodes, 0, size, null);
+    size = 1;
+    return root;
+  }
+
+  @Override
+  protected int newNode(char splitchar) {
+    if (size == nodes.length) {
+      nodes = Arrays.copyOf(nodes, ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+    }
+    final TernaryTreeNode node = new TernaryTreeNode();
+    node.splitchar = splitchar;
+    nodes[size] = node;
+    return size++;
+  }
+
+  @Override
+  protected void link(int handle, int parent, int lo, int hi) {
+    final TernaryTreeNode node = nodes[handle];
+    node.loKid = nodes[lo];
+    node.hiKid = nodes[hi];
+
+    long max = node.token != null ? TSTAutocomplete.weight(node.val) : Long.MIN_VALUE;
+    if (node.eqKid != null) max = Math.max(max, node.eqKid.maxWeight);
+    if (node.loKid != null) max = Math.max(max, node.loKid.maxWeight);
+    if (node.hiKid != null) max = Math.max(max, node.hiKid.maxWeight);
+    node.maxWeight = max;
+  }
+
+  @Override
+  protected void linkEq(int parent, int root) {
+    nodes[parent].eqKid = nodes[root];
+  }
+}
@@ -78,7 +78,6 @@ public class TSTAutocomplete {
       } else {
         currentNode.token = s.toString();
         currentNode.val = val;
-        return currentNode;
       }
     } else if (currentNode.splitchar > s.charAt(x)) {
       currentNode.loKid = insert(currentNode.loKid, s, val, x);
@@ -88,14 +87,84 @@ public class TSTAutocomplete {
       } else {
         currentNode.token = s.toString();
         currentNode.val = val;
-        return currentNode;
       }
     } else {
       currentNode.hiKid = insert(currentNode.hiKid, s, val, x);
     }
+    // the bound only grows: replacing a value by a lower one leaves it loose, but valid
+    currentNode.maxWeight = Math.max(currentNode.maxWeight, weight(val));
     return currentNode;
   }
 
+  /**
+   * Inserts a key like {@link #insert}, without modifying any existing node:
+   * the nodes along the path of the key are copied, and the others shared with
+   * the original tree. The original tree can thus be searched concurrently; the
+   * returned root should be published once the insertion is complete.
+   * 
+   * @param currentNode
+   *          a reference node where the insertion will take currently.
+   * @param s
+   *          key to be inserted in TST.
+   * @param x
+   *          index of character in key to be inserted currently.
+   * @return The root node of the new TST
+   */
+  public TernaryTreeNode insertCopy(TernaryTreeNode currentNode, CharSequence s,
+          Object val, int x) {
+    if (s == null || s.length() <= x) {
+      return currentNode;
+    }
+    TernaryTreeNode copy = new TernaryTreeNode();
+    if (currentNode == null) {
+      copy.splitchar = s.charAt(x);
+    } else {
+      copy.splitchar = currentNode.splitchar;
+      copy.loKid = currentNode.loKid;
+      copy.eqKid = currentNode.eqKid;
+      copy.hiKid = currentNode.hiKid;
+      copy.token = currentNode.token;
+      copy.val = currentNode.val;
+      copy.maxWeight = currentNode.maxWeight;
+    }
+    if (copy.splitchar > s.charAt(x)) {
+      copy.loKid = insertCopy(copy.loKid, s, val, x);
+    } else if (copy.splitchar < s.charAt(x)) {
+      copy.hiKid = insertCopy(copy.hiKid, s, val, x);
+    } else if (x < s.length() - 1) {
+      copy.eqKid = insertCopy(copy.eqKid, s, val, x + 1);
+    } else {
+      copy.token = s.toString();
+      copy.val = val;
+    }
+    copy.maxWeight = Math.max(copy.maxWeight, weight(val));
+    return copy;
+  }
+
+  /**
+   * Returns the weight of a value, <code>Long.MIN_VALUE</code> if it is not a
+   * {@link Number}.
+   */
+  static long weight(Object val) {
+    return val instanceof Number ? ((Number) val).longValue() : Long.MIN_VALUE;
+  }
+
+  /**
+   * Recomputes {@link TernaryTreeNode#maxWeight} for the subtree rooted at
+   * <code>node</code>, for trees not built with {@link #insert}.
+   */
+  static long updateMaxWeights(TernaryTreeNode node) {
+    if (node == null) {
+      return Long.MIN_VALUE;
+    }
+    long max = node.token != null ? weight(node.val) : Long.MIN_VALUE;
+    max = Math.max(max, updateMaxWeights(node.loKid));
+    max = Math.max(max, updateMaxWeights(node.eqKid));
+    max = Math.max(max, updateMaxWeights(node.hiKid));
+    node.maxWeight = max;
+    return max;
+  }
+
   /**
    * Auto-completes a given prefix query using Depth-First Search with the end
    * of prefix as source node each time finding a new leaf to get a complete key
@@ -113,24 +182,9 @@ public class TSTAutocomplete {
   public ArrayList<TernaryTreeNode> prefixCompletion(TernaryTreeNode root,
           CharSequence s, int x) {
 
-    TernaryTreeNode p = root;
+    TernaryTreeNode p = descend(root, s, x);
     ArrayList<TernaryTreeNode> suggest = new ArrayList<TernaryTreeNode>();
 
-    while (p != null) {
-      if (s.charAt(x) < p.splitchar) {
-        p = p.loKid;
-      } else if (s.charAt(x) == p.splitchar) {
-        if (x == s.length() - 1) {
-          break;
-        } else {
-          x++;
-        }
-        p = p.eqKid;
-      } else {
-        p = p.hiKid;
-      }
-    }
-
     if (p == null) return suggest;
     if (p.eqKid == null && p.token == null) return suggest;
     if (p.eqKid == null && p.token != null) {
@@ -163,4 +217,121 @@ public class TSTAutocomplete {
     }
     return suggest;
   }
+
+  /**
+   * Returns the node matching the last character of a prefix, or null.
+   */
+  private static TernaryTreeNode descend(TernaryTreeNode p, CharSequence s, int x) {
+    while (p != null) {
+      if (s.charAt(x) < p.splitchar) {
+        p = p.loKid;
+      } else if (s.charAt(x) == p.splitchar) {
+        if (x == s.length() - 1) {
+          break;
+        } else {
+          x++;
+        }
+        p = p.eqKid;
+      } else {
+        p = p.hiKid;
+      }
+    }
+    return p;
+  }
+
+  /**
+   * A node in the best-first search: either a single token, with its exact
+   * weight, or a whole subtree, with the upper bound of its weights.
+   */
+  private static final class Candidate {
+    final TernaryTreeNode node;
+    final boolean subtree;
+    final long weight;
+    final int seq;
+
+    Candidate(TernaryTreeNode node, boolean subtree, long weight, int seq) {
+      this.node = node;
+      this.subtree = subtree;
+      this.weight = weight;
+      this.seq = seq;
+    }
+  }
+
+  /**
+   * Highest weights first; for equal weights tokens first (nothing in a subtree
+   * can beat them), then in the order they were queued.
+   */
+  private static final Comparator<Candidate> BEST_FIRST = new Comparator<Candidate>() {
+    @Override
+    public int compare(Candidate a, Candidate b) {
+      if (a.weight != b.weight) {
+        return a.weight > b.weight ? -1 : 1;
+      }
+      if (a.subtree != b.subtree) {
+        return a.subtree ? 1 : -1;
+      }
+      return a.seq - b.seq;
+    }
+  };
+
+  /**
+   * Returns the <code>num</code> completions of a prefix with the highest
+   * weights, in descending weight order.
+   *
+   * <p>This is a best-first search over {@link TernaryTreeNode#maxWeight}: a
+   * subtree is only expanded when its bound beats everything else queued, so the
+   * search stops as soon as <code>num</code> tokens have been taken and visits
+   * about <code>num</code> times the depth of the tree instead of the whole
+   * subtree of the prefix.
+   *
+   * @param root
+   *          a reference to root node of TST.
+   * @param s
+   *          prefix query to be auto-completed.
+   * @param x
+   *          index of current character to be searched while traversing through
+   *          the prefix in TST.
+   * @param num
+   *          the maximum number of completions.
+   * @return the top completions for the given prefix query.
+   */
+  public ArrayList<TernaryTreeNode> topCompletion(TernaryTreeNode root,
+          CharSequence s, int x, int num) {
+    ArrayList<TernaryTreeNode> suggest = new ArrayList<TernaryTreeNode>();
+    TernaryTreeNode p = descend(root, s, x);
+    if (p == null || num <= 0) return suggest;
+
+    PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(11, BEST_FIRST);
+    int seq = 0;
+    if (p.token != null) {
+      queue.add(new Candidate(p, false, weight(p.val), seq++));
+    }
+    if (p.eqKid != null) {
+      queue.add(new Candidate(p.eqKid, true, p.eqKid.maxWeight, seq++));
+    }
+    while (!queue.isEmpty()) {
+      Candidate top = queue.poll();
+      TernaryTreeNode n = top.node;
+      if (!top.subtree) {
+        suggest.add(n);
+        if (suggest.size() == num) {
+          break;
+        }
+        continue;
+      }
+      if (n.token != null) {
+        queue.add(new Candidate(n, false, weight(n.val), seq++));
+      }
+      if (n.loKid != null) {
+        queue.add(new Candidate(n.loKid, true, n.loKid.maxWeight, seq++));
+      }
+      if (n.eqKid != null) {
+        queue.add(new Candidate(n.eqKid, true, n.eqKid.maxWeight, seq++));
+      }
+      if (n.hiKid != null) {
+        queue.add(new Candidate(n.hiKid, true, n.hiKid.maxWeight, seq++));
+      }
+    }
+    return suggest;
+  }
 }
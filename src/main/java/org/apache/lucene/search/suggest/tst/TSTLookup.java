@@ -19,12 +19,15 @@ package org.apache.lucene.search.suggest.tst;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.lucene.search.suggest.FlatTernaryTree;
 import org.apache.lucene.search.suggest.Lookup;
 import org.apache.lucene.search.suggest.SortedTermFreqIteratorWrapper;
 import org.apache.lucene.search.spell.TermFreqIterator;
@@ -36,11 +39,18 @@ import org.apache.lucene.util.UnicodeUtil;
 /**
  * Suggest implementation based on a 
  * <a href="http://en.wikipedia.org/wiki/Ternary_search_tree">Ternary Search Tree</a>
+ * <p>
+ * Besides {@link #store}, the tree can be written in the flat format of
+ * {@link FlatTernaryTree} with {@link #storeFlat}, and {@link #loadFlat mapped}
+ * back read-only: lookups then search the mapped file in place.
  * 
  * @see TSTAutocomplete
  */
 public class TSTLookup extends Lookup {
-  TernaryTreeNode root = new TernaryTreeNode();
+  /** The tree is fully built (or copied) before it is published here. */
+  volatile TernaryTreeNode root = new TernaryTreeNode();
+  /** If not null, the mapped tree used instead of {@link #root}. */
+  volatile FlatTernaryTree flat;
   TSTAutocomplete autocomplete = new TSTAutocomplete();
   
   /** 
@@ -51,34 +61,46 @@ public class TSTLookup extends Lookup {
 
   @Override
   public void build(TermFreqIterator tfit) throws IOException {
-    root = new TernaryTreeNode();
-    // buffer first
     if (tfit.getComparator() != BytesRef.getUTF8SortedAsUTF16Comparator()) {
       // make sure it's sorted and the comparator uses UTF16 sort order
       tfit = new SortedTermFreqIteratorWrapper(tfit, BytesRef.getUTF8SortedAsUTF16Comparator());
     }
 
-    ArrayList<String> tokens = new ArrayList<String>();
-    ArrayList<Number> vals = new ArrayList<Number>();
+    // build bottom-up while streaming the sorted input
+    SortedTernaryTreeBuilder builder = new SortedTernaryTreeBuilder();
     BytesRef spare;
     CharsRef charsSpare = new CharsRef();
     while ((spare = tfit.next()) != null) {
       charsSpare.grow(spare.length);
       UnicodeUtil.UTF8toUTF16(spare.bytes, spare.offset, spare.length, charsSpare);
-      tokens.add(charsSpare.toString());
-      vals.add(Long.valueOf(tfit.weight()));
+      builder.add(charsSpare, Long.valueOf(tfit.weight()));
+    }
+    final TernaryTreeNode root = builder.finish();
+    synchronized (this) {
+      this.root = root != null ? root : new TernaryTreeNode();
+      this.flat = null;
     }
-    autocomplete.balancedTree(tokens.toArray(), vals.toArray(), 0, tokens.size() - 1, root);
   }
 
   /** 
    * Adds a new node if <code>key</code> already exists,
    * otherwise replaces its value.
    * <p>
+   * This method may be called while other threads run lookups: the path to
+   * the key is copied and the new tree published atomically, so lookups never
+   * block and see the key either before or after the change. Adds are
+   * serialized with each other and with {@link #build} and {@link #load}.
+   * <p>
    * This method always returns true.
+   * 
+   * @throws UnsupportedOperationException
+   *           If the tree was mapped by {@link #loadFlat}.
    */
-  public boolean add(CharSequence key, Object value) {
-    autocomplete.insert(root, key, value, 0);
+  public synchronized boolean add(CharSequence key, Object value) {
+    if (flat != null) {
+      throw new UnsupportedOperationException("mapped trees are read-only");
+    }
+    root = autocomplete.insertCopy(root, key, value, 0);
     // XXX we don't know if a new node was created
     return true;
   }
@@ -88,6 +110,10 @@ public class TSTLookup extends Lookup {
    * if the key does not exist.
    */
   public Object get(CharSequence key) {
+    final FlatTernaryTree flat = this.flat;
+    if (flat != null) {
+      return flat.get(key);
+    }
     List<TernaryTreeNode> list = autocomplete.prefixCompletion(root, key, 0);
     if (list == null || list.isEmpty()) {
       return null;
@@ -115,26 +141,21 @@ public class TSTLookup extends Lookup {
 
   @Override
   public List<LookupResult> lookup(CharSequence key, boolean onlyMorePopular, int num) {
-    List<TernaryTreeNode> list = autocomplete.prefixCompletion(root, key, 0);
+    final FlatTernaryTree flat = this.flat;
+    if (flat != null) {
+      return onlyMorePopular ? flat.topMatchPrefix(key, num) : flat.prefixCompletion(key, num);
+    }
+    List<TernaryTreeNode> list = onlyMorePopular
+        ? autocomplete.topCompletion(root, key, 0, num)
+        : autocomplete.prefixCompletion(root, key, 0);
     List<LookupResult> res = new ArrayList<LookupResult>();
     if (list == null || list.size() == 0) {
       return res;
     }
     int maxCnt = Math.min(num, list.size());
-    if (onlyMorePopular) {
-      LookupPriorityQueue queue = new LookupPriorityQueue(num);
-      
-      for (TernaryTreeNode ttn : list) {
-        queue.insertWithOverflow(new LookupResult(ttn.token, ((Number)ttn.val).longValue()));
-      }
-      for (LookupResult lr : queue.getResults()) {
-        res.add(lr);
-      }
-    } else {
-      for (int i = 0; i < maxCnt; i++) {
-        TernaryTreeNode ttn = list.get(i);
-        res.add(new LookupResult(ttn.token, ((Number)ttn.val).longValue()));
-      }
+    for (int i = 0; i < maxCnt; i++) {
+      TernaryTreeNode ttn = list.get(i);
+      res.add(new LookupResult(ttn.token, ((Number)ttn.val).longValue()));
     }
     return res;
   }
@@ -195,8 +216,70 @@ public class TSTLookup extends Lookup {
     }
   }
 
+  /**
+   * Writes the tree in the flat format of {@link FlatTernaryTree}, breadth-first
+   * and without recursion, then closes the output stream.
+   * 
+   * @see #loadFlat
+   */
+  public synchronized boolean storeFlat(OutputStream output) throws IOException {
+    try {
+      if (flat != null) {
+        flat.copyTo(output);
+        return true;
+      }
+      FlatTernaryTree.Writer writer = new FlatTernaryTree.Writer(output, false);
+      // kids are numbered as they are queued, in the order they are written
+      ArrayDeque<TernaryTreeNode> queue = new ArrayDeque<TernaryTreeNode>();
+      queue.add(root);
+      int next = 2;
+      while (!queue.isEmpty()) {
+        TernaryTreeNode node = queue.poll();
+        int lo = 0, eq = 0, hi = 0;
+        if (node.loKid != null) {
+          lo = next++;
+          queue.add(node.loKid);
+        }
+        if (node.eqKid != null) {
+          eq = next++;
+          queue.add(node.eqKid);
+        }
+        if (node.hiKid != null) {
+          hi = next++;
+          queue.add(node.hiKid);
+        }
+        long weight = node.token != null ? TSTAutocomplete.weight(node.val) : FlatTernaryTree.NO_DATA;
+        writer.add(node.splitchar, weight, node.maxWeight, lo, eq, hi);
+      }
+      writer.finish();
+    } finally {
+      IOUtils.close(output);
+    }
+    return true;
+  }
+
+  /**
+   * Maps a tree written by {@link #storeFlat}. Nothing is read until lookups
+   * need it, so this takes about the same time whatever the tree size. The
+   * tree is read-only until the next {@link #build} or {@link #load}.
+   */
+  public synchronized boolean loadFlat(File file) throws IOException {
+    FlatTernaryTree flat = FlatTernaryTree.open(file);
+    if (flat.isCaseInsensitive()) {
+      throw new IllegalArgumentException("not a TSTLookup tree: " + file);
+    }
+    this.flat = flat;
+    return true;
+  }
+
+  /**
+   * Stores the tree; not supported while it is mapped by {@link #loadFlat}.
+   */
   @Override
   public synchronized boolean store(OutputStream output) throws IOException {
+    if (flat != null) {
+      throw new UnsupportedOperationException("mapped trees can only be stored with storeFlat");
+    }
     DataOutputStream out = new DataOutputStream(output);
     try {
       writeRecursively(out, root);
@@ -210,12 +293,15 @@ public class TSTLookup extends Lookup {
   @Override
   public synchronized boolean load(InputStream input) throws IOException {
     DataInputStream in = new DataInputStream(input);
-    root = new TernaryTreeNode();
+    final TernaryTreeNode root = new TernaryTreeNode();
     try {
       readRecursively(in, root);
     } finally {
       IOUtils.close(in);
     }
+    TSTAutocomplete.updateMaxWeights(root);
+    this.root = root;
+    this.flat = null;
     return true;
   }
   
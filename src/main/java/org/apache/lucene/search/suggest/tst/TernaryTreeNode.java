@@ -42,4 +42,9 @@ public class TernaryTreeNode {
    */
   String token;
   Object val;
+  /**
+   * an upper bound of the weights of all tokens in the subtree rooted at this node,
+   * including its lo and hi kids; <code>Long.MIN_VALUE</code> if there are none.
+   */
+  long maxWeight = Long.MIN_VALUE;
 }
@@ -0,0 +1,206 @@
+package org.apache.lucene.search.suggest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.jaspell.JaspellLookup;
+import org.apache.lucene.search.suggest.tst.TSTLookup;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util._TestUtil;
+
+public class FlatTernaryTreeTest extends LuceneTestCase {
+  private File tempDir;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    tempDir = _TestUtil.getTempDir("flattree");
+    _TestUtil.rmDir(tempDir);
+    tempDir.mkdirs();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    if (tempDir != null) {
+      _TestUtil.rmDir(tempDir);
+    }
+    super.tearDown();
+  }
+
+  private TermFreq[] randomKeys() {
+    List<TermFreq> keys = new ArrayList<TermFreq>();
+    int numKeys = atLeast(500);
+    for (int i = 0; i < numKeys; i++) {
+      String key = _TestUtil.randomSimpleStringRange(random(), 'a', 'f', 8);
+      if (key.length() > 0) {
+        keys.add(new TermFreq(key, random().nextInt(100)));
+      }
+    }
+    return keys.toArray(new TermFreq[keys.size()]);
+  }
+
+  private static String randomPrefix() {
+    String prefix;
+    do {
+      prefix = _TestUtil.randomSimpleStringRange(random(), 'a', 'g', 3);
+    } while (prefix.length() == 0);
+    return prefix;
+  }
+
+  private static List<Long> weights(List<LookupResult> results) {
+    List<Long> weights = new ArrayList<Long>();
+    for (LookupResult result : results) {
+      weights.add(result.value);
+    }
+    return weights;
+  }
+
+  public void testTSTLookup() throws Exception {
+    TermFreq[] keys = randomKeys();
+    TSTLookup tst = new TSTLookup();
+    tst.build(new TermFreqArrayIterator(keys));
+    File file = new File(tempDir, "tst.flat");
+    assertTrue(tst.storeFlat(new FileOutputStream(file)));
+
+    TSTLookup mapped = new TSTLookup();
+    assertTrue(mapped.loadFlat(file));
+    // tiny chunks: records never span them
+    FlatTernaryTree chunked = FlatTernaryTree.open(file, 7);
+    for (int i = 0; i < 200; i++) {
+      String prefix = randomPrefix();
+      int num = _TestUtil.nextInt(random(), 1, 20);
+      String expected = tst.lookup(prefix, false, num).toString();
+      assertEquals(prefix, expected, mapped.lookup(prefix, false, num).toString());
+      assertEquals(prefix, expected, chunked.prefixCompletion(prefix, num).toString());
+      assertEquals(prefix, weights(tst.lookup(prefix, true, num)), weights(mapped.lookup(prefix, true, num)));
+      assertEquals(prefix, tst.get(prefix), mapped.get(prefix));
+    }
+    for (TermFreq key : keys) {
+      String s = key.term.utf8ToString();
+      assertEquals(tst.get(s), mapped.get(s));
+    }
+
+    // a mapped tree is copied as is
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    assertTrue(mapped.storeFlat(baos));
+    assertEquals(file.length(), baos.size());
+    try {
+      mapped.add("abc", 1L);
+      fail();
+    } catch (UnsupportedOperationException expected) {
+      // expected
+    }
+    try {
+      new JaspellLookup().loadFlat(file);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+
+    // building again replaces the mapped tree
+    mapped.build(new TermFreqArrayIterator(new TermFreq[] {new TermFreq("xyz", 3)}));
+    assertEquals(1, mapped.lookup("x", true, 5).size());
+  }
+
+  public void testJaspellLookup() throws Exception {
+    doTestJaspellLookup(false);
+    doTestJaspellLookup(true);
+  }
+
+  private void doTestJaspellLookup(boolean compact) throws Exception {
+    TermFreq[] keys = randomKeys();
+    JaspellLookup jaspell = new JaspellLookup(compact);
+    jaspell.build(new TermFreqArrayIterator(keys));
+    File file = new File(tempDir, "jaspell" + compact + ".flat");
+    assertTrue(jaspell.storeFlat(new FileOutputStream(file)));
+
+    JaspellLookup mapped = new JaspellLookup();
+    assertTrue(mapped.loadFlat(file));
+    for (int i = 0; i < 200; i++) {
+      String prefix = randomPrefix();
+      int num = _TestUtil.nextInt(random(), 1, 20);
+      assertEquals(prefix, jaspell.lookup(prefix, false, num).toString(),
+          mapped.lookup(prefix, false, num).toString());
+      assertEquals(prefix, weights(jaspell.lookup(prefix, true, num)),
+          weights(mapped.lookup(prefix, true, num)));
+      // case insensitive
+      String upper = prefix.toUpperCase(Locale.ROOT);
+      assertEquals(prefix, jaspell.get(upper), mapped.get(upper));
+      int maxEdits = random().nextInt(3);
+      assertEquals(prefix, weights(jaspell.fuzzyLookup(prefix, maxEdits, num)),
+          weights(mapped.fuzzyLookup(prefix, maxEdits, num)));
+    }
+    try {
+      new TSTLookup().loadFlat(file);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    assertFalse(new JaspellLookup(compact).storeFlat(new ByteArrayOutputStream()));
+  }
+
+  public void testWrap() throws Exception {
+    TSTLookup tst = new TSTLookup();
+    tst.build(new TermFreqArrayIterator(new TermFreq[] {
+        new TermFreq("one", 1), new TermFreq("onerous", 3), new TermFreq("two", 2)}));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    tst.storeFlat(baos);
+    FlatTernaryTree tree = FlatTernaryTree.wrap(ByteBuffer.wrap(baos.toByteArray()));
+    assertFalse(tree.isCaseInsensitive());
+    assertEquals(baos.size(), tree.sizeInBytes());
+    assertEquals("[onerous/3, one/1]", tree.topMatchPrefix("o", 5).toString());
+    assertEquals("[one/1, onerous/3]", tree.sortedMatchPrefix("on", 5).toString());
+    assertEquals(Long.valueOf(2), tree.get("two"));
+    assertNull(tree.get("tw"));
+    assertNull(tree.get("One"));
+  }
+
+  public void testCorrupt() throws Exception {
+    byte[] bytes = new byte[FlatTernaryTree.RECORD_SIZE * 2];
+    try {
+      FlatTernaryTree.wrap(ByteBuffer.wrap(bytes));
+      fail();
+    } catch (CorruptIndexException expected) {
+      // expected
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    buffer.putInt(0, FlatTernaryTree.MAGIC);
+    buffer.putInt(4, FlatTernaryTree.VERSION_CURRENT + 1);
+    try {
+      FlatTernaryTree.wrap(buffer);
+      fail();
+    } catch (CorruptIndexException expected) {
+      // expected
+    }
+    try {
+      FlatTernaryTree.wrap(ByteBuffer.wrap(bytes, 0, FlatTernaryTree.RECORD_SIZE + 1));
+      fail();
+    } catch (CorruptIndexException expected) {
+      // expected
+    }
+  }
+}
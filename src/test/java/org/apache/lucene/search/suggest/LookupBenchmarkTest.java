@@ -34,6 +34,7 @@ import org.apache.lucene.search.suggest.Lookup;
 import org.apache.lucene.search.suggest.fst.FSTCompletionLookup;
 import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
 import org.apache.lucene.search.suggest.jaspell.JaspellLookup;
+import org.apache.lucene.search.suggest.tst.CompactTSTLookup;
 import org.apache.lucene.search.suggest.tst.TSTLookup;
 
 
@@ -49,6 +50,7 @@ public class LookupBenchmarkTest extends LuceneTestCase {
   private final List<Class<? extends Lookup>> benchmarkClasses = Arrays.asList(
       JaspellLookup.class, 
       TSTLookup.class,
+      CompactTSTLookup.class,
       FSTCompletionLookup.class,
       WFSTCompletionLookup.class);
 
@@ -26,6 +26,7 @@ import org.apache.lucene.search.suggest.Lookup;
 import org.apache.lucene.search.suggest.Lookup.LookupResult;
 import org.apache.lucene.search.suggest.fst.FSTCompletionLookup;
 import org.apache.lucene.search.suggest.jaspell.JaspellLookup;
+import org.apache.lucene.search.suggest.tst.CompactTSTLookup;
 import org.apache.lucene.search.suggest.tst.TSTLookup;
 import org.apache.lucene.util.LuceneTestCase;
 import org.apache.lucene.util._TestUtil;
@@ -52,6 +53,10 @@ public class PersistenceTest extends LuceneTestCase {
     runTest(TSTLookup.class, true);
   }
   
+  public void testCompactTSTPersistence() throws Exception {
+    runTest(CompactTSTLookup.class, true);
+  }
+
   public void testJaspellPersistence() throws Exception {
     runTest(JaspellLookup.class, true);
   }
@@ -103,5 +103,31 @@ public class TestBytesRefList extends LuceneTestCase {
     }
     
   }
+
+  public void testSortByteOrder() throws IOException {
+    Random random = random();
+    BytesRefList list = new BytesRefList();
+    List<BytesRef> expected = new ArrayList<BytesRef>();
+    int entries = atLeast(1000);
+    // a small alphabet and shared prefixes, for ties at every depth
+    String[] prefixes = new String[] {"", "abcdefgh", "abcdefghabcdefgh", "abcdefg\u0000"};
+    for (int i = 0; i < entries; i++) {
+      String prefix = prefixes[random.nextInt(prefixes.length)];
+      String suffix = random.nextBoolean()
+          ? _TestUtil.randomSimpleStringRange(random, '\u0000', 'c', 20)
+          : _TestUtil.randomRealisticUnicodeString(random);
+      BytesRef bytes = new BytesRef(prefix + suffix);
+      list.append(bytes);
+      expected.add(bytes);
+    }
+    Comparator<BytesRef> comparator = BytesRef.getUTF8SortedAsUnicodeComparator();
+    Collections.sort(expected, comparator);
+    BytesRefIterator iter = list.iterator(comparator);
+    for (BytesRef bytes : expected) {
+      assertEquals(bytes, iter.next());
+    }
+    assertNull(iter.next());
+    assertNull(new BytesRefList().iterator(comparator).next());
+  }
   
 }
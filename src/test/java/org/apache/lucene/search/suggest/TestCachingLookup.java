@@ -0,0 +1,103 @@
+package org.apache.lucene.search.suggest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.fst.FSTCompletionLookup;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
+import org.apache.lucene.search.suggest.jaspell.JaspellLookup;
+import org.apache.lucene.search.suggest.tst.TSTLookup;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestCachingLookup extends LuceneTestCase {
+
+  /** A dictionary of <code>size</code> keys. */
+  private static TermFreq[] dictionary(int size) {
+    TermFreq[] keys = new TermFreq[size];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new TermFreq("key" + i, i);
+    }
+    return keys;
+  }
+
+  public void testInvalidation() throws Exception {
+    Lookup[] delegates = {
+        new TSTLookup(), new JaspellLookup(), new FSTCompletionLookup(), new WFSTCompletionLookup()};
+    for (Lookup delegate : delegates) {
+      String name = delegate.getClass().getSimpleName();
+      CachingLookup lookup = new CachingLookup(delegate);
+      lookup.build(new TermFreqArrayIterator(dictionary(10)));
+
+      List<LookupResult> first = lookup.lookup("key", false, 5);
+      assertEquals(name, delegate.lookup("key", false, 5).toString(), first.toString());
+      assertEquals(0, lookup.getHitCount());
+      assertEquals(1, lookup.getMissCount());
+
+      // Served from the cache; modifying the returned list does not affect it.
+      first.clear();
+      assertEquals(name, delegate.lookup("key", false, 5).toString(), lookup.lookup("key", false, 5).toString());
+      assertEquals(1, lookup.getHitCount());
+      assertTrue(lookup.ramBytesUsed() > 0);
+
+      // A different num or onlyMorePopular is a different entry.
+      assertEquals(name, 10, lookup.lookup("key", false, 100).size());
+      lookup.lookup("key", true, 5);
+      assertEquals(3, lookup.getMissCount());
+
+      // Rebuilding invalidates.
+      lookup.build(new TermFreqArrayIterator(dictionary(20)));
+      assertEquals(0, lookup.ramBytesUsed());
+      assertEquals(name, 20, lookup.lookup("key", false, 100).size());
+      assertEquals(4, lookup.getMissCount());
+
+      // Changes made behind the cache's back need an explicit invalidation.
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      assertTrue(lookup.store(baos));
+      lookup.getDelegate().build(new TermFreqArrayIterator(dictionary(30)));
+      assertEquals(name, 20, lookup.lookup("key", false, 100).size());
+      lookup.invalidate();
+      assertEquals(name, 30, lookup.lookup("key", false, 100).size());
+
+      // Loading invalidates.
+      assertTrue(lookup.load(new ByteArrayInputStream(baos.toByteArray())));
+      assertEquals(name, 20, lookup.lookup("key", false, 100).size());
+    }
+  }
+
+  public void testEviction() throws Exception {
+    CachingLookup lookup = new CachingLookup(new TSTLookup(), 16 * 1024);
+    lookup.build(new TermFreqArrayIterator(dictionary(1000)));
+    for (int i = 0; i < 1000; i++) {
+      lookup.lookup("key" + i, false, 10);
+      assertTrue(lookup.ramBytesUsed() <= 16 * 1024);
+    }
+    assertTrue(lookup.getEvictionCount() > 0);
+
+    // Nothing is cached without a budget.
+    lookup = new CachingLookup(new TSTLookup(), 0);
+    lookup.build(new TermFreqArrayIterator(dictionary(10)));
+    lookup.lookup("key", false, 10);
+    lookup.lookup("key", false, 10);
+    assertEquals(0, lookup.getHitCount());
+    assertEquals(0, lookup.ramBytesUsed());
+  }
+}
@@ -0,0 +1,222 @@
+package org.apache.lucene.search.suggest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.search.spell.TermFreqIterator;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.fst.FSTCompletionLookup;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
+import org.apache.lucene.search.suggest.jaspell.JaspellLookup;
+import org.apache.lucene.search.suggest.tst.TSTLookup;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestSwappableLookup extends LuceneTestCase {
+
+  /** A dictionary in which every key has the same weight. */
+  private static TermFreq[] dictionary(int weight) {
+    TermFreq[] keys = new TermFreq[100];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new TermFreq("key" + i, weight);
+    }
+    return keys;
+  }
+
+  public void testConcurrentRebuilds() throws Exception {
+    final Class<?>[] classes = {
+        TSTLookup.class, JaspellLookup.class, FSTCompletionLookup.class, WFSTCompletionLookup.class};
+    final Class<?> clazz = classes[random().nextInt(classes.length)];
+    final SwappableLookup lookup = new SwappableLookup(new SwappableLookup.Factory() {
+      @Override
+      public Lookup create() throws IOException {
+        try {
+          return (Lookup) clazz.newInstance();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    lookup.build(new TermFreqArrayIterator(dictionary(1)));
+
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] readers = new Thread[3];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            while (!stop.get()) {
+              // Every lookup sees one complete dictionary.
+              List<LookupResult> results = lookup.lookup("key", false, 200);
+              assertEquals(clazz.getSimpleName(), 100, results.size());
+              for (LookupResult result : results) {
+                assertEquals(results.get(0).value, result.value);
+              }
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+      readers[i].start();
+    }
+
+    try {
+      for (int i = 0; i < 20; i++) {
+        lookup.build(new TermFreqArrayIterator(dictionary(2 + i % 2)));
+      }
+    } finally {
+      stop.set(true);
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+    if (failure.get() != null) {
+      throw new RuntimeException(failure.get());
+    }
+  }
+
+  /** Fails lookups issued after it has been closed. */
+  private static class TrackingLookup extends TSTLookup implements Closeable {
+    volatile boolean closed;
+
+    @Override
+    public List<LookupResult> lookup(CharSequence key, boolean onlyMorePopular, int num) {
+      assertFalse("lookup after close", closed);
+      return super.lookup(key, onlyMorePopular, num);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  public void testOldInstanceClosedAfterSwap() throws Exception {
+    final SwappableLookup lookup = new SwappableLookup(new SwappableLookup.Factory() {
+      @Override
+      public Lookup create() {
+        return new TrackingLookup();
+      }
+    });
+    lookup.build(new TermFreqArrayIterator(dictionary(1)));
+    TrackingLookup first = (TrackingLookup) lookup.getCurrent();
+    assertEquals(1, lookup.lookup("key1", false, 1).get(0).value);
+
+    // Store and reload: the loaded copy replaces (and closes) the built one.
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    assertTrue(lookup.store(baos));
+    assertTrue(lookup.load(new ByteArrayInputStream(baos.toByteArray())));
+    assertTrue(first.closed);
+    TrackingLookup second = (TrackingLookup) lookup.getCurrent();
+    assertNotSame(first, second);
+    assertFalse(second.closed);
+    assertEquals(1, lookup.lookup("key1", false, 1).get(0).value);
+
+    lookup.close();
+    assertTrue(second.closed);
+    try {
+      lookup.lookup("key1", false, 1);
+      fail();
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+
+    // closed for good
+    lookup.close();
+    try {
+      lookup.build(new TermFreqArrayIterator(dictionary(2)));
+      fail();
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+    try {
+      lookup.load(new ByteArrayInputStream(baos.toByteArray()));
+      fail();
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+    try {
+      lookup.lookup("key1", false, 1);
+      fail();
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+  }
+
+  public void testFailedBuildClosesNewInstance() throws Exception {
+    final AtomicReference<TrackingLookup> created = new AtomicReference<TrackingLookup>();
+    final SwappableLookup lookup = new SwappableLookup(new SwappableLookup.Factory() {
+      @Override
+      public Lookup create() {
+        created.set(new TrackingLookup());
+        return created.get();
+      }
+    });
+    lookup.build(new TermFreqArrayIterator(dictionary(1)));
+    TrackingLookup current = (TrackingLookup) lookup.getCurrent();
+
+    try {
+      lookup.build(new TermFreqIterator() {
+        @Override
+        public BytesRef next() throws IOException {
+          throw new IOException("boom");
+        }
+
+        @Override
+        public long weight() {
+          return 0;
+        }
+
+        @Override
+        public Comparator<BytesRef> getComparator() {
+          return null;
+        }
+      });
+      fail();
+    } catch (IOException expected) {
+      // expected
+    }
+    assertTrue(created.get().closed);
+    assertNotSame(current, created.get());
+    // the previous instance still serves lookups
+    assertSame(current, lookup.getCurrent());
+    assertFalse(current.closed);
+    assertEquals(1, lookup.lookup("key1", false, 1).get(0).value);
+
+    try {
+      lookup.load(new ByteArrayInputStream(new byte[0]));
+      fail();
+    } catch (IOException expected) {
+      // expected
+    }
+    assertTrue(created.get().closed);
+    assertSame(current, lookup.getCurrent());
+    lookup.close();
+  }
+}
@@ -17,8 +17,12 @@ package org.apache.lucene.search.suggest.fst;
  * limitations under the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.WeakReference;
 import java.util.*;
 
+import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.search.suggest.Lookup.LookupResult;
 import org.apache.lucene.search.suggest.*;
 import org.apache.lucene.search.suggest.fst.FSTCompletion.Completion;
@@ -175,6 +179,63 @@ public class FSTCompletionTest extends LuceneTestCase {
     }
   }  
 
+  public void testBucketsFollowWeightQuantiles() throws Exception {
+    Random rnd = random();
+    Map<String,Integer> weights = new HashMap<String,Integer>();
+    List<TermFreq> keys = new ArrayList<TermFreq>();
+    for (int i = 0; i < 2000; i++) {
+      String term = _TestUtil.randomSimpleString(rnd) + i;
+      int weight = rnd.nextInt(50);
+      weights.put(term, weight);
+      keys.add(new TermFreq(term, weight));
+    }
+
+    int buckets = _TestUtil.nextInt(rnd, 1, 20);
+    FSTCompletionLookup lookup = new FSTCompletionLookup(buckets, true);
+    lookup.build(new TermFreqArrayIterator(keys));
+
+    // The bucket of a term is the number of smaller weights, scaled to the bucket count.
+    int [] sorted = new int [keys.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = (int) keys.get(i).v;
+    }
+    Arrays.sort(sorted);
+    for (Map.Entry<String,Integer> e : weights.entrySet()) {
+      int smaller = 0;
+      while (sorted[smaller] < e.getValue()) smaller++;
+      assertEquals(e.getKey(), Long.valueOf(smaller * buckets / sorted.length), lookup.get(e.getKey()));
+    }
+  }
+
+  public void testPackedFST() throws Exception {
+    List<TermFreq> input = LookupBenchmarkTest.readTop50KWiki().subList(0, 5000);
+    boolean exactWeights = random().nextBoolean();
+    FSTCompletionLookup unpacked = new FSTCompletionLookup(10, true, exactWeights, false);
+    unpacked.build(new TermFreqArrayIterator(input));
+    FSTCompletionLookup packed = new FSTCompletionLookup(10, true, exactWeights, true);
+    packed.build(new TermFreqArrayIterator(input));
+
+    assertEquals(unpacked.getSizeInBytes(), unpacked.getUnpackedSizeInBytes());
+    assertTrue(packed.getSizeInBytes() < packed.getUnpackedSizeInBytes());
+    assertTrue(packed.getSizeInBytes() + " < " + unpacked.getSizeInBytes(), 
+        packed.getSizeInBytes() < unpacked.getSizeInBytes());
+
+    // Round-trip the packed automaton.
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    packed.store(baos);
+    FSTCompletionLookup loaded = new FSTCompletionLookup(10, true, exactWeights);
+    loaded.load(new ByteArrayInputStream(baos.toByteArray()));
+    assertEquals(-1, loaded.getUnpackedSizeInBytes());
+
+    for (String prefix : new String[] {"a", "th", "wi", "ber", "z", "\u00e9"}) {
+      for (boolean higherWeightsFirst : new boolean[] {true, false}) {
+        String expected = unpacked.lookup(prefix, higherWeightsFirst, 10).toString();
+        assertEquals(expected, packed.lookup(prefix, higherWeightsFirst, 10).toString());
+        assertEquals(expected, loaded.lookup(prefix, higherWeightsFirst, 10).toString());
+      }
+    }
+  }
+
   public void testMultilingualInput() throws Exception {
     List<TermFreq> input = LookupBenchmarkTest.readTop50KWiki();
 
@@ -218,6 +279,230 @@ public class FSTCompletionTest extends LuceneTestCase {
     }
   }
 
+  public void testLongKeysMatchBruteForce() throws Exception {
+    Random rnd = random();
+    FSTCompletionBuilder builder = new FSTCompletionBuilder();
+    List<TermFreq> input = new ArrayList<TermFreq>();
+    Set<String> seen = new HashSet<String>();
+    for (int i = 0; i < 200; i++) {
+      // Long keys over a small alphabet, so that the arc stack has to grow.
+      String term = "pre" + _TestUtil.randomSimpleStringRange(rnd, 'a', 'c', 40);
+      if (seen.add(term)) {
+        TermFreq tf = new TermFreq(term, rnd.nextInt(10));
+        input.add(tf);
+        builder.add(tf.term, (int) tf.v);
+      }
+    }
+    FSTCompletion fst = new FSTCompletion(builder.build().getFST(), true, false);
+
+    for (String prefix : new String[] {"p", "pre", "prea", "preab", "prec"}) {
+      // Expected: bucket descending, then alphabetical (UTF-8 order).
+      List<TermFreq> expected = new ArrayList<TermFreq>();
+      for (TermFreq tf : input) {
+        if (tf.term.utf8ToString().startsWith(prefix)) {
+          expected.add(tf);
+        }
+      }
+      Collections.sort(expected, new Comparator<TermFreq>() {
+        @Override
+        public int compare(TermFreq a, TermFreq b) {
+          if (a.v != b.v) return a.v > b.v ? -1 : 1;
+          return a.term.compareTo(b.term);
+        }
+      });
+
+      int num = 1 + rnd.nextInt(expected.size() + 5);
+      List<Completion> result = fst.lookup(stringToCharSequence(prefix), num);
+      assertEquals(Math.min(num, expected.size()), result.size());
+      for (int i = 0; i < result.size(); i++) {
+        assertEquals(expected.get(i).term, result.get(i).utf8);
+        assertEquals(expected.get(i).v, result.get(i).bucket);
+      }
+    }
+  }
+
+  public void testUnreferencedCompletionIsCollected() throws Exception {
+    for (boolean higherWeightsFirst : new boolean[] {true, false}) {
+      FSTCompletion fst = new FSTCompletion(completion.getFST(), higherWeightsFirst, false);
+      assertFalse(fst.lookup(stringToCharSequence("fo"), 5).isEmpty());
+      WeakReference<FSTCompletion> ref = new WeakReference<FSTCompletion>(fst);
+      fst = null;
+      // the lookup left per-thread state behind, on this thread
+      for (int i = 0; i < 50 && ref.get() != null; i++) {
+        System.gc();
+        Thread.sleep(10);
+      }
+      assertNull("completion pinned by its per-thread state (higherWeightsFirst="
+          + higherWeightsFirst + ")", ref.get());
+    }
+  }
+
+  public void testClose() throws Exception {
+    FSTCompletionLookup lookup = new FSTCompletionLookup();
+    lookup.build(new TermFreqArrayIterator(evalKeys()));
+    assertFalse(lookup.lookup("fo", true, 5).isEmpty());
+    assertFalse(lookup.lookup("fo", false, 5).isEmpty());
+    lookup.close();
+  }
+
+  public void testAlphabeticalMatchesBruteForce() throws Exception {
+    Random rnd = random();
+    FSTCompletionBuilder builder = new FSTCompletionBuilder();
+    List<Completion> input = new ArrayList<Completion>();
+    Set<String> seen = new HashSet<String>();
+    for (int i = 0; i < 300; i++) {
+      // The same term may end up in more than one bucket.
+      String term = _TestUtil.randomSimpleStringRange(rnd, 'a', 'c', 8);
+      int bucket = rnd.nextInt(FSTCompletionBuilder.DEFAULT_BUCKETS);
+      if (term.length() > 0 && seen.add(term + "/" + bucket)) {
+        input.add(new Completion(new BytesRef(term), bucket));
+        builder.add(new BytesRef(term), bucket);
+      }
+    }
+    FSTCompletion alphabetical = new FSTCompletion(builder.build().getFST(), false, false);
+
+    for (String prefix : new String[] {"a", "b", "ab", "ca", "abc", "cccc"}) {
+      // Expected: UTF-8 order, then bucket descending.
+      List<Completion> expected = new ArrayList<Completion>();
+      for (Completion c : input) {
+        if (c.utf8.utf8ToString().startsWith(prefix)) {
+          expected.add(c);
+        }
+      }
+      Collections.sort(expected, new Comparator<Completion>() {
+        @Override
+        public int compare(Completion a, Completion b) {
+          int cmp = a.compareTo(b);
+          return cmp != 0 ? cmp : b.bucket - a.bucket;
+        }
+      });
+
+      int num = 1 + rnd.nextInt(expected.size() + 5);
+      assertEquals(prefix, 
+          expected.subList(0, Math.min(num, expected.size())).toString(),
+          alphabetical.lookup(stringToCharSequence(prefix), num).toString());
+    }
+  }
+
+  public void testSessionMatchesLookup() throws Exception {
+    for (FSTCompletion fst : new FSTCompletion[] {completion, completionAlphabetical}) {
+      LookupSession<Completion> session = fst.newSession();
+      // Type, delete and retype keys; the session must agree with plain lookups.
+      for (String key : new String[] {"f", "fo", "fou", "four", "fourt", "fourty", "fourtyx",
+          "fourty", "four", "fourb", "fo", "t", "th", "thr", "thre", "", "o", "one", "onerous", "x"}) {
+        session.setKey(key);
+        assertEquals(key, session.getKey());
+        for (int num : new int[] {1, 2, 5, Integer.MAX_VALUE}) {
+          assertEquals(key + "/" + num, 
+              fst.lookup(stringToCharSequence(key), num).toString(),
+              session.lookup(num).toString());
+        }
+      }
+    }
+  }
+
+  public void testLoadChecksExactWeightsFlag() throws Exception {
+    TermFreq[] keys = new TermFreq[] {
+        new TermFreq("one", 1), new TermFreq("two", 2), new TermFreq("three", 3)};
+    for (boolean exactWeights : new boolean[] {true, false}) {
+      FSTCompletionLookup lookup = new FSTCompletionLookup(10, true, exactWeights);
+      lookup.build(new TermFreqArrayIterator(keys));
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      lookup.store(baos);
+
+      FSTCompletionLookup loaded = new FSTCompletionLookup(10, true, exactWeights);
+      loaded.load(new ByteArrayInputStream(baos.toByteArray()));
+      assertEquals(lookup.lookup("t", false, 5).toString(), loaded.lookup("t", false, 5).toString());
+
+      try {
+        new FSTCompletionLookup(10, true, !exactWeights).load(new ByteArrayInputStream(baos.toByteArray()));
+        fail("loaded exactWeights=" + exactWeights + " into a lookup expecting the opposite");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+
+    try {
+      new FSTCompletionLookup().load(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5}));
+      fail("loaded a file without header");
+    } catch (CorruptIndexException e) {
+      // expected
+    }
+  }
+
+  public void testExactWeights() throws Exception {
+    Random rnd = random();
+    Map<String,Long> weights = new HashMap<String,Long>();
+    List<TermFreq> input = new ArrayList<TermFreq>();
+    for (int i = 0; i < 500; i++) {
+      String term = _TestUtil.randomSimpleStringRange(rnd, 'a', 'd', 6);
+      if (term.length() > 0 && !weights.containsKey(term)) {
+        long weight = rnd.nextInt(1000) - 100;
+        weights.put(term, weight);
+        input.add(new TermFreq(term, weight));
+      }
+    }
+
+    // A single bucket: the order is entirely determined by the exact weights.
+    FSTCompletionLookup lookup = new FSTCompletionLookup(1, false, true);
+    lookup.build(new TermFreqArrayIterator(input));
+
+    // Round-trip through store and load.
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    lookup.store(baos);
+    FSTCompletionLookup loaded = new FSTCompletionLookup(1, true, true);
+    loaded.load(new ByteArrayInputStream(baos.toByteArray()));
+
+    for (String prefix : new String[] {"a", "b", "ab", "ba", "cd", "ddd", "abcd"}) {
+      List<LookupResult> expected = new ArrayList<LookupResult>();
+      for (Map.Entry<String,Long> e : weights.entrySet()) {
+        if (e.getKey().startsWith(prefix)) {
+          expected.add(new LookupResult(e.getKey(), e.getValue()));
+        }
+      }
+      Collections.sort(expected, new Comparator<LookupResult>() {
+        @Override
+        public int compare(LookupResult a, LookupResult b) {
+          if (a.value != b.value) return a.value > b.value ? -1 : 1;
+          return a.compareTo(b);
+        }
+      });
+
+      // Exact match first, the others in the same order.
+      if (weights.containsKey(prefix)) {
+        for (Iterator<LookupResult> i = expected.iterator(); i.hasNext();) {
+          if (i.next().key.toString().equals(prefix)) i.remove();
+        }
+        expected.add(0, new LookupResult(prefix, weights.get(prefix)));
+        assertEquals(weights.get(prefix), loaded.get(prefix));
+      } else {
+        assertNull(loaded.get(prefix));
+      }
+
+      int num = 1 + rnd.nextInt(10);
+      String expectedTopN = expected.subList(0, Math.min(num, expected.size())).toString();
+      assertEquals(expectedTopN, lookup.lookup(stringToCharSequence(prefix), true, num).toString());
+      assertEquals(expectedTopN, loaded.lookup(stringToCharSequence(prefix), true, num).toString());
+    }
+
+    // Sessions agree with plain lookups.
+    FSTCompletionBuilder builder = new FSTCompletionBuilder(10, 
+        new InMemorySorter(BytesRef.getUTF8SortedAsUnicodeComparator()), Integer.MAX_VALUE, true);
+    for (TermFreq tf : evalKeys()) {
+      builder.add(tf.term, (int) tf.v, tf.term.length);
+    }
+    FSTCompletion completion = builder.build();
+    LookupSession<Completion> session = completion.newSession();
+    for (String key : new String[] {"f", "fo", "fou", "four", "t", "th", "o", "one"}) {
+      session.setKey(key);
+      assertEquals(completion.lookup(stringToCharSequence(key), 3).toString(), 
+          session.lookup(3).toString());
+    }
+    // Longest first within the bucket, but 'one' is an exact match.
+    assertMatchEquals(completion.lookup(stringToCharSequence("one"), 3), 
+        "one/0", "onesimus/1", "oneness/1");
+  }
+
   private CharSequence stringToCharSequence(String prefix) {
     return _TestUtil.stringToCharSequence(prefix, random());
   }
@@ -21,10 +21,13 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.lucene.search.suggest.fst.Sort.BufferSize;
 import org.apache.lucene.search.suggest.fst.Sort.ByteSequencesWriter;
 import org.apache.lucene.search.suggest.fst.Sort.SortInfo;
+import org.apache.lucene.search.suggest.fst.Sort.TempEncoding;
 import org.apache.lucene.util.*;
 import org.junit.*;
 
@@ -67,6 +70,28 @@ public class TestSort extends LuceneTestCase {
     assertTrue(info.mergeRounds > 10);
   }
 
+  @Test
+  public void testTieredMerges() throws Exception {
+    int maxTempFiles = _TestUtil.nextInt(random(), 2, 5);
+    byte[][] data = generateRandom((int)Sort.MB * 10);
+    SortInfo info = checkSort(new Sort(Sort.DEFAULT_COMPARATOR, BufferSize.megabytes(1), Sort.defaultTempDir(), maxTempFiles), 
+        data);
+    long inputBytes = 0;
+    for (byte[] datum : data) {
+      inputBytes += 2 + datum.length;
+    }
+    int partitions = info.tempMergeFiles - (info.mergeRounds - 1);
+    assertTrue(partitions > maxTempFiles);
+    // merged files are read exactly once
+    assertEquals(info.bytesWritten, info.bytesRead);
+    // no more than with a balanced merge tree, which has this many levels
+    int levels = 0;
+    for (long n = 1; n < partitions; n *= maxTempFiles) {
+      levels++;
+    }
+    assertTrue(info.toString(), info.bytesWritten <= inputBytes * (1 + levels));
+  }
+
   @Test
   public void testSmallRandom() throws Exception {
     // Sort 20 mb worth of data with 1mb buffer.
@@ -75,6 +100,166 @@ public class TestSort extends LuceneTestCase {
     assertEquals(1, sortInfo.mergeRounds);
   }
 
+  @Test
+  public void testConcurrentPartitions() throws Exception {
+    // Sort 20 mb worth of data with 1mb buffer shared by several sorting threads.
+    int threads = _TestUtil.nextInt(random(), 2, 4);
+    SortInfo sortInfo = checkSort(new Sort(Sort.DEFAULT_COMPARATOR, BufferSize.megabytes(1), Sort.defaultTempDir(), Sort.MAX_TEMPFILES, threads), 
+        generateRandom((int)Sort.MB * 20));
+    assertEquals(1, sortInfo.mergeRounds);
+    assertTrue(sortInfo.tempMergeFiles > 20);
+  }
+
+  @Test
+  public void testConcurrentIntermediateMerges() throws Exception {
+    SortInfo info = checkSort(new Sort(Sort.DEFAULT_COMPARATOR, BufferSize.megabytes(1), Sort.defaultTempDir(), 3, 2), 
+        generateRandom((int)Sort.MB * 5));
+    assertTrue(info.mergeRounds > 1);
+  }
+
+  @Test
+  public void testConcurrentEmpty() throws Exception {
+    checkSort(new Sort(Sort.DEFAULT_COMPARATOR, BufferSize.megabytes(1), Sort.defaultTempDir(), Sort.MAX_TEMPFILES, 3), 
+        new byte [][] {});
+  }
+
+  @Test
+  public void testReadAheadWriteBehind() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      byte[] data = new byte[random().nextInt(100000)];
+      random().nextBytes(data);
+      File file = new File(tempDir, "chunks");
+      int chunkSize = _TestUtil.nextInt(random(), 1, 1000);
+      OutputStream os = new WriteBehindOutputStream(new FileOutputStream(file), chunkSize, executor);
+      for (int upto = 0; upto < data.length; ) {
+        if (random().nextBoolean()) {
+          os.write(data[upto++]);
+        } else {
+          int len = Math.min(data.length - upto, random().nextInt(3 * chunkSize));
+          os.write(data, upto, len);
+          upto += len;
+        }
+      }
+      os.close();
+      assertEquals(data.length, file.length());
+
+      chunkSize = _TestUtil.nextInt(random(), 1, 1000);
+      InputStream is = new ReadAheadInputStream(new FileInputStream(file), chunkSize, executor);
+      byte[] read = new byte[data.length];
+      for (int upto = 0; upto < read.length; ) {
+        if (random().nextBoolean()) {
+          int b = is.read();
+          assertTrue(b >= 0);
+          read[upto++] = (byte) b;
+        } else {
+          int len = is.read(read, upto, Math.min(read.length - upto, 1 + random().nextInt(3 * chunkSize)));
+          assertTrue(len > 0);
+          upto += len;
+        }
+      }
+      assertEquals(-1, is.read());
+      assertEquals(-1, is.read(read, 0, 1));
+      is.close();
+      assertTrue(Arrays.equals(data, read));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testTempEncodings() throws Exception {
+    byte[][] data = generateRandom((int)Sort.MB * 5);
+    for (TempEncoding encoding : TempEncoding.values()) {
+      // a single partition, decoded to the output
+      checkSort(new Sort(Sort.DEFAULT_COMPARATOR, BufferSize.megabytes(16), Sort.defaultTempDir(), Sort.MAX_TEMPFILES, 1, encoding), 
+          data.clone());
+      // intermediate merges, of encoded partitions into encoded files
+      SortInfo info = checkSort(new Sort(Sort.DEFAULT_COMPARATOR, BufferSize.megabytes(1), Sort.defaultTempDir(), 3, 2, encoding), 
+          data.clone());
+      assertTrue(info.mergeRounds > 1);
+    }
+  }
+
+  @Test
+  public void testPrefixDeltaShrinksTempFiles() throws Exception {
+    // terms sharing long prefixes, such as a dictionary
+    String[] stems = new String[] {"internationalization", "interoperability", "incomprehensible"};
+    ArrayList<byte[]> data = new ArrayList<byte[]>();
+    for (long bytes = 0; bytes < Sort.MB * 5; ) {
+      byte[] term = (stems[random().nextInt(stems.length)] + random().nextInt(100000)).getBytes("UTF-8");
+      data.add(term);
+      bytes += term.length;
+    }
+    byte[][] terms = data.toArray(new byte[data.size()][]);
+    long[] written = new long[TempEncoding.values().length];
+    for (TempEncoding encoding : TempEncoding.values()) {
+      written[encoding.ordinal()] = checkSort(new Sort(Sort.DEFAULT_COMPARATOR, BufferSize.megabytes(1), Sort.defaultTempDir(), Sort.MAX_TEMPFILES, 1, encoding), 
+          terms.clone()).bytesWritten;
+    }
+    assertTrue(Arrays.toString(written), written[TempEncoding.PREFIX_DELTA.ordinal()] < written[TempEncoding.RAW.ordinal()]);
+    assertTrue(Arrays.toString(written), written[TempEncoding.PREFIX_DELTA_DEFLATE.ordinal()] < written[TempEncoding.PREFIX_DELTA.ordinal()]);
+  }
+
+  @Test
+  public void testPrefixDeltaTruncated() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Sort.PrefixDeltaWriter writer = new Sort.PrefixDeltaWriter(new DataOutputStream(baos));
+    byte[] first = new byte[200];
+    Arrays.fill(first, (byte) 'a');
+    byte[] second = first.clone();
+    second[second.length - 1] = 'b';
+    writer.write(first);
+    writer.write(second);
+    writer.close();
+    byte[] encoded = baos.toByteArray();
+
+    Sort.PrefixDeltaReader reader = new Sort.PrefixDeltaReader(
+        new DataInputStream(new ByteArrayInputStream(encoded)));
+    assertTrue(Arrays.equals(first, reader.read()));
+    assertTrue(Arrays.equals(second, reader.read()));
+    assertNull(reader.read());
+    reader.close();
+
+    // cut inside the two-byte vInt of the second entry's shared prefix
+    int cut = encoded.length - 3;
+    assertEquals(0x80, encoded[cut - 1] & 0x80);
+    reader = new Sort.PrefixDeltaReader(
+        new DataInputStream(new ByteArrayInputStream(encoded, 0, cut)));
+    assertTrue(Arrays.equals(first, reader.read()));
+    try {
+      reader.read();
+      fail("truncated entry must not read as the end of the file");
+    } catch (EOFException e) {
+      // expected
+    }
+    reader.close();
+  }
+
+  @Test
+  public void testCopy() throws Exception {
+    byte[] data = new byte[random().nextInt(100000)];
+    random().nextBytes(data);
+    File file = new File(tempDir, "original");
+    OutputStream os = new FileOutputStream(file);
+    os.write(data);
+    os.close();
+
+    // copied outside of the heap
+    File copy = new File(tempDir, "copy");
+    Sort.copy(file, copy);
+    assertFilesIdentical(file, copy);
+  }
+
+  @Test
+  public void testSortThreads() throws Exception {
+    try {
+      new Sort(Sort.DEFAULT_COMPARATOR, BufferSize.megabytes(1), Sort.defaultTempDir(), Sort.MAX_TEMPFILES, 0);
+      fail("at least one sorting thread is needed");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
   @Test @Nightly
   public void testLargerRandom() throws Exception {
     // Sort 100MB worth of data with 15mb buffer.
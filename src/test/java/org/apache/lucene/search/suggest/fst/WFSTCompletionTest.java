@@ -70,6 +70,111 @@ public class WFSTCompletionTest extends LuceneTestCase {
     assertEquals(6, results.get(2).value, 0.01F);
   }
   
+  public void testSession() throws Exception {
+    List<TermFreq> keys = new ArrayList<TermFreq>();
+    for (int i = 0; i < 200; i++) {
+      keys.add(new TermFreq(_TestUtil.randomSimpleStringRange(random(), 'a', 'd', 6), random().nextInt(1000)));
+    }
+    WFSTCompletionLookup suggester = new WFSTCompletionLookup(random().nextBoolean());
+    suggester.build(new TermFreqArrayIterator(keys));
+    
+    LookupSession<LookupResult> session = suggester.newSession();
+    StringBuilder key = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      // Mostly type, sometimes hit backspace or start over.
+      int action = random().nextInt(10);
+      if (action == 0) {
+        key.setLength(0);
+      } else if (action < 4 && key.length() > 0) {
+        key.setLength(key.length() - 1);
+      } else {
+        key.append((char) _TestUtil.nextInt(random(), 'a', 'e'));
+      }
+      session.setKey(key);
+      int topN = _TestUtil.nextInt(random(), 1, 10);
+      assertEquals(key.toString(), 
+          suggester.lookup(key, false, topN).toString(), 
+          session.lookup(topN).toString());
+    }
+  }
+
+  public void testPacked() throws Exception {
+    List<TermFreq> keys = new ArrayList<TermFreq>();
+    for (int i = 0; i < 2000; i++) {
+      keys.add(new TermFreq(_TestUtil.randomSimpleString(random()), random().nextInt(1000)));
+    }
+    WFSTCompletionLookup unpacked = new WFSTCompletionLookup(true, false);
+    unpacked.build(new TermFreqArrayIterator(keys));
+    WFSTCompletionLookup packed = new WFSTCompletionLookup(true, true);
+    packed.build(new TermFreqArrayIterator(keys));
+
+    assertEquals(unpacked.getSizeInBytes(), unpacked.getUnpackedSizeInBytes());
+    assertTrue(packed.getSizeInBytes() < packed.getUnpackedSizeInBytes());
+    for (char c = 'a'; c <= 'z'; c++) {
+      String key = Character.toString(c);
+      assertEquals(unpacked.lookup(key, false, 5).toString(), packed.lookup(key, false, 5).toString());
+      assertEquals(unpacked.fuzzyLookup(key, 1, 5).toString(), packed.fuzzyLookup(key, 1, 5).toString());
+    }
+  }
+
+  public void testFuzzy() throws Exception {
+    Map<String,Long> weights = new HashMap<String,Long>();
+    List<TermFreq> keys = new ArrayList<TermFreq>();
+    for (int i = 0; i < 300; i++) {
+      String term = _TestUtil.randomSimpleStringRange(random(), 'a', 'e', 7);
+      if (!weights.containsKey(term)) {
+        long weight = random().nextInt(50);
+        weights.put(term, weight);
+        keys.add(new TermFreq(term, weight));
+      }
+    }
+    WFSTCompletionLookup suggester = new WFSTCompletionLookup();
+    suggester.build(new TermFreqArrayIterator(keys));
+
+    for (int i = 0; i < 50; i++) {
+      String key = _TestUtil.randomSimpleStringRange(random(), 'a', 'f', 4);
+      int maxEdits = random().nextInt(3);
+      int topN = _TestUtil.nextInt(random(), 1, 10);
+
+      List<LookupResult> expected = new ArrayList<LookupResult>();
+      for (Map.Entry<String,Long> e : weights.entrySet()) {
+        for (int j = 0; j <= e.getKey().length(); j++) {
+          if (distance(key, e.getKey().substring(0, j)) <= maxEdits) {
+            expected.add(new LookupResult(e.getKey(), e.getValue()));
+            break;
+          }
+        }
+      }
+      Collections.sort(expected, new Comparator<LookupResult>() {
+        public int compare(LookupResult left, LookupResult right) {
+          int cmp = Float.compare(right.value, left.value);
+          return cmp != 0 ? cmp : left.compareTo(right);
+        }
+      });
+
+      assertEquals(key + "~" + maxEdits, 
+          expected.subList(0, Math.min(topN, expected.size())).toString(),
+          suggester.fuzzyLookup(key, maxEdits, topN).toString());
+    }
+  }
+
+  /** Edit distance with transpositions of adjacent characters. */
+  private static int distance(String a, String b) {
+    int[][] d = new int[a.length() + 1][b.length() + 1];
+    for (int i = 0; i <= a.length(); i++) d[i][0] = i;
+    for (int j = 0; j <= b.length(); j++) d[0][j] = j;
+    for (int i = 1; i <= a.length(); i++) {
+      for (int j = 1; j <= b.length(); j++) {
+        int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+        d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+        if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+          d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+        }
+      }
+    }
+    return d[a.length()][b.length()];
+  }
+
   public void testRandom() throws Exception {
     int numWords = atLeast(1000);
     
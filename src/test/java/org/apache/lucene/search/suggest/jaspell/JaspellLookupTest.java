@@ -0,0 +1,408 @@
+package org.apache.lucene.search.suggest.jaspell;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.TermFreq;
+import org.apache.lucene.search.suggest.TermFreqArrayIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util._TestUtil;
+
+public class JaspellLookupTest extends LuceneTestCase {
+
+  public void testTopMatchPrefix() throws Exception {
+    doTestTopMatchPrefix(false);
+  }
+
+  public void testCompactTopMatchPrefix() throws Exception {
+    doTestTopMatchPrefix(true);
+  }
+
+  private void doTestTopMatchPrefix(boolean compact) throws Exception {
+    TreeMap<String,Long> weights = new TreeMap<String,Long>();
+    int numWords = atLeast(1000);
+    for (int i = 0; i < numWords; i++) {
+      String key = _TestUtil.randomSimpleStringRange(random(), 'a', 'f', 8);
+      if (key.length() > 0) {
+        weights.put(key, Long.valueOf(random().nextInt(100)));
+      }
+    }
+    List<TermFreq> keys = new ArrayList<TermFreq>();
+    for (Map.Entry<String,Long> e : weights.entrySet()) {
+      keys.add(new TermFreq(e.getKey(), e.getValue()));
+    }
+    JaspellLookup lookup = new JaspellLookup(compact);
+    lookup.build(new TermFreqArrayIterator(keys));
+    assertMatches(lookup, weights);
+
+    // Bounds are raised by add().
+    for (int i = 0; i < 100; i++) {
+      String key = _TestUtil.randomSimpleStringRange(random(), 'a', 'f', 8);
+      if (key.length() > 0) {
+        Long weight = Long.valueOf(random().nextInt(200));
+        weights.put(key, weight);
+        lookup.add(key, weight);
+      }
+    }
+    assertMatches(lookup, weights);
+
+    // And computed on load.
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    lookup.store(baos);
+    JaspellLookup loaded = new JaspellLookup(compact);
+    loaded.load(new ByteArrayInputStream(baos.toByteArray()));
+    assertMatches(loaded, weights);
+
+    // The stored format is the same for both tries.
+    JaspellLookup other = new JaspellLookup(!compact);
+    other.load(new ByteArrayInputStream(baos.toByteArray()));
+    assertMatches(other, weights);
+  }
+
+  private void assertMatches(JaspellLookup lookup, TreeMap<String,Long> weights) {
+    for (int i = 0; i < 100; i++) {
+      String prefix = _TestUtil.randomSimpleStringRange(random(), 'a', 'g', 3);
+      if (prefix.length() == 0) {
+        continue;
+      }
+      int num = _TestUtil.nextInt(random(), 1, 20);
+
+      List<String> sorted = new ArrayList<String>();
+      List<Long> top = new ArrayList<Long>();
+      for (Map.Entry<String,Long> e : weights.tailMap(prefix).entrySet()) {
+        if (!e.getKey().startsWith(prefix)) {
+          break;
+        }
+        if (sorted.size() < num) {
+          sorted.add(e.getKey() + "/" + e.getValue());
+        }
+        top.add(e.getValue());
+      }
+      Collections.sort(top, Collections.reverseOrder());
+      top = top.subList(0, Math.min(num, top.size()));
+
+      List<Long> actual = new ArrayList<Long>();
+      for (LookupResult result : lookup.lookup(prefix, true, num)) {
+        assertEquals(weights.get(result.key.toString()).longValue(), result.value);
+        actual.add(result.value);
+      }
+      assertEquals(prefix + " " + num, top, actual);
+      assertEquals(prefix + " " + num, sorted.toString(), lookup.lookup(prefix, false, num).toString());
+    }
+  }
+
+  public void testFuzzy() throws Exception {
+    doTestFuzzy(false);
+  }
+
+  public void testCompactFuzzy() throws Exception {
+    doTestFuzzy(true);
+  }
+
+  private void doTestFuzzy(boolean compact) throws Exception {
+    Map<String,Long> weights = new HashMap<String,Long>();
+    List<TermFreq> keys = new ArrayList<TermFreq>();
+    for (int i = 0; i < 300; i++) {
+      String term = _TestUtil.randomSimpleStringRange(random(), 'a', 'e', 7);
+      if (term.length() > 0 && !weights.containsKey(term)) {
+        long weight = random().nextInt(50);
+        weights.put(term, weight);
+        keys.add(new TermFreq(term, weight));
+      }
+    }
+    JaspellLookup lookup = new JaspellLookup(compact);
+    lookup.build(new TermFreqArrayIterator(keys));
+
+    for (int i = 0; i < 50; i++) {
+      String key = _TestUtil.randomSimpleStringRange(random(), 'a', 'f', 4);
+      int maxEdits = random().nextInt(3);
+      int topN = _TestUtil.nextInt(random(), 1, 10);
+
+      List<Long> expected = new ArrayList<Long>();
+      for (Map.Entry<String,Long> e : weights.entrySet()) {
+        if (matches(key, e.getKey(), maxEdits)) {
+          expected.add(e.getValue());
+        }
+      }
+      Collections.sort(expected, Collections.reverseOrder());
+      expected = expected.subList(0, Math.min(topN, expected.size()));
+
+      List<Long> actual = new ArrayList<Long>();
+      for (LookupResult result : lookup.fuzzyLookup(key, maxEdits, topN)) {
+        assertTrue(key + "~" + maxEdits + " " + result, matches(key, result.key.toString(), maxEdits));
+        assertEquals(weights.get(result.key.toString()).longValue(), result.value);
+        actual.add(result.value);
+      }
+      assertEquals(key + "~" + maxEdits, expected, actual);
+    }
+  }
+
+  public void testFuzzySupplementary() throws Exception {
+    String term = "a\uD801\uDC00bc";
+    JaspellLookup lookup = new JaspellLookup();
+    lookup.build(new TermFreqArrayIterator(new TermFreq[] {new TermFreq(term, 1), new TermFreq("xyz", 2)}));
+    List<LookupResult> results = lookup.fuzzyLookup("a\uD801\uDC00", 0, 5);
+    assertEquals(1, results.size());
+    assertEquals(term, results.get(0).key.toString());
+    // one code point is one edit
+    results = lookup.fuzzyLookup("azb", 1, 5);
+    assertEquals(1, results.size());
+    assertEquals(term, results.get(0).key.toString());
+    assertEquals(0, lookup.fuzzyLookup("azzb", 1, 5).size());
+  }
+
+  /** Whether a prefix of <code>term</code> is within <code>maxEdits</code> of <code>key</code>. */
+  private static boolean matches(String key, String term, int maxEdits) {
+    for (int j = 0; j <= term.length(); j++) {
+      if (distance(key, term.substring(0, j)) <= maxEdits) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Edit distance with transpositions of adjacent characters. */
+  private static int distance(String a, String b) {
+    int[][] d = new int[a.length() + 1][b.length() + 1];
+    for (int i = 0; i <= a.length(); i++) d[i][0] = i;
+    for (int j = 0; j <= b.length(); j++) d[0][j] = j;
+    for (int i = 1; i <= a.length(); i++) {
+      for (int j = 1; j <= b.length(); j++) {
+        int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+        d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+        if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+          d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+        }
+      }
+    }
+    return d[a.length()][b.length()];
+  }
+
+  public void testConcurrentAdd() throws Exception {
+    doTestConcurrentAdd(false);
+  }
+
+  public void testCompactConcurrentAdd() throws Exception {
+    doTestConcurrentAdd(true);
+  }
+
+  private void doTestConcurrentAdd(boolean compact) throws Exception {
+    final JaspellLookup lookup = new JaspellLookup(compact);
+    lookup.build(new TermFreqArrayIterator(new TermFreq[] {new TermFreq("k", 0)}));
+    final int numKeys = atLeast(2000);
+    final AtomicInteger added = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] readers = new Thread[3];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            int n;
+            while ((n = added.get()) < numKeys) {
+              // Everything added before the lookup started is visible.
+              if (n > 0) {
+                assertEquals(Long.valueOf(n - 1), lookup.get("k" + (n - 1)));
+              }
+              List<LookupResult> results = lookup.lookup("k", false, numKeys + 1);
+              assertTrue(results.size() >= n + 1);
+              for (LookupResult result : results) {
+                String key = result.key.toString();
+                assertEquals(key, key.length() == 1 ? 0 : Long.parseLong(key.substring(1)), result.value);
+              }
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+      readers[i].start();
+    }
+    for (int i = 0; i < numKeys; i++) {
+      lookup.add("k" + i, Long.valueOf(i));
+      added.incrementAndGet();
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    if (failure.get() != null) {
+      throw new RuntimeException(failure.get());
+    }
+    assertEquals(numKeys + 1, lookup.lookup("k", false, numKeys + 10).size());
+  }
+
+  public void testCompactTrie() throws Exception {
+    CompactTernarySearchTrie trie = new CompactTernarySearchTrie(true);
+    assertTrue(trie.hasParentLinks());
+    trie.put("abc", 3);
+    trie.put("ab", 2);
+    trie.put("aXd", 4);
+    trie.put("ABC", 5); // case-insensitive, like JaspellTernarySearchTrie
+    assertEquals(Long.valueOf(5), trie.get("abc"));
+    assertEquals(Long.valueOf(2), trie.get("Ab"));
+    assertNull(trie.get("a"));
+    assertNull(trie.get("abcd"));
+    assertEquals(3, trie.numDataNodes());
+    assertEquals(5, trie.numNodes());
+    assertEquals("abc", trie.getKey(trie.getNode("ABC")));
+    assertEquals("aXd", trie.getKey(trie.getNode("axd")));
+    assertEquals("[abc/5, aXd/4]", trie.topMatchPrefix("a", 2).toString());
+    assertEquals("[ab/2, abc/5, aXd/4]", trie.sortedMatchPrefix("A", 10).toString());
+
+    try {
+      new CompactTernarySearchTrie().getKey(1);
+      fail();
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+    try {
+      trie.put("abc", Long.MIN_VALUE);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+    try {
+      new JaspellLookup(true).add("abc", "notANumber");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+  }
+
+  public void testLowerCaseUTF16Comparator() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      String a = randomMixedCase();
+      String b = random().nextInt(5) == 0 ? a.toUpperCase(Locale.ROOT) : randomMixedCase();
+      if (random().nextBoolean()) {
+        a = a + _TestUtil.randomUnicodeString(random(), 3);
+        b = b + _TestUtil.randomUnicodeString(random(), 3);
+      }
+      BytesRef aBytes = new BytesRef(a), bBytes = new BytesRef(b);
+      int expected = 0;
+      for (int j = 0; j < Math.min(a.length(), b.length()) && expected == 0; j++) {
+        expected = Character.toLowerCase(a.charAt(j)) - Character.toLowerCase(b.charAt(j));
+      }
+      if (expected == 0) {
+        expected = a.length() != b.length() ? a.length() - b.length() : aBytes.compareTo(bBytes);
+      }
+      assertEquals(a + " " + b, Integer.signum(expected),
+          Integer.signum(LowerCaseUTF16Comparator.INSTANCE.compare(aBytes, bBytes)));
+    }
+  }
+
+  private static String randomMixedCase() {
+    StringBuilder sb = new StringBuilder();
+    int length = random().nextInt(6);
+    for (int i = 0; i < length; i++) {
+      char c = (char) _TestUtil.nextInt(random(), 'a', 'd');
+      sb.append(random().nextBoolean() ? Character.toUpperCase(c) : c);
+    }
+    return sb.toString();
+  }
+
+  public void testBuildMatchesAdd() throws Exception {
+    doTestBuildMatchesAdd(false);
+    doTestBuildMatchesAdd(true);
+  }
+
+  private void doTestBuildMatchesAdd(boolean compact) throws Exception {
+    // keys distinct ignoring case, so the value does not depend on the order
+    Map<String,TermFreq> keys = new HashMap<String,TermFreq>();
+    for (int i = 0; i < 500; i++) {
+      String key = randomMixedCase();
+      if (key.length() > 0) {
+        keys.put(key.toLowerCase(Locale.ROOT), new TermFreq(key, random().nextInt(100)));
+      }
+    }
+    JaspellLookup built = new JaspellLookup(compact);
+    built.build(new TermFreqArrayIterator(keys.values()));
+    JaspellLookup added = new JaspellLookup(compact);
+    for (TermFreq key : keys.values()) {
+      added.add(key.term.utf8ToString(), Long.valueOf(key.v));
+    }
+    for (int i = 0; i < 100; i++) {
+      String prefix = randomMixedCase();
+      if (prefix.length() == 0) {
+        continue;
+      }
+      int num = _TestUtil.nextInt(random(), 1, 20);
+      assertEquals(prefix, added.get(prefix), built.get(prefix));
+      assertEquals(prefix, toLowerCase(added.lookup(prefix, false, num)),
+          toLowerCase(built.lookup(prefix, false, num)));
+      List<Long> expected = new ArrayList<Long>();
+      for (LookupResult result : added.lookup(prefix, true, num)) {
+        expected.add(result.value);
+      }
+      List<Long> actual = new ArrayList<Long>();
+      for (LookupResult result : built.lookup(prefix, true, num)) {
+        actual.add(result.value);
+      }
+      assertEquals(prefix, expected, actual);
+    }
+  }
+
+  /** Keys of tries are spelled as first inserted: compare them ignoring case. */
+  private static String toLowerCase(List<LookupResult> results) {
+    return results.toString().toLowerCase(Locale.ROOT);
+  }
+
+  public void testSortedBuildIsBalanced() throws Exception {
+    List<TermFreq> keys = new ArrayList<TermFreq>();
+    for (char c = 'a'; c <= 'z'; c++) {
+      keys.add(new TermFreq(String.valueOf(c), c));
+    }
+    // one level per character: must not recurse per character while building
+    StringBuilder sb = new StringBuilder("a");
+    for (int i = 0; i < 20000; i++) {
+      sb.append((char) ('a' + random().nextInt(3)));
+    }
+    String longKey = sb.toString();
+    keys.add(new TermFreq(longKey, 1000));
+    JaspellLookup lookup = new JaspellLookup();
+    lookup.build(new TermFreqArrayIterator(keys));
+    // 26 siblings: at most 5 levels
+    assertTrue(height(lookup.trie.getRoot()) <= 5);
+    assertEquals(longKey, lookup.lookup("A", true, 1).get(0).key.toString());
+
+    JaspellLookup compact = new JaspellLookup(true);
+    compact.build(new TermFreqArrayIterator(keys));
+    assertEquals(longKey, compact.lookup("a", true, 1).get(0).key.toString());
+    assertEquals("[a/97, " + longKey + "/1000]", compact.lookup("a", false, 2).toString());
+  }
+
+  private static int height(JaspellTernarySearchTrie.TSTNode node) {
+    if (node == null) {
+      return 0;
+    }
+    return 1 + Math.max(height(node.relatives[JaspellTernarySearchTrie.TSTNode.LOKID]),
+        height(node.relatives[JaspellTernarySearchTrie.TSTNode.HIKID]));
+  }
+}
@@ -0,0 +1,148 @@
+package org.apache.lucene.search.suggest.tst;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFormatTooNewException;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.TermFreq;
+import org.apache.lucene.search.suggest.TermFreqArrayIterator;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util._TestUtil;
+
+public class CompactTSTLookupTest extends LuceneTestCase {
+
+  public void testStoreHasHeader() throws Exception {
+    CompactTSTLookup compact = new CompactTSTLookup();
+    compact.build(new TermFreqArrayIterator(new TermFreq[] {new TermFreq("one", 1), new TermFreq("two", 2)}));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    assertTrue(compact.store(baos));
+    byte[] bytes = baos.toByteArray();
+
+    CompactTSTLookup loaded = new CompactTSTLookup();
+    assertTrue(loaded.load(new ByteArrayInputStream(bytes)));
+    assertEquals(Long.valueOf(2), loaded.get("two"));
+
+    // e.g. a tree stored by an earlier, header-less version
+    byte[] corrupt = bytes.clone();
+    corrupt[0]++;
+    try {
+      loaded.load(new ByteArrayInputStream(corrupt));
+      fail();
+    } catch (CorruptIndexException expected) {
+      // expected
+    }
+    // a newer version
+    int versionOffset = CodecUtil.headerLength(CompactTSTLookup.CODEC_NAME) - 1;
+    corrupt = bytes.clone();
+    corrupt[versionOffset]++;
+    try {
+      loaded.load(new ByteArrayInputStream(corrupt));
+      fail();
+    } catch (IndexFormatTooNewException expected) {
+      // expected
+    }
+    // a link out of the tree
+    corrupt = bytes.clone();
+    corrupt[CodecUtil.headerLength(CompactTSTLookup.CODEC_NAME) + 8 + 2] = 0x7f;
+    try {
+      loaded.load(new ByteArrayInputStream(corrupt));
+      fail();
+    } catch (CorruptIndexException expected) {
+      // expected
+    }
+    // a cycle: node 1 as its own eq kid
+    corrupt = bytes.clone();
+    int eqOffset = CodecUtil.headerLength(CompactTSTLookup.CODEC_NAME) + 8 + 2 + 4;
+    corrupt[eqOffset] = corrupt[eqOffset + 1] = corrupt[eqOffset + 2] = 0;
+    corrupt[eqOffset + 3] = 1;
+    try {
+      loaded.load(new ByteArrayInputStream(corrupt));
+      fail();
+    } catch (CorruptIndexException expected) {
+      // expected
+    }
+    // the failed loads kept the tree
+    assertEquals(Long.valueOf(1), loaded.get("one"));
+  }
+
+  public void testSameAsTSTLookup() throws Exception {
+    List<TermFreq> keys = new ArrayList<TermFreq>();
+    int numWords = atLeast(1000);
+    for (int i = 0; i < numWords; i++) {
+      keys.add(new TermFreq(_TestUtil.randomSimpleStringRange(random(), 'a', 'f', 8), random().nextInt(100)));
+    }
+    TSTLookup tst = new TSTLookup();
+    tst.build(new TermFreqArrayIterator(keys));
+    CompactTSTLookup compact = new CompactTSTLookup();
+    compact.build(new TermFreqArrayIterator(keys));
+    // max weights are recomputed on load
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    compact.store(baos);
+    CompactTSTLookup loaded = new CompactTSTLookup();
+    loaded.load(new ByteArrayInputStream(baos.toByteArray()));
+
+    for (int i = 0; i < 200; i++) {
+      String key = _TestUtil.randomSimpleStringRange(random(), 'a', 'g', 4);
+      if (key.length() == 0) {
+        continue;
+      }
+      int num = _TestUtil.nextInt(random(), 1, 20);
+      boolean onlyMorePopular = random().nextBoolean();
+      List<LookupResult> expected = tst.lookup(key, onlyMorePopular, num);
+      List<LookupResult> actual = compact.lookup(key, onlyMorePopular, num);
+      if (onlyMorePopular) {
+        // keys of equal weight may come in a different order
+        assertEquals(key + " " + num, weights(expected), weights(actual));
+      } else {
+        assertEquals(key + " " + num, expected.toString(), actual.toString());
+      }
+      assertEquals(key + " " + num, actual.toString(), loaded.lookup(key, onlyMorePopular, num).toString());
+      assertEquals(key, tst.get(key), compact.get(key));
+    }
+    for (TermFreq tf : keys) {
+      String key = tf.term.utf8ToString();
+      if (key.length() > 0) {
+        assertEquals(key, tst.get(key), compact.get(key));
+      }
+    }
+  }
+
+  private static List<Long> weights(List<LookupResult> results) {
+    List<Long> weights = new ArrayList<Long>();
+    for (LookupResult result : results) {
+      weights.add(result.value);
+    }
+    return weights;
+  }
+
+  public void testEmpty() throws Exception {
+    CompactTSTLookup compact = new CompactTSTLookup();
+    assertEquals(0, compact.lookup("a", true, 10).size());
+    assertNull(compact.get("a"));
+    compact.build(new TermFreqArrayIterator(new TermFreq[0]));
+    assertEquals(0, compact.getNodeCount());
+    assertEquals(0, compact.lookup("a", false, 10).size());
+  }
+}
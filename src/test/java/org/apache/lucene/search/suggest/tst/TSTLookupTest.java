@@ -0,0 +1,178 @@
+package org.apache.lucene.search.suggest.tst;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.TermFreq;
+import org.apache.lucene.search.suggest.TermFreqArrayIterator;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util._TestUtil;
+
+public class TSTLookupTest extends LuceneTestCase {
+
+  public void testTopCompletion() throws Exception {
+    TreeMap<String,Long> weights = new TreeMap<String,Long>();
+    int numWords = atLeast(1000);
+    for (int i = 0; i < numWords; i++) {
+      String key = _TestUtil.randomSimpleStringRange(random(), 'a', 'f', 8);
+      if (key.length() > 0) {
+        weights.put(key, Long.valueOf(random().nextInt(100)));
+      }
+    }
+    List<TermFreq> keys = new ArrayList<TermFreq>();
+    for (Map.Entry<String,Long> e : weights.entrySet()) {
+      keys.add(new TermFreq(e.getKey(), e.getValue()));
+    }
+    TSTLookup tst = new TSTLookup();
+    tst.build(new TermFreqArrayIterator(keys));
+    assertTopCompletions(tst, weights);
+
+    // Bounds are kept up to date by add(), also when a weight decreases.
+    for (int i = 0; i < 100; i++) {
+      String key = _TestUtil.randomSimpleStringRange(random(), 'a', 'f', 8);
+      if (key.length() > 0) {
+        Long weight = Long.valueOf(random().nextInt(200));
+        weights.put(key, weight);
+        tst.add(key, weight);
+      }
+    }
+    assertTopCompletions(tst, weights);
+
+    // And recomputed on load.
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    tst.store(baos);
+    TSTLookup loaded = new TSTLookup();
+    loaded.load(new ByteArrayInputStream(baos.toByteArray()));
+    assertTopCompletions(loaded, weights);
+  }
+
+  public void testConcurrentAdd() throws Exception {
+    final TSTLookup tst = new TSTLookup();
+    tst.build(new TermFreqArrayIterator(new TermFreq[] {new TermFreq("k", 0)}));
+    final int numKeys = atLeast(2000);
+    final AtomicInteger added = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] readers = new Thread[3];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            int n;
+            while ((n = added.get()) < numKeys) {
+              // Everything added before the lookup started is visible.
+              if (n > 0) {
+                assertEquals(Long.valueOf(n - 1), tst.get("k" + (n - 1)));
+              }
+              List<LookupResult> results = tst.lookup("k", true, numKeys + 1);
+              assertTrue(results.size() >= n + 1);
+              for (LookupResult result : results) {
+                String key = result.key.toString();
+                assertEquals(key, key.length() == 1 ? 0 : Long.parseLong(key.substring(1)), result.value);
+              }
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+      readers[i].start();
+    }
+    for (int i = 0; i < numKeys; i++) {
+      tst.add("k" + i, Long.valueOf(i));
+      added.incrementAndGet();
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    if (failure.get() != null) {
+      throw new RuntimeException(failure.get());
+    }
+    assertEquals(numKeys + 1, tst.lookup("k", false, numKeys + 10).size());
+  }
+
+  public void testLongKeys() throws Exception {
+    // one level per character: must not recurse per character while building
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      sb.append((char) ('a' + random().nextInt(3)));
+    }
+    String key = sb.toString();
+    TermFreq[] keys = new TermFreq[] {
+        new TermFreq(key, 3),
+        new TermFreq(key.substring(0, 15000), 2),
+        new TermFreq(key.substring(0, 10) + "z", 1)};
+    TSTLookup tst = new TSTLookup();
+    tst.build(new TermFreqArrayIterator(keys));
+    List<LookupResult> results = tst.lookup(key.substring(0, 10), true, 5);
+    assertEquals(3, results.size());
+    assertEquals(key, results.get(0).key.toString());
+    assertEquals(3, results.get(0).value);
+  }
+
+  public void testUnsortedInput() throws Exception {
+    SortedTernaryTreeBuilder builder = new SortedTernaryTreeBuilder();
+    builder.add("ab", 1L);
+    builder.add("ab", 2L);
+    builder.add("abc", 3L);
+    try {
+      builder.add("aa", 4L);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+  }
+
+  private void assertTopCompletions(TSTLookup tst, TreeMap<String,Long> weights) {
+    for (int i = 0; i < 100; i++) {
+      String prefix = _TestUtil.randomSimpleStringRange(random(), 'a', 'g', 3);
+      if (prefix.length() == 0) {
+        continue;
+      }
+      int num = _TestUtil.nextInt(random(), 1, 20);
+
+      List<Long> expected = new ArrayList<Long>();
+      for (Map.Entry<String,Long> e : weights.tailMap(prefix).entrySet()) {
+        if (!e.getKey().startsWith(prefix)) {
+          break;
+        }
+        expected.add(e.getValue());
+      }
+      Collections.sort(expected, Collections.reverseOrder());
+      expected = expected.subList(0, Math.min(num, expected.size()));
+
+      List<Long> actual = new ArrayList<Long>();
+      for (LookupResult result : tst.lookup(prefix, true, num)) {
+        assertTrue(result.key.toString().startsWith(prefix));
+        assertEquals(weights.get(result.key.toString()).longValue(), result.value);
+        actual.add(result.value);
+      }
+      assertEquals(prefix + " " + num, expected, actual);
+    }
+  }
+}